@@ -0,0 +1,321 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentResolver;
+
+import com.nextgis.maplib.map.TrackLayer;
+
+import org.json.JSONArray;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Runs {@link TrackerUploader} against a local HTTP stub of the tracker hub and an in-memory
+ * trackpoints table.
+ */
+public class TrackerUploaderTest extends AndroidTestCase {
+    private static final String AUTHORITY = "com.nextgis.maplibui.test";
+    private static final Uri URI = Uri.parse("content://" + AUTHORITY + "/" + TrackLayer.TABLE_TRACKPOINTS);
+
+    private HubStub mHub;
+    private TrackPointsProvider mProvider;
+    private TrackerUploader mUploader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mProvider = new TrackPointsProvider();
+        ProviderInfo info = new ProviderInfo();
+        info.authority = AUTHORITY;
+        mProvider.attachInfo(getContext(), info);
+
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(AUTHORITY, mProvider);
+        Context context = new ContextWrapper(getContext()) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        };
+
+        mHub = new HubStub();
+        mUploader = new TrackerUploader(context, URI);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHub.close();
+        mProvider.close();
+        super.tearDown();
+    }
+
+    public void testPagesWithSameTimestamp() throws Exception {
+        // more points than a page share one timestamp
+        insertPoints(3 * TrackerUploader.MIN_BATCH_SIZE + 7, 1000);
+        mUploader.mBatchSize = TrackerUploader.MIN_BATCH_SIZE;
+
+        assertTrue(mUploader.upload(mHub.getUrl()));
+        assertEquals(3 * TrackerUploader.MIN_BATCH_SIZE + 7, mHub.getPointsCount());
+        assertEquals(0, getUnsentCount());
+    }
+
+    public void testOnlyPostedRowsAreMarked() throws Exception {
+        insertPoints(TrackerUploader.MIN_BATCH_SIZE * 2, 1000);
+        mUploader.mBatchSize = TrackerUploader.MIN_BATCH_SIZE;
+        mHub.mCodes.add(200);
+        mHub.mCodes.add(503);
+
+        assertFalse(mUploader.upload(mHub.getUrl()));
+        assertEquals(TrackerUploader.MIN_BATCH_SIZE, getUnsentCount());
+    }
+
+    public void testAnySuccessCode() throws Exception {
+        insertPoints(10, 1000);
+        mHub.mCodes.add(201);
+        assertTrue(mUploader.upload(mHub.getUrl()));
+        assertEquals(0, getUnsentCount());
+
+        insertPoints(10, 2000);
+        mHub.mCodes.add(204);
+        assertTrue(mUploader.upload(mHub.getUrl()));
+        assertEquals(0, getUnsentCount());
+        assertEquals(1000, mUploader.getRetryDelay(1000));
+    }
+
+    public void testRejectedPacketBacksOff() throws Exception {
+        insertPoints(10, 1000);
+        for (int i = 0; i < 4; i++)
+            mHub.mCodes.add(403);
+
+        assertFalse(mUploader.upload(mHub.getUrl()));
+        assertEquals(10, getUnsentCount());
+        assertTrue(mUploader.getRetryDelay(1000) > 1000);
+        assertTrue(mUploader.getRetryDelay(0) > 0);
+    }
+
+    public void testUnreachableHubBacksOff() throws Exception {
+        insertPoints(10, 1000);
+        String url = mHub.getUrl();
+        mHub.close();
+
+        assertFalse(mUploader.upload(url));
+        assertEquals(10, getUnsentCount());
+        long first = mUploader.getRetryDelay(1000);
+        assertFalse(mUploader.upload(url));
+        assertTrue(mUploader.getRetryDelay(1000) > first);
+    }
+
+    public void testCompressedPayload() throws Exception {
+        insertPoints(10, 1000);
+        assertTrue(mUploader.upload(mHub.getUrl()));
+        assertTrue(mHub.mIsGzipped);
+    }
+
+    private void insertPoints(int count, long timestamp) {
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < count; i++) {
+            values.put(TrackLayer.FIELD_SESSION, "1");
+            values.put(TrackLayer.FIELD_LON, 4187000.0 + i);
+            values.put(TrackLayer.FIELD_LAT, 7509000.0 + i);
+            values.put(TrackLayer.FIELD_ELE, 150.0);
+            values.put(TrackLayer.FIELD_FIX, "3d");
+            values.put(TrackLayer.FIELD_SAT, 8);
+            values.put(TrackLayer.FIELD_SPEED, 1.5f);
+            values.put(TrackLayer.FIELD_ACCURACY, 5f);
+            values.put(TrackLayer.FIELD_SENT, 0);
+            values.put(TrackLayer.FIELD_TIMESTAMP, timestamp);
+            mProvider.insert(URI, values);
+        }
+    }
+
+    private long getUnsentCount() {
+        return DatabaseUtils.queryNumEntries(mProvider.mDatabase, TrackLayer.TABLE_TRACKPOINTS,
+                TrackLayer.FIELD_SENT + " = 0");
+    }
+
+    static class TrackPointsProvider extends ContentProvider {
+        SQLiteDatabase mDatabase;
+
+        @Override
+        public boolean onCreate() {
+            mDatabase = SQLiteDatabase.create(null);
+            mDatabase.execSQL("CREATE TABLE " + TrackLayer.TABLE_TRACKPOINTS + " ("
+                    + TrackLayer.FIELD_LON + " REAL, " + TrackLayer.FIELD_LAT + " REAL, "
+                    + TrackLayer.FIELD_ELE + " REAL, " + TrackLayer.FIELD_FIX + " TEXT, "
+                    + TrackLayer.FIELD_SAT + " INTEGER, " + TrackLayer.FIELD_SPEED + " REAL, "
+                    + TrackLayer.FIELD_ACCURACY + " REAL, " + TrackLayer.FIELD_SENT + " INTEGER, "
+                    + TrackLayer.FIELD_TIMESTAMP + " INTEGER, " + TrackLayer.FIELD_SESSION + " TEXT)");
+            return true;
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+            return mDatabase.query(TrackLayer.TABLE_TRACKPOINTS, projection, selection, selectionArgs, null, null, sortOrder);
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            long id = mDatabase.insert(TrackLayer.TABLE_TRACKPOINTS, null, values);
+            return Uri.withAppendedPath(uri, Long.toString(id));
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            return mDatabase.delete(TrackLayer.TABLE_TRACKPOINTS, selection, selectionArgs);
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            return mDatabase.update(TrackLayer.TABLE_TRACKPOINTS, values, selection, selectionArgs);
+        }
+
+        void close() {
+            mDatabase.close();
+        }
+    }
+
+    /**
+     * Minimal HTTP/1.1 server answering packets with queued response codes, 200 by default
+     */
+    static class HubStub implements Runnable {
+        final List<Integer> mCodes = new CopyOnWriteArrayList<>();
+        volatile boolean mIsGzipped;
+        private final ServerSocket mSocket;
+        private final Thread mThread;
+        private volatile int mPointsCount;
+
+        HubStub() throws IOException {
+            mSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+            mThread = new Thread(this);
+            mThread.start();
+        }
+
+        String getUrl() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/ng-mobile/test/packet";
+        }
+
+        int getPointsCount() {
+            return mPointsCount;
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    Socket client = mSocket.accept();
+                    try {
+                        handle(client);
+                    } finally {
+                        client.close();
+                    }
+                } catch (Exception ignored) {
+                }
+            }
+        }
+
+        private void handle(Socket client) throws Exception {
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            int length = 0;
+            boolean isGzipped = false;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                String header = line.toLowerCase();
+                if (header.startsWith("content-length:"))
+                    length = Integer.parseInt(header.substring(15).trim());
+                else if (header.startsWith("content-encoding:") && header.contains("gzip"))
+                    isGzipped = true;
+            }
+
+            byte[] body = new byte[length];
+            int read = 0;
+            while (read < length) {
+                int count = in.read(body, read, length - read);
+                if (count < 0)
+                    break;
+                read += count;
+            }
+
+            int code = mCodes.isEmpty() ? 200 : mCodes.remove(0);
+            if (code >= 200 && code < 300) {
+                InputStream payload = new ByteArrayInputStream(body);
+                if (isGzipped)
+                    payload = new GZIPInputStream(payload);
+                ByteArrayOutputStream json = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int count;
+                while ((count = payload.read(buffer)) > 0)
+                    json.write(buffer, 0, count);
+
+                mPointsCount += new JSONArray(json.toString("UTF-8")).length();
+                mIsGzipped |= isGzipped;
+            }
+
+            OutputStream out = client.getOutputStream();
+            out.write(("HTTP/1.1 " + code + " Stub\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+            out.flush();
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n')
+                if (c != '\r')
+                    line.append((char) c);
+            return line.toString();
+        }
+
+        void close() throws InterruptedException {
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+            }
+            mThread.join();
+        }
+    }
+}
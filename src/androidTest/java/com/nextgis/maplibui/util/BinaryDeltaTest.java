@@ -0,0 +1,130 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.test.AndroidTestCase;
+
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+
+/**
+ * Checks {@link BinaryDelta} round trips on geometry blobs of typical edits: the delta turns the
+ * old blob into the new one and back, also after it was written and read again.
+ */
+public class BinaryDeltaTest extends AndroidTestCase {
+    private static final int VERTICES = 100;
+
+    public void testVertexMove() throws Exception {
+        double[][] points = createRing(VERTICES);
+        byte[] a = createPolygon(points).toBlob();
+        points[VERTICES / 2][0] += 10;
+        points[VERTICES / 2][1] -= 10;
+        byte[] b = createPolygon(points).toBlob();
+
+        check(a, b);
+    }
+
+    public void testVertexInsertAndDelete() throws Exception {
+        double[][] points = createRing(VERTICES);
+        byte[] a = createPolygon(points).toBlob();
+
+        double[][] inserted = new double[VERTICES + 1][];
+        System.arraycopy(points, 0, inserted, 0, VERTICES / 2);
+        inserted[VERTICES / 2] = new double[]{points[VERTICES / 2][0] + 5, points[VERTICES / 2][1] + 5};
+        System.arraycopy(points, VERTICES / 2, inserted, VERTICES / 2 + 1, VERTICES - VERTICES / 2);
+        byte[] b = createPolygon(inserted).toBlob();
+
+        check(a, b);
+        check(b, a);
+    }
+
+    public void testRingAddAndRemove() throws Exception {
+        GeoPolygon polygon = createPolygon(createRing(VERTICES));
+        byte[] a = polygon.toBlob();
+
+        GeoLinearRing hole = new GeoLinearRing();
+        for (double[] point : createRing(10)) {
+            hole.add(new GeoPoint(point[0] / 2 + 2093500.0, point[1] / 2 + 3754500.0));
+        }
+        polygon.addInnerRing(hole);
+        byte[] b = polygon.toBlob();
+
+        check(a, b);
+        check(b, a);
+    }
+
+    public void testFullCheckpoint() throws Exception {
+        // no byte in common, the delta keeps both arrays
+        byte[] a = new byte[256];
+        byte[] b = new byte[300];
+        Arrays.fill(a, (byte) 1);
+        Arrays.fill(b, (byte) 2);
+
+        BinaryDelta delta = check(a, b);
+        assertEquals(a.length + b.length, delta.getSize());
+    }
+
+    private static BinaryDelta check(byte[] a, byte[] b) throws Exception {
+        BinaryDelta delta = BinaryDelta.create(a, b);
+        assertTrue(Arrays.equals(b, delta.apply(a)));
+        assertTrue(Arrays.equals(a, delta.revert(b)));
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(buffer);
+        delta.write(output);
+        output.close();
+
+        BinaryDelta read = BinaryDelta.read(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+        assertEquals(delta.getSize(), read.getSize());
+        assertTrue(Arrays.equals(b, read.apply(a)));
+        assertTrue(Arrays.equals(a, read.revert(b)));
+        return delta;
+    }
+
+    // closed circle, the last vertex repeats the first one
+    private static double[][] createRing(int vertices) {
+        double[][] points = new double[vertices][];
+        for (int i = 0; i < vertices; i++) {
+            double angle = 2 * Math.PI * (i % (vertices - 1)) / (vertices - 1);
+            points[i] = new double[]{4187000.0 + 1000 * Math.cos(angle), 7509000.0 + 1000 * Math.sin(angle)};
+        }
+
+        return points;
+    }
+
+    private static GeoPolygon createPolygon(double[][] points) {
+        GeoLinearRing ring = new GeoLinearRing();
+        for (double[] point : points) {
+            ring.add(new GeoPoint(point[0], point[1]));
+        }
+
+        GeoPolygon polygon = new GeoPolygon();
+        polygon.setOuterRing(ring);
+        return polygon;
+    }
+}
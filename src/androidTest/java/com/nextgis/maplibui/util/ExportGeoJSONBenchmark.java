@@ -0,0 +1,166 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.util.Constants;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_GEOMETRY;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_PROPERTIES;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE_FEATURES;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE_Feature;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE_FeatureCollection;
+
+/**
+ * Compares peak heap and throughput of the GeoJSON export which builds the whole collection in
+ * memory with the streaming one. Features are generated on the fly, so the heap growth comes from
+ * the export path only.
+ */
+public class ExportGeoJSONBenchmark extends AndroidTestCase {
+    private static final int FEATURES = 50000;
+
+    public void testStreamingExport() throws Exception {
+        File file = new File(getContext().getCacheDir(), "benchmark.zip");
+
+        HeapSampler sampler = new HeapSampler();
+        long start = System.nanoTime();
+        writeInMemory(file);
+        long inMemoryTime = System.nanoTime() - start;
+        long inMemoryPeak = sampler.stop();
+
+        sampler = new HeapSampler();
+        start = System.nanoTime();
+        writeStreaming(file);
+        long streamingTime = System.nanoTime() - start;
+        long streamingPeak = sampler.stop();
+        file.delete();
+
+        Log.i(Constants.TAG, "GeoJSON export of " + FEATURES + " features: in memory "
+                + inMemoryPeak / 1024 + " KB peak, " + getRate(inMemoryTime) + " features/s; streaming "
+                + streamingPeak / 1024 + " KB peak, " + getRate(streamingTime) + " features/s");
+        assertTrue(streamingPeak < inMemoryPeak);
+    }
+
+    private static long getRate(long nanos) {
+        return FEATURES * 1000000000L / Math.max(1, nanos);
+    }
+
+    private static JSONObject createFeature(int id) throws JSONException {
+        JSONObject properties = new JSONObject();
+        properties.put(Constants.FIELD_ID, id);
+        properties.put("name", "Feature " + id);
+        properties.put("value", id * 0.5);
+
+        JSONObject feature = new JSONObject();
+        feature.put(GEOJSON_TYPE, GEOJSON_TYPE_Feature);
+        feature.put(GEOJSON_PROPERTIES, properties);
+        feature.put(GEOJSON_GEOMETRY, new GeoPoint(id * 10.0, id * 20.0).toJSON());
+        return feature;
+    }
+
+    // export path before streaming, the whole collection is kept as objects and as a string
+    private static void writeInMemory(File file) throws IOException, JSONException {
+        ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put(GEOJSON_TYPE, GEOJSON_TYPE_FeatureCollection);
+            JSONArray features = new JSONArray();
+            for (int i = 0; i < FEATURES; i++)
+                features.put(createFeature(i));
+            obj.put(GEOJSON_TYPE_FEATURES, features);
+
+            zos.putNextEntry(new ZipEntry("layer.geojson"));
+            zos.write(obj.toString().getBytes());
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+    }
+
+    private static void writeStreaming(File file) throws IOException, JSONException {
+        ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+        try {
+            zos.putNextEntry(new ZipEntry("layer.geojson"));
+            FeatureCollectionWriter writer = new FeatureCollectionWriter(zos);
+            for (int i = 0; i < FEATURES; i++)
+                writer.write(createFeature(i));
+            writer.finish();
+            zos.closeEntry();
+        } finally {
+            zos.close();
+        }
+    }
+
+    /**
+     * Polls used heap in background and keeps the maximal growth since creation
+     */
+    static class HeapSampler implements Runnable {
+        private final Thread mThread;
+        private final long mBase;
+        private volatile boolean mIsRunning = true;
+        private volatile long mPeak;
+
+        HeapSampler() {
+            Runtime.getRuntime().gc();
+            mBase = getUsed();
+            mThread = new Thread(this);
+            mThread.start();
+        }
+
+        private static long getUsed() {
+            Runtime runtime = Runtime.getRuntime();
+            return runtime.totalMemory() - runtime.freeMemory();
+        }
+
+        @Override
+        public void run() {
+            while (mIsRunning) {
+                mPeak = Math.max(mPeak, getUsed() - mBase);
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long stop() throws InterruptedException {
+            mIsRunning = false;
+            mThread.join();
+            return Math.max(mPeak, getUsed() - mBase);
+        }
+    }
+}
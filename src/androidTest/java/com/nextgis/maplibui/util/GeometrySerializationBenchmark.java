@@ -0,0 +1,126 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Compares size and round trip time of the formats a geometry can be handed over with: Java
+ * serialization used by Serializable extras, WKT and the blob format {@link GeometryStore} writes.
+ */
+public class GeometrySerializationBenchmark extends AndroidTestCase {
+    private static final int VERTICES = 10000;
+    private static final int RUNS = 10;
+
+    public void testRingRoundTrip() throws Exception {
+        GeoPolygon polygon = createPolygon();
+
+        // warm up
+        serialize(polygon);
+        wkt(polygon);
+        blob(polygon);
+
+        long start = System.nanoTime();
+        int serializedSize = 0;
+        for (int i = 0; i < RUNS; i++)
+            serializedSize = serialize(polygon);
+        long serializedTime = (System.nanoTime() - start) / RUNS;
+
+        start = System.nanoTime();
+        int wktSize = 0;
+        for (int i = 0; i < RUNS; i++)
+            wktSize = wkt(polygon);
+        long wktTime = (System.nanoTime() - start) / RUNS;
+
+        start = System.nanoTime();
+        int blobSize = 0;
+        for (int i = 0; i < RUNS; i++)
+            blobSize = blob(polygon);
+        long blobTime = (System.nanoTime() - start) / RUNS;
+
+        Log.i(Constants.TAG, "Round trip of " + VERTICES + " vertices ring: serializable "
+                + serializedSize + " B, " + serializedTime / 1000 + " us; WKT " + wktSize + " B, "
+                + wktTime / 1000 + " us; blob " + blobSize + " B, " + blobTime / 1000 + " us");
+        assertTrue(blobSize < serializedSize);
+        assertTrue(blobSize < wktSize);
+    }
+
+    private static GeoPolygon createPolygon() {
+        GeoLinearRing ring = new GeoLinearRing();
+        // closed circle, the last vertex repeats the first one
+        for (int i = 0; i < VERTICES; i++) {
+            double angle = 2 * Math.PI * (i % (VERTICES - 1)) / (VERTICES - 1);
+            ring.add(new GeoPoint(4187000.0 + 1000 * Math.cos(angle), 7509000.0 + 1000 * Math.sin(angle)));
+        }
+
+        GeoPolygon polygon = new GeoPolygon();
+        polygon.setOuterRing(ring);
+        return polygon;
+    }
+
+    private static void check(GeoPolygon expected, GeoGeometry actual) {
+        assertTrue(actual instanceof GeoPolygon);
+        GeoLinearRing ring = ((GeoPolygon) actual).getOuterRing();
+        assertEquals(VERTICES, ring.getPointCount());
+        GeoPoint point = expected.getOuterRing().getPoints().get(VERTICES / 3);
+        assertEquals(point.getX(), ring.getPoints().get(VERTICES / 3).getX(), 1e-6);
+        assertEquals(point.getY(), ring.getPoints().get(VERTICES / 3).getY(), 1e-6);
+    }
+
+    private static int serialize(GeoPolygon polygon) throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream output = new ObjectOutputStream(buffer);
+        output.writeObject(polygon);
+        output.close();
+        byte[] data = buffer.toByteArray();
+
+        ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(data));
+        check(polygon, (GeoGeometry) input.readObject());
+        input.close();
+        return data.length;
+    }
+
+    private static int wkt(GeoPolygon polygon) throws Exception {
+        String wkt = polygon.toWKT(true);
+        check(polygon, GeoGeometryFactory.fromWKT(wkt, GeoConstants.CRS_WEB_MERCATOR));
+        return wkt.getBytes("UTF-8").length;
+    }
+
+    private static int blob(GeoPolygon polygon) throws Exception {
+        byte[] data = polygon.toBlob();
+        check(polygon, GeoGeometryFactory.fromBlob(data));
+        return data.length;
+    }
+}
@@ -35,6 +35,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
 import android.util.Log;
@@ -48,10 +49,12 @@ import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.PermissionUtil;
 import com.nextgis.maplib.util.SettingsConstants;
+import com.nextgis.maplibui.mapui.LayerConfigPrefetcher;
 import com.nextgis.maplibui.mapui.LayerFactoryUI;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
 import com.nextgis.maplibui.util.SettingsConstantsUI;
+import com.nextgis.maplibui.util.TileCacheManager;
 
 import java.io.File;
 import java.io.IOException;
@@ -90,6 +93,7 @@ public abstract class GISApplication extends Application
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 
         getMap();
+        TileCacheManager.start(this);
 
         boolean mIsDarkTheme = ControlHelper.isDarkTheme(this);
         setTheme(getThemeId(mIsDarkTheme));
@@ -140,10 +144,37 @@ public abstract class GISApplication extends Application
 
         File mapFullPath = new File(mapPath, mapName + MAP_EXT);
 
+        // layer configs are parsed in parallel while the background is decoded
+        long start = SystemClock.elapsedRealtime();
+        LayerFactory factory = getLayerFactory();
+        LayerConfigPrefetcher prefetcher = null;
+        int count = 0;
+        if (factory instanceof LayerFactoryUI) {
+            prefetcher = new LayerConfigPrefetcher();
+            count = prefetcher.prefetch(mapFullPath);
+            ((LayerFactoryUI) factory).setPrefetcher(prefetcher);
+        }
+        long skeleton = SystemClock.elapsedRealtime();
+
         final Bitmap bkBitmap = getMapBackground();
-        mMap = new MapDrawable(bkBitmap, this, mapFullPath, getLayerFactory());
+        mMap = new MapDrawable(bkBitmap, this, mapFullPath, factory);
         mMap.setName(mapName);
+        long background = SystemClock.elapsedRealtime();
+
         mMap.load();
+        long loaded = SystemClock.elapsedRealtime();
+
+        if (null != prefetcher) {
+            // later reloads read configs from files
+            ((LayerFactoryUI) factory).setPrefetcher(null);
+            prefetcher.shutdown();
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "Map startup: " + count + " layers, skeleton " + (skeleton - start)
+                    + " ms, background " + (background - skeleton) + " ms, layers "
+                    + (loaded - background) + " ms, total " + (loaded - start) + " ms");
+        }
 
         return mMap;
     }
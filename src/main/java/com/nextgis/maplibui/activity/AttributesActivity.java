@@ -41,7 +41,6 @@ import com.inqbarna.tablefixheaders.adapters.BaseTableAdapter;
 import com.nextgis.maplib.api.IGISApplication;
 import com.nextgis.maplib.api.ILayer;
 import com.nextgis.maplib.datasource.Feature;
-import com.nextgis.maplib.datasource.Field;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapDrawable;
@@ -52,11 +51,10 @@ import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.IVectorLayerUI;
 import com.nextgis.maplibui.fragment.BottomToolbar;
 import com.nextgis.maplibui.util.ConstantsUI;
+import com.nextgis.maplibui.util.FeatureTableAdapter;
 import com.nextgis.maplibui.util.MatrixTableAdapter;
 import com.nextgis.maplibui.util.SettingsConstantsUI;
 
-import java.util.List;
-
 import static com.nextgis.maplib.util.Constants.FIELD_ID;
 
 public class AttributesActivity extends NGActivity {
@@ -66,6 +64,9 @@ public class AttributesActivity extends NGActivity {
     protected Long mId;
     protected int mLayerId;
     protected BroadcastReceiver mReceiver;
+    protected FeatureTableAdapter mAdapter;
+    protected String mSortColumn;
+    protected boolean mSortAscending;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -158,7 +159,11 @@ public class AttributesActivity extends NGActivity {
         mReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                mTable.setAdapter(getAdapter());
+                long id = intent.getLongExtra(FIELD_ID, Constants.NOT_FOUND);
+                if (mAdapter != null && Constants.NOTIFY_DELETE.equals(intent.getAction()) && id != Constants.NOT_FOUND)
+                    mAdapter.onFeatureDeleted();
+                else
+                    mTable.setAdapter(getAdapter());
             }
         };
     }
@@ -200,36 +205,25 @@ public class AttributesActivity extends NGActivity {
     }
 
     public BaseTableAdapter getAdapter() {
-        MatrixTableAdapter<String> adapter = new MatrixTableAdapter<>(this);
-
-        if (mLayer == null)
-            return adapter;
-
-        List<Long> ids = mLayer.query(null);
-        List<Field> fields = mLayer.getFields();
-        int rows = ids.size() + 1;
-        for (int i = 0; i < ids.size(); i++) {
-            Feature feature = mLayer.getFeature(ids.get(i));
-            if (feature == null) {
-                rows = 1;
-                Toast.makeText(this, R.string.error_cache, Toast.LENGTH_LONG).show();
-                break;
-            }
+        if (mLayer == null) {
+            mAdapter = null;
+            return new MatrixTableAdapter<>(this, new String[][]{{FIELD_ID}});
         }
 
-        String[][] data = new String[rows][fields.size() + 1];
-        data[0][0] = FIELD_ID;
-        for (int i = 0; i < fields.size(); i++)
-            data[0][i + 1] = fields.get(i).getAlias();
+        final FeatureTableAdapter adapter = new FeatureTableAdapter(this, mLayer);
+        mAdapter = adapter;
+        if (mSortColumn != null)
+            adapter.setSortOrder(mSortColumn, mSortAscending);
 
-        if (rows > 1)
-            for (int i = 0; i < ids.size(); i++) {
-                Feature feature = mLayer.getFeature(ids.get(i));
-                data[i + 1][0] = feature.getId() + "";
-                for (int j = 0; j < fields.size(); j++)
-                    data[i + 1][j + 1] = feature.getFieldValueAsString(fields.get(j).getName());
+        adapter.setOnHeaderClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View view) {
+                String column = (String) view.getTag(R.id.text1);
+                mSortAscending = !column.equals(mSortColumn) || !mSortAscending;
+                mSortColumn = column;
+                adapter.setSortOrder(mSortColumn, mSortAscending);
             }
-
+        });
         adapter.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View view) {
@@ -254,7 +248,6 @@ public class AttributesActivity extends NGActivity {
                 }
             }
         });
-        adapter.setInformation(data);
         return adapter;
     }
 
@@ -74,11 +74,11 @@ import com.nextgis.maplibui.formcontrol.Tabs;
 import com.nextgis.maplibui.formcontrol.TextEdit;
 import com.nextgis.maplibui.formcontrol.TextLabel;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.FormCache;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import java.io.File;
 import java.io.IOException;
@@ -164,6 +164,7 @@ public class FormBuilderModifyAttributesActivity extends ModifyAttributesActivit
                         JSONObject metaJson = new JSONObject(metaString);
                         metaJson.remove(JSON_KEY_LIST_SAVED_KEY);
                         FileUtil.writeToFile(mMeta, metaJson.toString());
+                        FormCache.invalidate(mMeta);
                         refreshActivityView();
                     } catch (JSONException | IOException ignored) {}
                 }
@@ -189,14 +190,13 @@ public class FormBuilderModifyAttributesActivity extends ModifyAttributesActivit
             int orientation = getResources().getConfiguration().orientation;
             boolean isLand = orientation == Configuration.ORIENTATION_LANDSCAPE;
 
-            String formString = FileUtil.readFromFile(form);
-            Object json = new JSONTokener(formString).nextValue();
+            Object json = FormCache.get(form);
             if (json instanceof JSONArray) {
-                JSONArray elements = new JSONArray(formString);
+                JSONArray elements = (JSONArray) json;
                 if (elements.length() > 0)
                     fillTabControls(layout, savedState, elements);
             } else {
-                JSONObject jsonFormContents = new JSONObject(formString);
+                JSONObject jsonFormContents = (JSONObject) json;
                 JSONArray tabs = jsonFormContents.getJSONArray(JSON_TABS_KEY);
 
                 for (int i = 0; i < tabs.length(); i++) {
@@ -240,8 +240,7 @@ public class FormBuilderModifyAttributesActivity extends ModifyAttributesActivit
         mMeta = (File) extras.getSerializable(KEY_META_PATH);
         if (mMeta != null && mMeta.exists()) {
             try {
-                String metaString = FileUtil.readFromFile(mMeta);
-                final JSONObject metaJson = new JSONObject(metaString);
+                final JSONObject metaJson = (JSONObject) FormCache.get(mMeta);
                 if (metaJson.has(JSON_LISTS_KEY) && !metaJson.isNull(JSON_LISTS_KEY)) {
                     JSONObject lists = metaJson.getJSONObject(JSON_LISTS_KEY);
                     Iterator<String> i = lists.keys();
@@ -269,9 +268,11 @@ public class FormBuilderModifyAttributesActivity extends ModifyAttributesActivit
                                     finish();
                                 else {
                                     try {
-                                        metaJson.put(JSON_KEY_LIST_SAVED_KEY, mRow);
-                                        FileUtil.writeToFile(mMeta, metaJson.toString());
+                                        JSONObject meta = new JSONObject(metaJson.toString());
+                                        meta.put(JSON_KEY_LIST_SAVED_KEY, mRow);
+                                        FileUtil.writeToFile(mMeta, meta.toString());
                                     } catch (JSONException | IOException ignored) {}
+                                    FormCache.invalidate(mMeta);
                                     fillControls(layout, savedState);
                                 }
                             }
@@ -375,7 +376,8 @@ public class FormBuilderModifyAttributesActivity extends ModifyAttributesActivit
         List<Field> fields = mLayer.getFields();
         for (int i = 0; i < elements.length(); i++) {
             IFormControl control;
-            JSONObject element = elements.getJSONObject(i);
+            // parsed form is shared by FormCache, user data and counter values go to a copy
+            JSONObject element = new JSONObject(elements.getJSONObject(i).toString());
             String type = element.optString(JSON_TYPE_KEY);
             if (type.equals(JSON_COORDINATES_VALUE)) {
                 JSONObject attributes = element.getJSONObject(JSON_ATTRIBUTES_KEY);
@@ -615,12 +617,24 @@ public class FormBuilderModifyAttributesActivity extends ModifyAttributesActivit
     protected boolean saveFeature() {
         boolean success = super.saveFeature();
         if (success)
-            for (Field field : mLayer.getFields())
-                saveLastValue(field);
+            saveLastValues();
 
         return success;
     }
 
+    @Override
+    protected void onFeatureSaved(long featureId, boolean success) {
+        if (success)
+            saveLastValues();
+
+        super.onFeatureSaved(featureId, success);
+    }
+
+    private void saveLastValues() {
+        for (Field field : mLayer.getFields())
+            saveLastValue(field);
+    }
+
     protected Object putFieldValue(ContentValues values, Field field) {
         Object value = super.putFieldValue(values, field);
         IFormControl control = (IFormControl) mFields.get(field.getName());
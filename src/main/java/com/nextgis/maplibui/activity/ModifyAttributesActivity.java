@@ -25,7 +25,6 @@ package com.nextgis.maplibui.activity;
 
 import android.Manifest;
 import android.annotation.SuppressLint;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -66,11 +65,8 @@ import com.nextgis.maplib.location.AccurateLocationTaker;
 import com.nextgis.maplib.location.GpsEventSource;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.VectorLayer;
-import com.nextgis.maplib.util.Constants;
-import com.nextgis.maplib.util.FileUtil;
 import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.LocationUtil;
-import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplib.util.PermissionUtil;
 import com.nextgis.maplib.util.SettingsConstants;
 import com.nextgis.maplibui.R;
@@ -84,16 +80,14 @@ import com.nextgis.maplibui.formcontrol.AutoTextEdit;
 import com.nextgis.maplibui.formcontrol.Sign;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.GeometryStore;
 import com.nextgis.maplibui.util.NotificationHelper;
+import com.nextgis.maplibui.util.SaveFeatureTask;
 import com.nextgis.maplibui.util.SettingsConstantsUI;
 
 import org.json.JSONException;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.text.DecimalFormat;
 import java.util.Collections;
 import java.util.Comparator;
@@ -141,6 +135,7 @@ public class ModifyAttributesActivity
     protected int mMaxTakeCount;
     protected boolean mIsGeometryChanged;
     protected boolean mIsViewOnly;
+    protected boolean mIsSaving;
     protected SoundPool mSoundPool;
     private int mBeepId;
 
@@ -315,7 +310,7 @@ public class ModifyAttributesActivity
                 mFeatureId = extras.getLong(KEY_FEATURE_ID);
                 mIsViewOnly = extras.getBoolean(KEY_VIEW_ONLY, false);
                 mIsGeometryChanged = extras.getBoolean(KEY_GEOMETRY_CHANGED, true);
-                mGeometry = (GeoGeometry) extras.getSerializable(KEY_GEOMETRY);
+                mGeometry = GeometryStore.getExtra(this, extras, KEY_GEOMETRY);
                 LinearLayout layout = findViewById(R.id.controls_list);
                 fillControls(layout, savedState);
             } else {
@@ -435,6 +430,17 @@ public class ModifyAttributesActivity
     }
 
 
+    @Override
+    protected void onDestroy()
+    {
+        // geometry is not needed anymore when the form is closed
+        if (isFinishing())
+            GeometryStore.remove(this, getIntent().getStringExtra(KEY_GEOMETRY));
+
+        super.onDestroy();
+    }
+
+
     @Override
     protected void onResume()
     {
@@ -478,8 +484,7 @@ public class ModifyAttributesActivity
                     .setPositiveButton(R.string.save, new DialogInterface.OnClickListener() {
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
-                            if (saveFeature())
-                                finish();
+                            saveFeatureAsync();
                         }
                     })
                     .setNegativeButton(R.string.discard, new DialogInterface.OnClickListener() {
@@ -508,8 +513,7 @@ public class ModifyAttributesActivity
             app.showSettings(SettingsConstantsUI.ACTION_PREFS_GENERAL);
             return true;
         } else if (id == R.id.menu_apply) {
-            if (saveFeature())
-                finish();
+            saveFeatureAsync();
             return true;
         }
 
@@ -586,15 +590,65 @@ public class ModifyAttributesActivity
     }
 
 
+    /**
+     * Save the feature on the calling thread and set the activity result
+     *
+     * @return true if the feature is saved
+     */
     protected boolean saveFeature()
     {
-        if (mIsViewOnly) {
+        if (mIsSaving) {
+            return false;
+        }
+
+        SaveFeatureTask task = createSaveTask(null);
+        if (null == task || !task.save()) {
+            return false;
+        }
+
+        setFeatureResult(task.getFeatureId());
+        return true;
+    }
+
+
+    /**
+     * Start saving the feature in background, onFeatureSaved is called when it is done
+     *
+     * @return true if saving was started
+     */
+    protected boolean saveFeatureAsync()
+    {
+        if (mIsSaving) {
+            return false;
+        }
+
+        SaveFeatureTask task = createSaveTask(new SaveFeatureTask.OnFeatureSavedListener() {
+            @Override
+            public void onFeatureSaved(long featureId, boolean success)
+            {
+                mIsSaving = false;
+                ModifyAttributesActivity.this.onFeatureSaved(featureId, success);
+            }
+        });
+        if (null == task) {
             return false;
         }
 
+        mIsSaving = true;
+        task.execute();
+        return true;
+    }
+
+
+    protected SaveFeatureTask createSaveTask(SaveFeatureTask.OnFeatureSavedListener listener)
+    {
+        if (mIsViewOnly) {
+            return null;
+        }
+
         if (mLayer == null) {
             Toast.makeText(this, R.string.error_layer_not_inited, Toast.LENGTH_SHORT).show();
-            return false;
+            return null;
         }
 
         //create new row or modify existing
@@ -606,7 +660,7 @@ public class ModifyAttributesActivity
             IControl control = mFields.get(field.getName());
             if (control instanceof AutoTextEdit) {
                 if (((AutoTextEdit) control).isNotFromList()) {
-                    return false;
+                    return null;
                 }
             }
         }
@@ -621,79 +675,58 @@ public class ModifyAttributesActivity
         Uri uri = Uri.parse(
                 "content://" + app.getAuthority() + "/" + mLayer.getPath().getName());
 
-        boolean error;
-        if (mFeatureId == NOT_FOUND) {
-            // we need to get proper mFeatureId for new features first
-            Uri result = getContentResolver().insert(uri, values);
-            if (error = result == null)
-                Toast.makeText(this, getText(R.string.error_db_insert), Toast.LENGTH_SHORT).show();
-            else
-                mFeatureId = Long.parseLong(result.getLastPathSegment());
-        } else {
-            Uri updateUri = ContentUris.withAppendedId(uri, mFeatureId);
-            boolean valuesUpdated = getContentResolver().update(updateUri, values, null, null) == 1;
-            if (error = !valuesUpdated)
-                Toast.makeText(this, getText(R.string.error_db_update), Toast.LENGTH_SHORT).show();
-        }
+        SaveFeatureTask task = new SaveFeatureTask(this, uri, mLayer.getPath(), mFeatureId, values, listener);
 
         for (Map.Entry<String, IControl> field : mFields.entrySet()) {
             if (field.getKey().startsWith(PhotoGallery.GALLERY_PREFIX) && field.getValue() instanceof PhotoGallery)
-                putAttaches((PhotoGallery) field.getValue());
+                putAttaches(task, (PhotoGallery) field.getValue());
         }
-        putSign();
+        putSign(task);
+
+        task.setMaxPhotoSize(getMaxPhotoSize());
+        return task;
+    }
+
+
+    /**
+     * Called on the UI thread when saving started by saveFeatureAsync is finished
+     */
+    protected void onFeatureSaved(long featureId, boolean success)
+    {
+        if (!success)
+            return;
+
+        setFeatureResult(featureId);
+        finish();
+    }
+
+
+    protected void setFeatureResult(long featureId)
+    {
+        mFeatureId = featureId;
         Intent data = new Intent();
         data.putExtra(ConstantsUI.KEY_FEATURE_ID, mFeatureId);
         setResult(RESULT_OK, data);
-        return !error;
     }
 
 
-    protected void putSign() {
+    protected int getMaxPhotoSize()
+    {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        try {
+            return Integer.parseInt(preferences.getString(SettingsConstantsUI.KEY_PREF_PHOTO_MAX_SIZE, "0"));
+        } catch (NumberFormatException | ClassCastException e) {
+            return 0;
+        }
+    }
+
+
+    protected void putSign(SaveFeatureTask task) {
         LinearLayout layout = findViewById(R.id.controls_list);
         for (int i = 0; i < layout.getChildCount(); i++) {
             View child = layout.getChildAt(i);
-            if (child instanceof Sign) {
-                IGISApplication application = (IGISApplication) getApplication();
-                Uri uri = Uri.parse("content://" + application.getAuthority() + "/" +
-                        mLayer.getPath().getName() + "/" + mFeatureId + "/" + Constants.URI_ATTACH);
-
-                ContentValues values = new ContentValues();
-                values.put(VectorLayer.ATTACH_DISPLAY_NAME, "_signature");
-                values.put(VectorLayer.ATTACH_DESCRIPTION, "_signature");
-                values.put(VectorLayer.ATTACH_MIME_TYPE, "image/jpeg");
-
-                String selection = VectorLayer.ATTACH_ID + " =  ?";
-                String[] args = new String[]{Sign.SIGN_FILE};
-                Cursor saved = getContentResolver().query(uri, null, selection, args, null);
-                boolean hasSign = false;
-                if (saved != null) {
-                    hasSign = saved.moveToFirst();
-                    saved.close();
-                }
-
-                if (!hasSign) {
-                    Uri result = getContentResolver().insert(uri, values);
-                    if (result != null) {
-                        long id = Long.parseLong(result.getLastPathSegment());
-                        values.clear();
-                        values.put(VectorLayer.ATTACH_ID, Integer.MAX_VALUE);
-                        uri = Uri.withAppendedPath(uri, id + "");
-                        getContentResolver().update(uri, values, null, null);
-                    }
-                }
-
-                File png = new File(mLayer.getPath(), mFeatureId + "");
-                Sign sign = (Sign) child;
-                try {
-                    if (!png.isDirectory())
-                        FileUtil.createDir(png);
-
-                    png = new File(png, Sign.SIGN_FILE);
-                    sign.save(sign.getWidth(), sign.getHeight(), true, png);
-                } catch (IOException | RuntimeException e) {
-                    e.printStackTrace();
-                }
-            }
+            if (child instanceof Sign)
+                task.addSign((Sign) child);
         }
     }
 
@@ -770,80 +803,16 @@ public class ModifyAttributesActivity
         return true;
     }
 
-    protected int putAttaches(PhotoGallery gallery) {
-        int total = 0;
-        if (gallery != null && mFeatureId != NOT_FOUND) {
-            List<Integer> deletedAttaches = gallery.getDeletedAttaches();
-            IGISApplication application = (IGISApplication) getApplication();
-            Uri uri = Uri.parse("content://" + application.getAuthority() + "/" +
-                    mLayer.getPath().getName() + "/" + mFeatureId + "/" + Constants.URI_ATTACH);
-
-            int size = deletedAttaches.size();
-            String[] args = new String[size];
-            for (int i = 0; i < size; i++)
-                args[i] = deletedAttaches.get(i).toString();
-
-            if (size > 0)
-                total += getContentResolver().delete(uri, MapUtil.makePlaceholders(size), args);
-
-            if (total == 0 && size > 0) {
-                Toast.makeText(this, getText(R.string.photo_fail_attach), Toast.LENGTH_SHORT).show();
-                Log.d(TAG, "attach delete failed");
-            } else {
-                Log.d(TAG, "attach delete success: " + total);
-            }
-
-            List<String> imagesPath = gallery.getNewAttaches();
-            String comment = gallery.getComment();
-            for (String path : imagesPath) {
-                String[] segments = path.split("/");
-                String name = segments.length > 0 ? segments[segments.length - 1] : "image.jpg";
-                ContentValues values = new ContentValues();
-                values.put(VectorLayer.ATTACH_DISPLAY_NAME, name);
-                if (comment != null && !comment.isEmpty())
-                    values.put(VectorLayer.ATTACH_DESCRIPTION, comment);
-                values.put(VectorLayer.ATTACH_MIME_TYPE, "image/jpeg");
-
-                Uri result = getContentResolver().insert(uri, values);
-                if (result == null) {
-                    Toast.makeText(this, getText(R.string.photo_fail_attach), Toast.LENGTH_SHORT).show();
-                    Log.d(TAG, "attach insert failed");
-                } else {
-                    if (copyToStream(result, path))
-                        total++;
-
-                    Log.d(TAG, "attach insert success: " + result.toString());
-                }
-            }
-        }
-
-        return total;
-    }
-
-    protected boolean copyToStream(Uri uri, String path) {
-        try {
-            OutputStream outStream = getContentResolver().openOutputStream(uri);
-
-            if (outStream != null) {
-                InputStream inStream = new FileInputStream(path);
-                byte[] buffer = new byte[8192];
-                int counter;
-
-                while ((counter = inStream.read(buffer, 0, buffer.length)) > 0) {
-                    outStream.write(buffer, 0, counter);
-                    outStream.flush();
-                }
-
-                outStream.close();
-                inStream.close();
+    protected void putAttaches(SaveFeatureTask task, PhotoGallery gallery) {
+        if (gallery == null)
+            return;
 
-                return true;
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        for (Integer id : gallery.getDeletedAttaches())
+            task.addDeletedAttach(id);
 
-        return false;
+        String comment = gallery.getComment();
+        for (String path : gallery.getNewAttaches())
+            task.addPhoto(path, comment);
     }
 
 
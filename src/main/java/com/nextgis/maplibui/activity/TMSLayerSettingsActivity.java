@@ -24,7 +24,9 @@
 package com.nextgis.maplibui.activity;
 
 import android.content.DialogInterface;
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.v4.app.Fragment;
 import android.support.v7.widget.SwitchCompat;
 import android.view.LayoutInflater;
@@ -45,6 +47,10 @@ import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.fragment.LayerGeneralSettingsFragment;
 import com.nextgis.maplibui.util.ClearCacheTask;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.SettingsConstantsUI;
+import com.nextgis.maplibui.util.TileCacheManager;
+
+import java.util.Arrays;
 
 /**
  * TMS layer settings activity. Include common settings (layer name) and renderer settings.
@@ -247,6 +253,31 @@ public class TMSLayerSettingsActivity
                         }
                     });
 
+            // shared by all remote raster layers, see TileCacheManager
+            final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getActivity());
+            final String[] maxSizes = getResources().getStringArray(R.array.tile_cache_max_size_val);
+            String maxSize = TileCacheManager.getMaxSize(getActivity()) / 1024 / 1024 + "";
+            // a value set elsewhere is kept until another item is picked
+            final int[] shown = new int[]{Math.max(0, Arrays.asList(maxSizes).indexOf(maxSize))};
+            Spinner cacheMaxSize = (Spinner) v.findViewById(R.id.tile_cache_max_size);
+            cacheMaxSize.setSelection(shown[0]);
+            cacheMaxSize.setOnItemSelectedListener(
+                    new AdapterView.OnItemSelectedListener() {
+                        @Override
+                        public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                            if (position == shown[0])
+                                return;
+
+                            shown[0] = position;
+                            preferences.edit().putString(SettingsConstantsUI.KEY_PREF_TILE_CACHE_MAX_SIZE, maxSizes[position]).apply();
+                        }
+
+                        @Override
+                        public void onNothingSelected(AdapterView<?> parent) {
+
+                        }
+                    });
+
             Button clearCache = (Button) v.findViewById(R.id.clear_cache);
             clearCache.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -29,7 +29,6 @@ import android.graphics.Path;
 import android.graphics.PointF;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
-import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.VectorLayer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.GeoConstants;
@@ -58,10 +57,16 @@ public class DrawItem {
     protected List<float[]> mDrawItemsVertex;
     protected List<float[]> mDrawItemsEdge;
     protected int mSelectedRing = 0, mSelectedPoint = 0;
+    protected DrawItem mTransformed;
+    protected HitIndex mVertexIndex, mEdgeIndex;
+    protected List<Path> mPaths;
+    protected Path mPathFill;
 
     public DrawItem() {
         mDrawItemsVertex = new ArrayList<>();
         mDrawItemsEdge = new ArrayList<>();
+        mPaths = new ArrayList<>();
+        mPathFill = new Path();
 
         if (mPaint == null) {
             mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -105,65 +110,77 @@ public class DrawItem {
         }
     }
 
+    /**
+     * Get zoomed copy of this item. The copy is reused between calls, so it is valid until the
+     * next zoom or pan call only. No memory is allocated while the geometry does not change.
+     */
     public DrawItem zoom(PointF location, float scale) {
-        DrawItem drawItem = new DrawItem();
-        drawItem.setSelectedRing(mSelectedRing);
-        drawItem.setSelectedPoint(mSelectedPoint);
-
-        for (float[] items : mDrawItemsVertex) {
-            float[] newItems = new float[items.length];
-            for (int i = 0; i < items.length - 1; i += 2) {
-                newItems[i] = items[i] - (1 - scale) * (items[i] + location.x);
-                newItems[i + 1] = items[i + 1] - (1 - scale) * (items[i + 1] + location.y);
-            }
-            drawItem.addVertices(newItems);
+        DrawItem drawItem = getTransformed();
+        for (int i = 0; i < mDrawItemsVertex.size(); i++) {
+            float[] items = mDrawItemsVertex.get(i);
+            Overlay.zoomPoints(items, drawItem.mDrawItemsVertex.get(i), items.length, location, scale);
         }
 
-        for (float[] items : mDrawItemsEdge) {
-            float[] newItems = new float[items.length];
-            for (int i = 0; i < items.length - 1; i += 2) {
-                newItems[i] = items[i] - (1 - scale) * (items[i] + location.x);
-                newItems[i + 1] = items[i + 1] - (1 - scale) * (items[i + 1] + location.y);
-            }
-            drawItem.addEdges(newItems);
+        for (int i = 0; i < mDrawItemsEdge.size(); i++) {
+            float[] items = mDrawItemsEdge.get(i);
+            Overlay.zoomPoints(items, drawItem.mDrawItemsEdge.get(i), items.length, location, scale);
         }
 
         return drawItem;
     }
 
+    /**
+     * Get panned copy of this item. The copy is reused between calls, so it is valid until the
+     * next zoom or pan call only. No memory is allocated while the geometry does not change.
+     */
     public DrawItem pan(PointF offset) {
-        DrawItem drawItem = new DrawItem();
-        drawItem.setSelectedRing(mSelectedRing);
-        drawItem.setSelectedPoint(mSelectedPoint);
-
-        for (float[] items : mDrawItemsVertex) {
-            float[] newItems = new float[items.length];
-            for (int i = 0; i < items.length - 1; i += 2) {
-                newItems[i] = items[i] - offset.x;
-                newItems[i + 1] = items[i + 1] - offset.y;
-            }
-            drawItem.addVertices(newItems);
+        DrawItem drawItem = getTransformed();
+        for (int i = 0; i < mDrawItemsVertex.size(); i++) {
+            float[] items = mDrawItemsVertex.get(i);
+            Overlay.panPoints(items, drawItem.mDrawItemsVertex.get(i), items.length, offset);
         }
 
-        for (float[] items : mDrawItemsEdge) {
-            float[] newItems = new float[items.length];
-            for (int i = 0; i < items.length - 1; i += 2) {
-                newItems[i] = items[i] - offset.x;
-                newItems[i + 1] = items[i + 1] - offset.y;
-            }
-            drawItem.addEdges(newItems);
+        for (int i = 0; i < mDrawItemsEdge.size(); i++) {
+            float[] items = mDrawItemsEdge.get(i);
+            Overlay.panPoints(items, drawItem.mDrawItemsEdge.get(i), items.length, offset);
         }
 
         return drawItem;
     }
 
+    protected DrawItem getTransformed() {
+        if (mTransformed == null)
+            mTransformed = new DrawItem();
+
+        prepareBuffers(mDrawItemsVertex, mTransformed.mDrawItemsVertex);
+        prepareBuffers(mDrawItemsEdge, mTransformed.mDrawItemsEdge);
+        mTransformed.mSelectedRing = mSelectedRing;
+        mTransformed.mSelectedPoint = mSelectedPoint;
+        return mTransformed;
+    }
+
+    protected static void prepareBuffers(List<float[]> source, List<float[]> buffers) {
+        while (buffers.size() > source.size())
+            buffers.remove(buffers.size() - 1);
+
+        for (int i = 0; i < source.size(); i++) {
+            int length = source.get(i) == null ? 0 : source.get(i).length;
+            if (i == buffers.size())
+                buffers.add(new float[length]);
+            else if (buffers.get(i).length != length)
+                buffers.set(i, new float[length]);
+        }
+    }
+
     public void addVertices(float[] points) {
         if (points != null)
             mDrawItemsVertex.add(points);
+        invalidateIndex();
     }
 
     public void addEdges(float[] points) {
         mDrawItemsEdge.add(points);
+        invalidateIndex();
     }
 
     public List<float[]> getEdges() {
@@ -183,6 +200,18 @@ public class DrawItem {
         setRing(mSelectedRing, newPoints);
     }
 
+    public void appendPoints(int ring, float[] points) {
+        if (ring < 0 || ring >= mDrawItemsVertex.size() || points == null)
+            return;
+
+        float[] oldPoints = mDrawItemsVertex.get(ring);
+        float[] newPoints = new float[oldPoints.length + points.length];
+        System.arraycopy(oldPoints, 0, newPoints, 0, oldPoints.length);
+        System.arraycopy(points, 0, newPoints, oldPoints.length, points.length);
+
+        setRing(ring, newPoints);
+    }
+
     public void insertNewPoint(int insertPosition, float x, float y) {
         float[] points = getSelectedRing();
         if (null == points) {
@@ -208,6 +237,7 @@ public class DrawItem {
         if (null != points && mSelectedPoint >= 0 && mSelectedPoint < points.length - 1) {
             points[mSelectedPoint] = x;
             points[mSelectedPoint + 1] = y;
+            invalidateIndex();
         }
     }
 
@@ -230,6 +260,7 @@ public class DrawItem {
 
         if (points.length <= getMinPointCount(layer.getGeometryType()) * 2) {
             mDrawItemsVertex.remove(mSelectedRing);
+            invalidateIndex();
             mSelectedRing = mDrawItemsVertex.size() > 0 ? 0 : Constants.NOT_FOUND;
             mSelectedPoint = Constants.NOT_FOUND;
             return;
@@ -262,6 +293,7 @@ public class DrawItem {
     public void setRing(int ring, float[] points) {
         if (ring >= 0 && ring < mDrawItemsVertex.size())
             mDrawItemsVertex.set(ring, points);
+        invalidateIndex();
     }
 
     public void setSelectedRing(int selectedRing) {
@@ -289,52 +321,52 @@ public class DrawItem {
 
     public void deleteSelectedRing() {
         mDrawItemsVertex.remove(mSelectedRing);
+        invalidateIndex();
         mSelectedRing = mSelectedPoint = mDrawItemsVertex.size() > 0 ? 0 : Constants.NOT_FOUND;
     }
 
     public boolean isTapNearSelectedPoint(GeoEnvelope screenEnv) {
-        float[] points = getSelectedRing();
-        if (null != points && mSelectedPoint >= 0 && points.length > mSelectedPoint + 1) {
-            if (screenEnv.contains(new GeoPoint(points[mSelectedPoint], points[mSelectedPoint + 1]))) {
-                return true;
-            }
-        }
-        return false;
+        float[] points = mSelectedRing >= 0 && mSelectedRing < mDrawItemsVertex.size() ? mDrawItemsVertex.get(mSelectedRing) : null;
+        return null != points && mSelectedPoint >= 0 && points.length > mSelectedPoint + 1 &&
+                contains(screenEnv, points[mSelectedPoint], points[mSelectedPoint + 1]);
     }
 
     public boolean intersectsVertices(GeoEnvelope screenEnv) {
-        int point;
-        for (int ring = 0; ring < mDrawItemsVertex.size(); ring++) {
-            point = 0;
-            float[] items = mDrawItemsVertex.get(ring);
-            for (int i = 0; i < items.length - 1; i += 2) {
-                if (screenEnv.contains(new GeoPoint(items[i], items[i + 1]))) {
-                    mSelectedRing = ring;
-                    mSelectedPoint = point;
-                    return true;
-                }
-                point += 2;
-            }
-        }
+        if (mVertexIndex == null)
+            mVertexIndex = new HitIndex(mDrawItemsVertex);
+
+        long hit = mVertexIndex.find(screenEnv);
+        if (hit == Constants.NOT_FOUND)
+            return false;
 
-        return false;
+        mSelectedRing = HitIndex.getRing(hit);
+        mSelectedPoint = HitIndex.getPoint(hit);
+        return true;
     }
 
     public boolean intersectsEdges(GeoEnvelope screenEnv) {
-        for (int ring = 0; ring < mDrawItemsEdge.size(); ring++) {
-            float[] items = mDrawItemsEdge.get(ring);
-            for (int i = 0; i < items.length - 1; i += 2) {
-                if (screenEnv.contains(new GeoPoint(items[i], items[i + 1]))) {
-                    mSelectedPoint = i + 2;
-                    mSelectedRing = ring;
-                    insertNewPoint(mSelectedPoint, items[i], items[i + 1]);
-
-                    return true;
-                }
-            }
-        }
+        if (mEdgeIndex == null)
+            mEdgeIndex = new HitIndex(mDrawItemsEdge);
+
+        long hit = mEdgeIndex.find(screenEnv);
+        if (hit == Constants.NOT_FOUND)
+            return false;
+
+        int i = HitIndex.getPoint(hit);
+        float[] items = mDrawItemsEdge.get(HitIndex.getRing(hit));
+        mSelectedPoint = i + 2;
+        mSelectedRing = HitIndex.getRing(hit);
+        insertNewPoint(mSelectedPoint, items[i], items[i + 1]);
+        return true;
+    }
+
+    protected void invalidateIndex() {
+        mVertexIndex = null;
+        mEdgeIndex = null;
+    }
 
-        return false;
+    protected static boolean contains(GeoEnvelope env, float x, float y) {
+        return x >= env.getMinX() && x <= env.getMaxX() && y >= env.getMinY() && y <= env.getMaxY();
     }
 
     public static int getMinPointCount(int type) {
@@ -360,7 +392,7 @@ public class DrawItem {
         mPaint.setStyle(Paint.Style.STROKE);
         mPaint.setAlpha(mVertexStyle.getAlpha());
         for (int i = 0; i < getRingCount(); i++) {
-            float[] items = getRing(i);
+            float[] items = mDrawItemsVertex.get(i);
             if (items == null)
                 continue;
 
@@ -375,29 +407,31 @@ public class DrawItem {
 
         //draw selected point
         if (isSelected && getSelectedRingId() != Constants.NOT_FOUND && getSelectedPointId() != Constants.NOT_FOUND) {
-            float[] items = getSelectedRing();
-            if (null != items && items.length > 0) {
+            float[] items = mSelectedRing >= 0 && mSelectedRing < getRingCount() ? mDrawItemsVertex.get(mSelectedRing) : null;
+            if (null != items && items.length > mSelectedPoint + 1) {
                 mPaint.setColor(mVertexStyle.getSelectedColor());
                 mPaint.setStrokeWidth(mVertexStyle.getSelectedWidth());
-                float[] point = new float[]{items[getSelectedPointId()], items[getSelectedPointId() + 1]};
-                drawPoints(canvas, point, mVertexStyle.getSelectedRadius());
+                canvas.drawCircle(items[mSelectedPoint], items[mSelectedPoint + 1], mVertexStyle.getSelectedRadius(), mPaint);
                 drawAnchor(canvas, items);
             }
         }
     }
 
     public void drawLines(Canvas canvas, boolean isSelected, boolean drawPoints, boolean drawEdges, boolean closed) {
-        Path[] paths = new Path[getRingCount()];
-        Path pathFill = new Path();
+        int ringCount = getRingCount();
+        while (mPaths.size() < ringCount)
+            mPaths.add(new Path());
 
         // fill paths
-        for (int j = 0; j < getRingCount(); j++) {
-            float[] itemsVertex = getRing(j);
+        mPathFill.rewind();
+        for (int j = 0; j < ringCount; j++) {
+            Path path = mPaths.get(j);
+            path.rewind();
+            float[] itemsVertex = mDrawItemsVertex.get(j);
             if (itemsVertex == null)
                 continue;
 
             if (itemsVertex.length >= 2) {
-                Path path = new Path();
                 path.moveTo(itemsVertex[0], itemsVertex[1]);
                 for (int i = 2; i < itemsVertex.length - 1; i += 2)
                     path.lineTo(itemsVertex[i], itemsVertex[i + 1]);
@@ -405,26 +439,25 @@ public class DrawItem {
                 if (closed)
                     path.lineTo(itemsVertex[0], itemsVertex[1]);
 
-                paths[j] = path;
-                pathFill.addPath(path);
+                mPathFill.addPath(path);
             }
         }
 
         // draw filled polygon
         if (closed && mPolygonStyle != null) {
-            pathFill.setFillType(Path.FillType.EVEN_ODD);
+            mPathFill.setFillType(Path.FillType.EVEN_ODD);
             mPaint.setColor(isSelected ? mPolygonStyle.getSelectedColor() : mPolygonStyle.getColor());
             mPaint.setStyle(Paint.Style.FILL);
             mPaint.setAlpha(mPolygonStyle.getAlpha());
-            canvas.drawPath(pathFill, mPaint);
+            canvas.drawPath(mPathFill, mPaint);
         }
 
         if (mLineStyle != null) {
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setAlpha(mLineStyle.getAlpha());
-            for (int i = 0; i < paths.length; i++) {
-                Path path = paths[i];
-                if (path == null)
+            for (int i = 0; i < ringCount; i++) {
+                Path path = mPaths.get(i);
+                if (path.isEmpty())
                     continue;
 
                 if (isSelected && getSelectedRingId() == i) {
@@ -469,4 +502,119 @@ public class DrawItem {
         for (int i = 0; i < items.length - 1; i += 2)
             canvas.drawCircle(items[i], items[i + 1], radius, mPaint);
     }
+
+    /**
+     * Uniform grid over points of several rings in screen coordinates. It is built on the first
+     * hit test and dropped on any change of the rings, so taps do not scan every vertex.
+     */
+    protected static class HitIndex {
+        protected static final float CELL_SIZE = 48;
+        protected static final int MAX_CELLS = 256;
+
+        protected float mMinX, mMinY, mCellSize;
+        protected int mColumns, mRows;
+        protected int[] mCellStart, mRings, mPoints;
+        protected float[] mX, mY;
+
+        public HitIndex(List<float[]> rings) {
+            float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+            int count = 0;
+            for (float[] items : rings) {
+                if (items == null)
+                    continue;
+
+                for (int i = 0; i < items.length - 1; i += 2) {
+                    minX = Math.min(minX, items[i]);
+                    maxX = Math.max(maxX, items[i]);
+                    minY = Math.min(minY, items[i + 1]);
+                    maxY = Math.max(maxY, items[i + 1]);
+                }
+                count += items.length / 2;
+            }
+
+            mMinX = minX;
+            mMinY = minY;
+            mCellSize = Math.max(CELL_SIZE, Math.max(maxX - minX, maxY - minY) / MAX_CELLS);
+            mColumns = count == 0 ? 0 : (int) ((maxX - minX) / mCellSize) + 1;
+            mRows = count == 0 ? 0 : (int) ((maxY - minY) / mCellSize) + 1;
+            mCellStart = new int[mColumns * mRows + 1];
+            mRings = new int[count];
+            mPoints = new int[count];
+            mX = new float[count];
+            mY = new float[count];
+
+            // counting sort of points by cells
+            for (float[] items : rings) {
+                if (items == null)
+                    continue;
+
+                for (int i = 0; i < items.length - 1; i += 2)
+                    mCellStart[getCell(items[i], items[i + 1]) + 1]++;
+            }
+
+            for (int i = 1; i < mCellStart.length; i++)
+                mCellStart[i] += mCellStart[i - 1];
+
+            int[] next = new int[mCellStart.length];
+            System.arraycopy(mCellStart, 0, next, 0, next.length);
+            for (int ring = 0; ring < rings.size(); ring++) {
+                float[] items = rings.get(ring);
+                if (items == null)
+                    continue;
+
+                for (int i = 0; i < items.length - 1; i += 2) {
+                    int position = next[getCell(items[i], items[i + 1])]++;
+                    mRings[position] = ring;
+                    mPoints[position] = i;
+                    mX[position] = items[i];
+                    mY[position] = items[i + 1];
+                }
+            }
+        }
+
+        protected int getCell(float x, float y) {
+            int column = (int) ((x - mMinX) / mCellSize);
+            int row = (int) ((y - mMinY) / mCellSize);
+            return row * mColumns + column;
+        }
+
+        /**
+         * Find the first point inside the envelope in rings order.
+         *
+         * @return ring and point packed by {@link #pack(int, int)} or NOT_FOUND
+         */
+        public long find(GeoEnvelope env) {
+            if (mColumns == 0)
+                return Constants.NOT_FOUND;
+
+            int minColumn = (int) Math.max(0, Math.floor((env.getMinX() - mMinX) / mCellSize));
+            int maxColumn = (int) Math.min(mColumns - 1, Math.floor((env.getMaxX() - mMinX) / mCellSize));
+            int minRow = (int) Math.max(0, Math.floor((env.getMinY() - mMinY) / mCellSize));
+            int maxRow = (int) Math.min(mRows - 1, Math.floor((env.getMaxY() - mMinY) / mCellSize));
+
+            long result = Long.MAX_VALUE;
+            for (int row = minRow; row <= maxRow; row++)
+                for (int column = minColumn; column <= maxColumn; column++) {
+                    int cell = row * mColumns + column;
+                    for (int i = mCellStart[cell]; i < mCellStart[cell + 1]; i++)
+                        if (contains(env, mX[i], mY[i]))
+                            result = Math.min(result, pack(mRings[i], mPoints[i]));
+                }
+
+            return result == Long.MAX_VALUE ? Constants.NOT_FOUND : result;
+        }
+
+        public static long pack(int ring, int point) {
+            return ((long) ring << 32) | point;
+        }
+
+        public static int getRing(long packed) {
+            return (int) (packed >>> 32);
+        }
+
+        public static int getPoint(long packed) {
+            return (int) packed;
+        }
+    }
 }
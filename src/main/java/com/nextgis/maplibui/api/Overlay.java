@@ -129,6 +129,52 @@ public abstract class Overlay
     }
 
 
+    /**
+     * Apply pan offset to points in place, no memory is allocated.
+     *
+     * @param src    Source points as x, y pairs
+     * @param dst    Destination array, may be the same as source
+     * @param count  Number of values to transform
+     * @param offset Current mouse offset
+     */
+    protected static void panPoints(
+            float[] src,
+            float[] dst,
+            int count,
+            PointF offset)
+    {
+        for (int i = 0; i < count - 1; i += 2) {
+            dst[i] = src[i] - offset.x;
+            dst[i + 1] = src[i + 1] - offset.y;
+        }
+    }
+
+
+    /**
+     * Apply zoom transform to points in place, no memory is allocated.
+     *
+     * @param src      Source points as x, y pairs
+     * @param dst      Destination array, may be the same as source
+     * @param count    Number of values to transform
+     * @param location Current focus location
+     * @param scale    Current scale factor
+     */
+    protected static void zoomPoints(
+            float[] src,
+            float[] dst,
+            int count,
+            PointF location,
+            float scale)
+    {
+        float dx = (1 - scale) * location.x;
+        float dy = (1 - scale) * location.y;
+        for (int i = 0; i < count - 1; i += 2) {
+            dst[i] = src[i] * scale - dx;
+            dst[i + 1] = src[i + 1] * scale - dy;
+        }
+    }
+
+
     public GeoPoint getScaledOffset(
             PointF currentFocusLocation,
             OverlayItem overlayItem,
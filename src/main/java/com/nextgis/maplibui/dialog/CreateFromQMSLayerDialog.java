@@ -25,7 +25,7 @@ import android.app.Dialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -64,22 +64,19 @@ import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.activity.NGActivity;
 import com.nextgis.maplibui.mapui.RemoteTMSLayerUI;
 import com.nextgis.maplibui.util.ConstantsUI;
+import com.nextgis.maplibui.util.IconCache;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 
 import static com.nextgis.maplib.util.GeoConstants.TMSTYPE_NORMAL;
 import static com.nextgis.maplib.util.GeoConstants.TMSTYPE_OSM;
@@ -419,7 +416,10 @@ public class CreateFromQMSLayerDialog extends NGDialog {
         private int[] mTo;
         private String[] mFrom;
         private int mResource;
-        private Map<String, LoadIcon> mIconsQueue;
+        private IconCache mIconCache;
+        private int mIconSize;
+        // lower case names in the order of original data, filter searches them only
+        private String[] mSearchIndex;
 
         LayersAdapter(Context context, List<? extends Map<String, ?>> data, int resource, String[] from, int[] to) {
             super(context, data, resource, from, to);
@@ -428,7 +428,18 @@ public class CreateFromQMSLayerDialog extends NGDialog {
             mTo = to;
             mResource = resource;
             mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-            mIconsQueue = new HashMap<>();
+            mIconCache = IconCache.getInstance();
+
+            float density = context.getResources().getDisplayMetrics().density;
+            mIconSize = (int) (16 * density);
+            if (mIconSize < 16)
+                mIconSize = 16;
+            if (mIconSize > 64)
+                mIconSize = 64;
+
+            mSearchIndex = new String[data.size()];
+            for (int i = 0; i < mSearchIndex.length; i++)
+                mSearchIndex[i] = data.get(i).get(KEY_NAME).toString().toLowerCase();
         }
 
         @Override
@@ -469,22 +480,12 @@ public class CreateFromQMSLayerDialog extends NGDialog {
                             // Note: keep the instanceof TextView check at the bottom of these
                             // ifs since a lot of views are TextViews (e.g. CheckBoxes).
                             setViewText(textView, text);
-                            setIcon(textView, null);
 
                             String id = (String) dataSet.get(KEY_ICON);
                             if (id == null || !MapUtil.isParsable(id))
                                 id = "default";
 
-                            File icon = new File(mQMSIconsDir, id);
-                            if (icon.exists())
-                                setIcon(textView, icon.getPath());
-                            else if (mIconsQueue.keySet().contains(id))
-                                mIconsQueue.get(id).addViewWithIcon(textView);
-                            else {
-                                LoadIcon task = new LoadIcon(icon.getPath(), textView);
-                                mIconsQueue.put(id, task);
-                                task.execute();
-                            }
+                            loadIcon(textView, id);
                         }
                     }
                 }
@@ -502,25 +503,67 @@ public class CreateFromQMSLayerDialog extends NGDialog {
             return view;
         }
 
+        private void loadIcon(final TextView view, String id) {
+            File file = new File(mQMSIconsDir, id);
+            Bitmap icon = mIconCache.get(file.getPath());
+            view.setTag(file.getPath());
+            setIcon(view, icon);
+            if (icon != null)
+                return;
+
+            String iconUrl;
+            if (id.equals("default"))
+                iconUrl = QMS_ICON_URL + id + QMS_ICON_APPENDIX;
+            else
+                iconUrl = QMS_ICON_URL + id + QMS_ICON_CONTENT;
+
+            iconUrl = iconUrl.replace("{w}", mIconSize + "").replace("{h}", mIconSize + "");
+            mIconCache.load(file, iconUrl, new IconCache.OnIconLoaded() {
+                @Override
+                public void onIconLoaded(String key, Bitmap icon) {
+                    // view could be recycled for another service while loading
+                    if (icon != null && key.equals(view.getTag()))
+                        setIcon(view, icon);
+                }
+            });
+        }
+
         @Override
         public Filter getFilter() {
             if (mFilter == null)
                 mFilter = new Filter() {
+                    // previous query matches, refined query searches in them only
+                    private String mLastQuery;
+                    private int[] mLastMatches;
+
                     @Override
                     protected FilterResults performFiltering(CharSequence constraint) {
                         FilterResults result = new FilterResults();
 
                         if (!TextUtils.isEmpty(constraint) && constraint.length() > 1) {
-                            constraint = constraint.toString().toLowerCase();
-                            List<Map<String, ?>> founded = new ArrayList<>();
+                            String query = constraint.toString().toLowerCase();
+                            boolean refine = mLastQuery != null && query.startsWith(mLastQuery);
+                            int count = refine ? mLastMatches.length : mSearchIndex.length;
+                            int[] matches = new int[count];
+                            int found = 0;
+
+                            for (int i = 0; i < count; i++) {
+                                int index = refine ? mLastMatches[i] : i;
+                                if (mSearchIndex[index].contains(query))
+                                    matches[found++] = index;
+                            }
 
-                            for (Map<String, ?> item : mOriginal)
-                                if (item.get(KEY_NAME).toString().toLowerCase().contains(constraint))
-                                    founded.add(item);
+                            List<Map<String, ?>> founded = new ArrayList<>(found);
+                            for (int i = 0; i < found; i++)
+                                founded.add(mOriginal.get(matches[i]));
 
+                            mLastQuery = query;
+                            mLastMatches = Arrays.copyOf(matches, found);
                             result.values = founded;
-                            result.count = founded.size();
+                            result.count = found;
                         } else {
+                            mLastQuery = null;
+                            mLastMatches = null;
                             result.values = mOriginal;
                             result.count = mOriginal.size();
                         }
@@ -543,76 +586,14 @@ public class CreateFromQMSLayerDialog extends NGDialog {
             return mFilter;
         }
 
-        class LoadIcon extends AsyncTask<Void, Void, Void> {
-            private File mFile;
-            private String mPath;
-            private Queue<TextView> mAssignedViews;
-
-            LoadIcon(String path, TextView view) {
-                mAssignedViews = new LinkedList<>();
-                mAssignedViews.add(view);
-                mPath = path;
-                mFile = new File(mPath);
-            }
-
-            @Override
-            protected Void doInBackground(Void... params) {
-                if (!mFile.exists()) {
-                    try {
-                        float density = getContext().getResources().getDisplayMetrics().density;
-                        int size = (int) (16 * density);
-                        if (size < 16)
-                            size = 16;
-                        if (size > 64)
-                            size = 64;
-
-                        String iconUrl;
-                        if (mFile.getName().equals("default"))
-                            iconUrl = QMS_ICON_URL + mFile.getName() + QMS_ICON_APPENDIX;
-                        else
-                            iconUrl = QMS_ICON_URL + mFile.getName() + QMS_ICON_CONTENT;
-
-                        iconUrl = iconUrl.replace("{w}", size + "").replace("{h}", size + "");
-                        HttpURLConnection connection = NetworkUtil.getHttpConnection("GET", iconUrl, null, null);
-                        if (connection != null) {
-                            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
-                                InputStream input = connection.getInputStream();
-                                Bitmap icon = BitmapFactory.decodeStream(input);
-                                FileOutputStream fos = new FileOutputStream(mFile);
-                                icon.compress(Bitmap.CompressFormat.PNG, 100, fos);
-                                fos.close();
-                            }
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                super.onPostExecute(aVoid);
-
-                if (mFile.exists())
-                    while (mAssignedViews.size() > 0)
-                        setIcon(mAssignedViews.poll(), mPath);
-
-                mIconsQueue.remove(mFile.getName());
-            }
-
-            void addViewWithIcon(TextView textView) {
-                mAssignedViews.add(textView);
-            }
-        }
-
-        private void setIcon(TextView view, String path) {
-            Drawable icon = Drawable.createFromPath(path);
+        private void setIcon(TextView view, Bitmap bitmap) {
             Drawable checkbox = view.getCompoundDrawables()[2];
+            Drawable icon = null;
 
-            if (icon != null)
+            if (bitmap != null) {
+                icon = new BitmapDrawable(view.getResources(), bitmap);
                 icon.setBounds(0, 0, checkbox.getIntrinsicWidth(), checkbox.getIntrinsicHeight());
+            }
 
             view.setCompoundDrawables(icon, null, checkbox, null);
         }
@@ -5,7 +5,7 @@
  * Author:   NikitaFeodonit, nfeodonit@yandex.com
  * Author:   Stanislav Petriakov, becomeglory@gmail.com
  * *****************************************************************************
- * Copyright (c) 2015-2017, 2019 NextGIS, info@nextgis.com
+ * Copyright (c) 2015-2017, 2019-2020 NextGIS, info@nextgis.com
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU Lesser Public License as published by
@@ -33,6 +33,8 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.support.v4.content.ContextCompat;
+import android.text.format.DateUtils;
+import android.text.format.Formatter;
 import android.view.View;
 import android.widget.TextView;
 
@@ -40,15 +42,14 @@ import com.appyvet.materialrangebar.RangeBar;
 import com.nextgis.maplib.api.IGISApplication;
 import com.nextgis.maplib.api.ILayer;
 import com.nextgis.maplib.datasource.GeoEnvelope;
-import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplib.map.TMSLayer;
 import com.nextgis.maplib.util.GeoConstants;
-import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.service.TileDownloadService;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.TileDownloadEstimator;
 
 import java.util.Locale;
 
@@ -61,7 +62,8 @@ public class SelectZoomLevelsDialog extends DialogFragment {
     private TextView mTilesCount;
     private GeoEnvelope mEnvelope;
     private int mLayerId;
-    private CountTilesTask mCountTask;
+    private TileDownloadEstimator mEstimator;
+    private EstimateTask mEstimateTask;
 
     public GeoEnvelope getEnvelope() {
         return mEnvelope;
@@ -102,6 +104,7 @@ public class SelectZoomLevelsDialog extends DialogFragment {
         final int maxZoom = GeoConstants.DEFAULT_MAX_ZOOM;
         left = left < 0 ? 0 : left;
         right = right > maxZoom ? maxZoom : right;
+        mEstimator = new TileDownloadEstimator((TMSLayer) map.getLayerById(getLayerId()), getEnvelope(), maxZoom);
 
         // Get the index value TextViews
         mTilesCount = view.findViewById(R.id.tilesCount);
@@ -121,12 +124,14 @@ public class SelectZoomLevelsDialog extends DialogFragment {
                 ControlHelper.setZoomText(getActivity(), leftIndexValue, R.string.min, leftPinIndex);
                 ControlHelper.setZoomText(getActivity(), rightIndexValue, R.string.max, rightPinIndex);
 
-                if (mCountTask != null)
-                    mCountTask.cancel(true);
+                if (mEstimateTask != null)
+                    mEstimateTask.cancel(true);
 
-                mTilesCount.setText(getString(R.string.counting).toLowerCase());
-                mCountTask = new CountTilesTask(map, leftPinIndex, rightPinIndex);
-                mCountTask.execute();
+                showEstimate(leftPinIndex, rightPinIndex);
+                if (!mEstimator.isSampled(leftPinIndex, rightPinIndex)) {
+                    mEstimateTask = new EstimateTask(leftPinIndex, rightPinIndex);
+                    mEstimateTask.execute();
+                }
             }
 
             @Override
@@ -185,18 +190,33 @@ public class SelectZoomLevelsDialog extends DialogFragment {
         return dialog;
     }
 
-    private long getTilesCount(AsyncTask task, MapBase map, int leftThumbIndex, int rightThumbIndex) {
-        TMSLayer layer = (TMSLayer) map.getLayerById(getLayerId());
-        GeoEnvelope envelope = getEnvelope();
-        long total = 0;
-        for (int zoom = leftThumbIndex; zoom <= rightThumbIndex; zoom++) {
-            if (task != null && task.isCancelled())
-                return total;
+    private void showEstimate(int from, int to) {
+        String text = String.format(getString(R.string.tiles_count), formatCount(mEstimator.getCount(from, to)));
+        if (mEstimator.isSampled(from, to)) {
+            String missing = formatCount(mEstimator.getMissingCount(from, to));
+            String size = Formatter.formatShortFileSize(getActivity(), mEstimator.getMissingBytes(from, to));
+            long seconds = mEstimator.getMissingSeconds(from, to, TileDownloadService.getTilesPerSecond(getActivity()));
+
+            if (seconds >= 0)
+                text += "\n" + getString(R.string.tiles_download_time, missing, size, DateUtils.formatElapsedTime(seconds));
+            else
+                text += "\n" + getString(R.string.tiles_to_download, missing, size);
+        } else
+            text += "\n" + getString(R.string.counting).toLowerCase();
+
+        mTilesCount.setText(text);
+    }
 
-            total += MapUtil.getTileCount(task, envelope, zoom, layer.getTMSType());
-        }
+    private String formatCount(long total) {
+        String value = total + "";
+        if (total >= 1000000000)
+            value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, total / 1000000000f, getString(R.string.unit_billion));
+        else if (total >= 1000000)
+            value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, total / 1000000f, getString(R.string.unit_million));
+        else if (total >= 100000)
+            value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, total / 1000f, getString(R.string.unit_thousand));
 
-        return total;
+        return value;
     }
 
     @Override
@@ -209,33 +229,25 @@ public class SelectZoomLevelsDialog extends DialogFragment {
         super.onSaveInstanceState(outState);
     }
 
-    private class CountTilesTask extends AsyncTask<Void, Void, String> {
+    // cached tiles are checked once for each zoom level
+    private class EstimateTask extends AsyncTask<Void, Void, Void> {
         private int mFrom, mTo;
-        private MapBase mMap;
 
-        CountTilesTask(MapBase map, int from, int to) {
-            mMap = map;
+        EstimateTask(int from, int to) {
             mFrom = from;
             mTo = to;
         }
 
         @Override
-        protected String doInBackground(Void... params) {
-            long total = getTilesCount(this, mMap, mFrom, mTo);
-            String value = total + "";
-            if (total >= 1000000000)
-                value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, total / 1000000000f, getString(R.string.unit_billion));
-            else if (total >= 1000000)
-                value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, total / 1000000f, getString(R.string.unit_million));
-            else if (total >= 100000)
-                value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, total / 1000f, getString(R.string.unit_thousand));
-
-            return value;
+        protected Void doInBackground(Void... params) {
+            mEstimator.sample(this, mFrom, mTo);
+            return null;
         }
 
         @Override
-        protected void onPostExecute(String res) {
-            mTilesCount.setText(String.format(getString(R.string.tiles_count), res));
+        protected void onPostExecute(Void result) {
+            if (isAdded())
+                showEstimate(mFrom, mTo);
         }
     }
 }
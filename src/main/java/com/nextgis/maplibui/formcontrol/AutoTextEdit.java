@@ -31,19 +31,24 @@ import android.support.v7.widget.AppCompatAutoCompleteTextView;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
+import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.nextgis.maplib.datasource.Field;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapContentProviderHelper;
-import com.nextgis.maplib.map.NGWLookupTable;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.IFormControl;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.LookupTableCache;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -69,7 +74,6 @@ public class AutoTextEdit extends AppCompatAutoCompleteTextView implements IForm
     protected boolean           mIsShowLast;
     protected boolean           mAllowSaveNewValue;
     protected Map<String, String>   mAliasValueMap;
-    protected ArrayAdapter<String>  mAdapter;
 
     public AutoTextEdit(Context context) {
         super(context);
@@ -114,6 +118,7 @@ public class AutoTextEdit extends AppCompatAutoCompleteTextView implements IForm
             lastValue = preferences.getString(mFieldName, null);
 
         mAliasValueMap = new LinkedHashMap<>();
+        LookupTableCache.Dictionary dictionary = null;
         if (attributes.has(ConstantsUI.JSON_NGW_ID_KEY) && attributes.getLong(ConstantsUI.JSON_NGW_ID_KEY) != -1) {
             MapContentProviderHelper map = (MapContentProviderHelper) MapBase.getInstance();
             if (null == map)
@@ -121,20 +126,12 @@ public class AutoTextEdit extends AppCompatAutoCompleteTextView implements IForm
 
             String account = element.optString(SyncStateContract.Columns.ACCOUNT_NAME);
             long id = attributes.optLong(JSON_NGW_ID_KEY, -1);
-            for (int i = 0; i < map.getLayerCount(); i++) {
-                if (map.getLayer(i) instanceof NGWLookupTable) {
-                    NGWLookupTable table = (NGWLookupTable) map.getLayer(i);
-                    if (table.getRemoteId() != id || !table.getAccountName().equals(account))
-                        continue;
-
-                    for (Map.Entry<String, String> entry : table.getData().entrySet()) {
-                        mAliasValueMap.put(entry.getValue(), entry.getKey());
-                        if (entry.getKey().equals(lastValue))
-                            lastValue = entry.getValue();
-                    }
-
-                    break;
-                }
+            dictionary = LookupTableCache.get(map, account, id);
+            if (null != dictionary) {
+                mAliasValueMap = dictionary.getAliasToKeyMap();
+                int position = dictionary.indexOfKey(lastValue);
+                if (position >= 0)
+                    lastValue = dictionary.getAliases().get(position);
             }
         } else {
             JSONArray values = attributes.optJSONArray(JSON_VALUES_KEY);
@@ -153,8 +150,10 @@ public class AutoTextEdit extends AppCompatAutoCompleteTextView implements IForm
         }
 
         setText(lastValue != null ? lastValue : def);
-        mAdapter = new ArrayAdapter<>(getContext(), android.R.layout.simple_spinner_dropdown_item, new ArrayList<>(mAliasValueMap.keySet()));
-        setAdapter(mAdapter);
+        if (null != dictionary)
+            setAdapter(new DictionaryAdapter(getContext(), dictionary));
+        else
+            setAdapter(new ArrayAdapter<>(getContext(), android.R.layout.simple_spinner_dropdown_item, new ArrayList<>(mAliasValueMap.keySet())));
 
         setOnFocusChangeListener(new OnFocusChangeListener() {
             @Override
@@ -237,4 +236,75 @@ public class AutoTextEdit extends AppCompatAutoCompleteTextView implements IForm
     public void saveState(Bundle outState) {
         outState.putString(ControlHelper.getSavedStateKey(mFieldName), (String) getValue());
     }
+
+    /**
+     * Suggests aliases of a cached lookup table, which is not copied. Typed text is looked up by
+     * binary search in the sorted aliases of the dictionary instead of a scan over all items.
+     */
+    protected static class DictionaryAdapter extends BaseAdapter implements Filterable {
+        protected final Context mContext;
+        protected final LookupTableCache.Dictionary mDictionary;
+        protected List<String> mItems;
+        protected Filter mFilter;
+
+        public DictionaryAdapter(Context context, LookupTableCache.Dictionary dictionary) {
+            mContext = context;
+            mDictionary = dictionary;
+            mItems = dictionary.getAliases();
+        }
+
+        @Override
+        public int getCount() {
+            return mItems.size();
+        }
+
+        @Override
+        public String getItem(int position) {
+            return mItems.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return position;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            if (convertView == null)
+                convertView = LayoutInflater.from(mContext).inflate(android.R.layout.simple_spinner_dropdown_item, parent, false);
+
+            ((TextView) convertView).setText(getItem(position));
+            return convertView;
+        }
+
+        @Override
+        public Filter getFilter() {
+            if (mFilter == null)
+                mFilter = new Filter() {
+                    @Override
+                    protected FilterResults performFiltering(CharSequence prefix) {
+                        List<String> items = prefix == null || prefix.length() == 0
+                                ? mDictionary.getAliases()
+                                : mDictionary.findByPrefix(prefix.toString());
+
+                        FilterResults results = new FilterResults();
+                        results.values = items;
+                        results.count = items.size();
+                        return results;
+                    }
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    protected void publishResults(CharSequence prefix, FilterResults results) {
+                        mItems = (List<String>) results.values;
+                        if (results.count > 0)
+                            notifyDataSetChanged();
+                        else
+                            notifyDataSetInvalidated();
+                    }
+                };
+
+            return mFilter;
+        }
+    }
 }
@@ -37,11 +37,11 @@ import android.widget.ArrayAdapter;
 import com.nextgis.maplib.datasource.Field;
 import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapContentProviderHelper;
-import com.nextgis.maplib.map.NGWLookupTable;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.IFormControl;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.LookupTableCache;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -115,25 +115,11 @@ public class Combobox extends AppCompatSpinner implements IFormControl
 
             String account = element.optString(SyncStateContract.Columns.ACCOUNT_NAME);
             long id = attributes.optLong(JSON_NGW_ID_KEY, -1);
-            for (int i = 0; i < map.getLayerCount(); i++) {
-                if (map.getLayer(i) instanceof NGWLookupTable) {
-                    NGWLookupTable table = (NGWLookupTable) map.getLayer(i);
-                    if (table.getRemoteId() != id || !table.getAccountName().equals(account))
-                        continue;
-
-                    int j = 0;
-                    for (Map.Entry<String, String> entry : table.getData().entrySet()) {
-                        mAliasValueMap.put(entry.getValue(), entry.getKey());
-
-                        if (null != lastValue && lastValue.equals(entry.getKey()))
-                            lastValuePosition = j;
-
-                        spinnerArrayAdapter.add(entry.getValue());
-                        j++;
-                    }
-
-                    break;
-                }
+            LookupTableCache.Dictionary dictionary = LookupTableCache.get(map, account, id);
+            if (null != dictionary) {
+                mAliasValueMap = dictionary.getAliasToKeyMap();
+                lastValuePosition = dictionary.indexOfKey(lastValue);
+                spinnerArrayAdapter.addAll(dictionary.getAliases());
             }
         } else {
             JSONArray values = attributes.optJSONArray(JSON_VALUES_KEY);
@@ -243,9 +243,25 @@ public class Sign extends View implements IFormControl {
     }
 
     public void save(int width, int height, boolean transparentBackground, File sigFile) throws IOException {
-        if (mNotInitialized)
+        Bitmap bmp = render(width, height, transparentBackground);
+        if (bmp == null)
             return;
 
+        if(sigFile.exists() || sigFile.createNewFile()) {
+            FileOutputStream out = new FileOutputStream(sigFile);
+            bmp.compress(Bitmap.CompressFormat.PNG, 90, out);
+        }
+    }
+
+    /**
+     * Draws the signature, must be called from the UI thread
+     *
+     * @return signature bitmap or null if nothing was drawn
+     */
+    public Bitmap render(int width, int height, boolean transparentBackground) {
+        if (mNotInitialized)
+            return null;
+
         float scale = Math.min((float) width / getWidth(), (float) height / getHeight());
         Matrix matrix = new Matrix();
         matrix.setScale(scale, scale);
@@ -256,10 +272,7 @@ public class Sign extends View implements IFormControl {
 
         int color = transparentBackground ? Color.TRANSPARENT : 0xFFFFFF - mPaint.getColor();
         drawSign(canvas, color, mPaint);
-        if(sigFile.exists() || sigFile.createNewFile()) {
-            FileOutputStream out = new FileOutputStream(sigFile);
-            bmp.compress(Bitmap.CompressFormat.PNG, 90, out);
-        }
+        return bmp;
     }
 
     public void setPath(String path) {
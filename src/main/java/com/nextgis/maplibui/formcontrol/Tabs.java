@@ -133,6 +133,8 @@ public class Tabs extends LinearLayout implements IFormControl
                 JSONObject element = elements.getJSONObject(j);
                 String type = element.optString(JSON_TYPE_KEY);
                 if (type.equals(JSON_COORDINATES_VALUE)) {
+                    // parsed form is shared, do not change it
+                    element = new JSONObject(element.toString());
                     JSONObject attributes = element.getJSONObject(JSON_ATTRIBUTES_KEY);
                     String fieldY = attributes.optString(JSON_FIELD_NAME_KEY + "_lat");
                     attributes.put(JSON_FIELD_NAME_KEY, fieldY);
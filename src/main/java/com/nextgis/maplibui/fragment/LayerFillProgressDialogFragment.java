@@ -47,12 +47,19 @@ import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.service.LayerFillService;
 
+import java.util.ArrayList;
+import java.util.List;
+
 // http://www.androiddesignpatterns.com/2013/04/retaining-objects-across-config-changes.html
 public class LayerFillProgressDialogFragment extends Fragment {
     private static Activity mActivity;
     private static BroadcastReceiver mLayerFillReceiver;
     private static ProgressDialog mProgressDialog;
     private static boolean mIsShowing;
+    // several tasks run at once, the dialog follows one of them
+    private static long mTaskId = Constants.NOT_FOUND;
+    private static Toast mToast;
+    private static List<String> mResults = new ArrayList<>();
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -144,6 +151,10 @@ public class LayerFillProgressDialogFragment extends Fragment {
             final Intent intent = values[0];
             short serviceStatus = intent.getShortExtra(LayerFillService.KEY_STATUS, (short) 0);
             String title = intent.getStringExtra(LayerFillService.KEY_TITLE);
+            long taskId = intent.getLongExtra(LayerFillService.KEY_TASK_ID, Constants.NOT_FOUND);
+            if (mTaskId == Constants.NOT_FOUND && serviceStatus != LayerFillService.STATUS_STOP)
+                mTaskId = taskId;
+            boolean isTracked = taskId == mTaskId;
 
             if (mProgressDialog == null) {
                 createProgressDialog();
@@ -155,13 +166,16 @@ public class LayerFillProgressDialogFragment extends Fragment {
 
             switch (serviceStatus) {
                 case LayerFillService.STATUS_START:
-                    mProgressDialog.setIndeterminate(true);
+                    if (isTracked) {
+                        setDialogInfo(title, title);
+                        mProgressDialog.setIndeterminate(true);
+                    }
                     mProgressDialog.show();
                     mIsShowing = true;
                     break;
                 case LayerFillService.STATUS_UPDATE:
                     final String message = intent.getStringExtra(LayerFillService.KEY_MESSAGE);
-                    if (TextUtils.isEmpty(message))
+                    if (TextUtils.isEmpty(message) || !isTracked)
                         return;
 
                     mProgressDialog.setIndeterminate(false);
@@ -170,7 +184,15 @@ public class LayerFillProgressDialogFragment extends Fragment {
                     mProgressDialog.setProgress(intent.getIntExtra(LayerFillService.KEY_PROGRESS, 0));
                     break;
                 case LayerFillService.STATUS_STOP:
-                    if (intent.getIntExtra(LayerFillService.KEY_TOTAL, 0) == 0) {
+                    // the next update of another running task takes the dialog
+                    if (isTracked) {
+                        mTaskId = Constants.NOT_FOUND;
+                        mProgressDialog.setIndeterminate(true);
+                    }
+
+                    boolean isLast = intent.getIntExtra(LayerFillService.KEY_TOTAL, 0) == 0;
+                    if (isLast) {
+                        mTaskId = Constants.NOT_FOUND;
                         mProgressDialog.dismiss();
                         mProgressDialog = null;
                         mActivity.unregisterReceiver(mLayerFillReceiver);
@@ -189,7 +211,9 @@ public class LayerFillProgressDialogFragment extends Fragment {
                     }
 
                     if (intent.hasExtra(LayerFillService.KEY_MESSAGE))
-                        Toast.makeText(mActivity, toast, Toast.LENGTH_LONG).show();
+                        showResult(toast);
+                    if (isLast)
+                        mResults.clear();
 
                     boolean isNgwSync = intent.getBooleanExtra(LayerFillService.KEY_SYNC, false);
                     if (success && !canceled && isNgwSync) {
@@ -222,6 +246,7 @@ public class LayerFillProgressDialogFragment extends Fragment {
                     }
                     break;
                 case LayerFillService.STATUS_SHOW:
+                    mTaskId = taskId;
                     if (!mProgressDialog.isShowing()) {
                         createProgressDialog();
                         setDialogInfo(title, title);
@@ -232,6 +257,16 @@ public class LayerFillProgressDialogFragment extends Fragment {
             }
         }
 
+        // one toast lists results of all tasks finished while the dialog is shown
+        private void showResult(String result) {
+            mResults.add(result);
+            if (mToast != null)
+                mToast.cancel();
+
+            mToast = Toast.makeText(mActivity, TextUtils.join("\n", mResults), Toast.LENGTH_LONG);
+            mToast.show();
+        }
+
         private void setDialogInfo(final String title, final String message) {
             mActivity.runOnUiThread(new Runnable() {
                 @Override
@@ -24,8 +24,10 @@ package com.nextgis.maplibui.fragment;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.SharedPreferences;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.support.v4.app.Fragment;
 import android.support.v7.app.AlertDialog;
 import android.text.Editable;
@@ -34,8 +36,10 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AdapterView;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
 
 import com.appyvet.materialrangebar.RangeBar;
@@ -48,6 +52,9 @@ import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.activity.LayerSettingsActivity;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.SettingsConstantsUI;
+
+import java.util.Arrays;
 
 public class LayerGeneralSettingsFragment extends Fragment {
     protected EditText mEditText;
@@ -187,6 +194,31 @@ public class LayerGeneralSettingsFragment extends Fragment {
                     builder.show();
                 }
             });
+
+            // shared by all layers, see SaveFeatureTask
+            final SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getActivity());
+            final String[] photoSizes = getResources().getStringArray(R.array.photo_max_size_val);
+            String photoSize = preferences.getString(SettingsConstantsUI.KEY_PREF_PHOTO_MAX_SIZE, "0");
+            // a value set elsewhere is kept until another item is picked
+            final int[] shown = new int[]{Math.max(0, Arrays.asList(photoSizes).indexOf(photoSize))};
+            v.findViewById(R.id.photo_max_size_group).setVisibility(View.VISIBLE);
+            Spinner photoMaxSize = v.findViewById(R.id.photo_max_size);
+            photoMaxSize.setSelection(shown[0]);
+            photoMaxSize.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    if (position == shown[0])
+                        return;
+
+                    shown[0] = position;
+                    preferences.edit().putString(SettingsConstantsUI.KEY_PREF_PHOTO_MAX_SIZE, photoSizes[position]).apply();
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+
+                }
+            });
         }
 
         return v;
@@ -0,0 +1,195 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import com.nextgis.maplib.map.Layer;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import static com.nextgis.maplib.util.Constants.CONFIG;
+import static com.nextgis.maplib.util.Constants.JSON_LAYERS_KEY;
+import static com.nextgis.maplib.util.Constants.JSON_PATH_KEY;
+import static com.nextgis.maplib.util.Constants.JSON_TYPE_KEY;
+import static com.nextgis.maplib.util.Constants.LAYERTYPE_GROUP;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+/**
+ * Reads and parses layer configs of a map in parallel while the map itself is being created.
+ * Layer paths are taken from the map file in the map order, group configs add their children
+ * when they are parsed. The factory hands parsed configs to the layers, so a layer loads from
+ * the config instead of reading and parsing its file again.
+ *
+ * Only configs are prefetched. The compact skeleton index and lazy initialisation of heavy
+ * layers on first draw are deferred: the map file format and layer loading are owned by maplib.
+ */
+public class LayerConfigPrefetcher
+{
+    protected static final int MAX_THREADS = 4;
+
+    protected final ExecutorService                 mExecutor;
+    protected final Map<String, Future<JSONObject>> mConfigs;
+
+
+    public LayerConfigPrefetcher()
+    {
+        int threads = Math.max(1, Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mConfigs = new ConcurrentHashMap<>();
+    }
+
+
+    /**
+     * Start reading configs of all map layers
+     *
+     * @param mapFile map file
+     * @return count of top level layers in the map
+     */
+    public int prefetch(File mapFile)
+    {
+        try {
+            JSONObject map = new JSONObject(FileUtil.readFromFile(mapFile));
+            return submitLayers(mapFile.getParentFile(), map);
+        } catch (IOException | JSONException e) {
+            // map is new or broken, let the map report it
+            return 0;
+        }
+    }
+
+
+    protected int submitLayers(
+            File parent,
+            JSONObject group)
+            throws JSONException
+    {
+        JSONArray layers = group.optJSONArray(JSON_LAYERS_KEY);
+        if (null == layers) {
+            return 0;
+        }
+
+        for (int i = 0; i < layers.length(); i++) {
+            String path = layers.getJSONObject(i).optString(JSON_PATH_KEY);
+            if (path.length() > 0) {
+                submit(new File(parent, path));
+            }
+        }
+
+        return layers.length();
+    }
+
+
+    protected void submit(final File path)
+    {
+        try {
+            mConfigs.put(path.getAbsolutePath(), mExecutor.submit(new Callable<JSONObject>()
+            {
+                @Override
+                public JSONObject call()
+                        throws Exception
+                {
+                    JSONObject config = new JSONObject(FileUtil.readFromFile(new File(path, CONFIG)));
+                    if (config.optInt(JSON_TYPE_KEY) == LAYERTYPE_GROUP) {
+                        submitLayers(path, config);
+                    }
+
+                    return config;
+                }
+            }));
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+
+    /**
+     * Take parsed layer config. The config is removed from the prefetcher.
+     *
+     * @param path layer directory
+     * @return config or null if it was not prefetched or could not be read
+     */
+    public JSONObject take(File path)
+    {
+        Future<JSONObject> config = mConfigs.remove(path.getAbsolutePath());
+        if (null == config) {
+            return null;
+        }
+
+        try {
+            return config.get();
+        } catch (InterruptedException | ExecutionException e) {
+            if (Constants.DEBUG_MODE) {
+                Log.d(TAG, "Config prefetch failed for " + path + ": " + e.getLocalizedMessage());
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * Load a layer from its parsed config the same way Layer.load() does from the file
+     *
+     * @return true if the layer is loaded
+     */
+    public static boolean load(
+            Layer layer,
+            JSONObject config)
+    {
+        try {
+            layer.fromJSON(config);
+        } catch (JSONException | SQLiteException e) {
+            e.printStackTrace();
+            return false;
+        }
+        return true;
+    }
+
+
+    public void shutdown()
+    {
+        mExecutor.shutdownNow();
+        mConfigs.clear();
+    }
+
+
+    /**
+     * Layer which can take a config parsed by the prefetcher for its next load()
+     */
+    public interface PrefetchedLayer
+    {
+        void setPrefetchedConfig(JSONObject config);
+    }
+}
@@ -71,6 +71,19 @@ import static com.nextgis.maplib.util.Constants.TAG;
 public class LayerFactoryUI
         extends LayerFactory
 {
+    protected LayerConfigPrefetcher mPrefetcher;
+
+
+    /**
+     * Take layer configs from the prefetcher while the map is loading
+     *
+     * @param prefetcher started prefetcher or null to read configs from files
+     */
+    public void setPrefetcher(LayerConfigPrefetcher prefetcher)
+    {
+        mPrefetcher = prefetcher;
+    }
+
 
     public void createNewNGWLayer(
             final Context context,
@@ -243,8 +256,11 @@ public class LayerFactoryUI
         ILayer layer = null;
 
         try {
-            String sData = FileUtil.readFromFile(config_file);
-            JSONObject rootObject = new JSONObject(sData);
+            JSONObject rootObject = null == mPrefetcher ? null : mPrefetcher.take(path);
+            if (null == rootObject) {
+                String sData = FileUtil.readFromFile(config_file);
+                rootObject = new JSONObject(sData);
+            }
             int nType = rootObject.getInt(JSON_TYPE_KEY);
 
             switch (nType) {
@@ -276,6 +292,11 @@ public class LayerFactoryUI
                     layer = new NGWLookupTable(context, path); // TODO: 26.07.15 Do we need UI for this?
                     break;
             }
+
+            // the caller loads the layer next, let it use the config parsed here
+            if (layer instanceof LayerConfigPrefetcher.PrefetchedLayer) {
+                ((LayerConfigPrefetcher.PrefetchedLayer) layer).setPrefetchedConfig(rootObject);
+            }
         } catch (IOException | JSONException e) {
             Log.d(TAG, e.getLocalizedMessage());
         }
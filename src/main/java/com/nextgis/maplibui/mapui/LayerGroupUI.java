@@ -31,6 +31,8 @@ import com.nextgis.maplib.map.LayerGroup;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.ILayerUI;
 
+import org.json.JSONObject;
+
 import java.io.File;
 
 
@@ -39,8 +41,10 @@ import java.io.File;
  */
 public class LayerGroupUI
         extends LayerGroup
-        implements ILayerUI
+        implements ILayerUI, LayerConfigPrefetcher.PrefetchedLayer
 {
+    protected JSONObject mPrefetchedConfig;
+
     public LayerGroupUI(
             Context context,
             File path,
@@ -62,4 +66,20 @@ public class LayerGroupUI
     {
 
     }
+
+
+    @Override
+    public void setPrefetchedConfig(JSONObject config)
+    {
+        mPrefetchedConfig = config;
+    }
+
+
+    @Override
+    public boolean load()
+    {
+        JSONObject config = mPrefetchedConfig;
+        mPrefetchedConfig = null;
+        return null == config ? super.load() : LayerConfigPrefetcher.load(this, config);
+    }
 }
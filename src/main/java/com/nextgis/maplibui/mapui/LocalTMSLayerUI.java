@@ -34,6 +34,8 @@ import com.nextgis.maplibui.activity.TMSLayerSettingsActivity;
 import com.nextgis.maplibui.api.ILayerUI;
 import com.nextgis.maplibui.util.ConstantsUI;
 
+import org.json.JSONObject;
+
 import java.io.File;
 
 
@@ -42,8 +44,9 @@ import java.io.File;
  */
 public class LocalTMSLayerUI
         extends LocalTMSLayer
-        implements ILayerUI
+        implements ILayerUI, LayerConfigPrefetcher.PrefetchedLayer
 {
+    protected JSONObject mPrefetchedConfig;
 
     public LocalTMSLayerUI(
             Context context,
@@ -69,4 +72,19 @@ public class LocalTMSLayerUI
         context.startActivity(settings);
     }
 
+
+    @Override
+    public void setPrefetchedConfig(JSONObject config)
+    {
+        mPrefetchedConfig = config;
+    }
+
+
+    @Override
+    public boolean load()
+    {
+        JSONObject config = mPrefetchedConfig;
+        mPrefetchedConfig = null;
+        return null == config ? super.load() : LayerConfigPrefetcher.load(this, config);
+    }
 }
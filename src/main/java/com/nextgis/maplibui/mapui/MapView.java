@@ -44,9 +44,6 @@ import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplibui.api.MapViewEventListener;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import static com.nextgis.maplib.util.Constants.DRAW_FINISH_ID;
 import static com.nextgis.maplib.util.Constants.TAG;
 import static com.nextgis.maplibui.util.ConstantsUI.DRAW_STATE_drawing;
@@ -71,35 +68,24 @@ public class MapView
     protected       double               mCurrentSpan;
     protected       Scroller             mScroller;
     protected       long                 mStartDrawTime;
-    private Timer mTimer;
-    private InvalidateTask mInvalidateTask;
+    protected       RedrawScheduler      mRedrawScheduler;
+    protected       boolean              mKeepSnapshot;
     final Handler uiHandler = new Handler();
 
     //display redraw timeout ms
     public static final int DISPLAY_REDRAW_TIMEOUT = 750;
 
-    class InvalidateTask extends TimerTask {
-
+    protected final Runnable mInvalidateTask = new Runnable() {
         @Override
         public void run() {
-            uiHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mDrawingState = DRAW_STATE_drawing;
-                    setZoomAndCenter(getZoomLevel(), getMapCenter());
-                }
-            });
+            mDrawingState = DRAW_STATE_drawing;
+            setZoomAndCenter(getZoomLevel(), getMapCenter());
         }
-    }
+    };
 
     public void scheduleInvalidate() {
-        if (mTimer != null) {
-            mTimer.cancel();
-        }
-
-        mTimer = new Timer();
-        mInvalidateTask = new InvalidateTask();
-        mTimer.schedule(mInvalidateTask, DISPLAY_REDRAW_TIMEOUT);
+        uiHandler.removeCallbacks(mInvalidateTask);
+        uiHandler.postDelayed(mInvalidateTask, DISPLAY_REDRAW_TIMEOUT);
     }
 
     public MapView(
@@ -122,6 +108,24 @@ public class MapView
         mCurrentFocusLocation = new PointF();
 
         mDrawingState = DRAW_STATE_drawing_noclearbk;
+
+        mRedrawScheduler = new RedrawScheduler(new RedrawScheduler.Callback() {
+            @Override
+            public void onRender(boolean cancelRunning) {
+                runDraw(cancelRunning);
+            }
+
+            @Override
+            public void onInvalidate() {
+                if (mMap != null) {
+                    // zoom gesture transforms the snapshot taken on its start
+                    if (mDrawingState != DRAW_STATE_zooming)
+                        mMap.buffer(0, 0, 1);
+                    mKeepSnapshot = false;
+                    invalidate();
+                }
+            }
+        });
     }
 
     @Override
@@ -155,6 +159,9 @@ public class MapView
         if (mMap != null) {
             mMap.removeListener(this);
         }
+
+        uiHandler.removeCallbacks(mInvalidateTask);
+        mRedrawScheduler.cancel();
     }
 
 
@@ -179,11 +186,15 @@ public class MapView
                     break;
 //TODO: add invalidate rect to prevent flicker
                 case DRAW_STATE_drawing_noclearbk:
-                    mMap.draw(canvas, 0, 0, false);
-                    break;
-
                 case DRAW_STATE_drawing:
-                    mMap.draw(canvas, 0, 0, true);
+                    if (mKeepSnapshot) {
+                        // show zoomed snapshot until the first part of new extent is rendered
+                        mMap.draw(
+                                canvas, -mCurrentFocusLocation.x, -mCurrentFocusLocation.y,
+                                (float) mScaleFactor);
+                    } else {
+                        mMap.draw(canvas, 0, 0, mDrawingState == DRAW_STATE_drawing);
+                    }
                     break;
 
                 //case DRAW_STATE_none:
@@ -206,6 +217,7 @@ public class MapView
             return;
         }
 
+        mKeepSnapshot = false;
         mDrawingState = DRAW_STATE_zooming;
         mCurrentSpan = scaleGestureDetector.getCurrentSpan();
         mCurrentFocusLocation.set(
@@ -233,7 +245,7 @@ public class MapView
             }
 
             mScaleFactor = scaleFactor;
-            mMap.buffer(0, 0, 1);
+            // just transform the snapshot taken in zoomStart, render after zoomStop only
             invalidate();
         }
     }
@@ -281,6 +293,7 @@ public class MapView
             }
         }
 
+        mKeepSnapshot = false;
         mDrawingState = DRAW_STATE_panning;
         mStartMouseLocation.set(e.getX(), e.getY());
         mCurrentMouseOffset.set(0, 0);
@@ -323,8 +336,7 @@ public class MapView
             }
 
             mCurrentMouseOffset.set(x, y);
-            mMap.buffer(0, 0, 1);
-            invalidate();
+            mRedrawScheduler.requestInvalidate();
         }
     }
 
@@ -584,10 +596,7 @@ public class MapView
         mScaleFactor = 2;
         mCurrentFocusLocation.set(-getWidth() / 2, -getHeight() / 2);
 
-        mMap.buffer(0, 0, 1); //TODO: zoom the buffer and just draw it, not draw with scale
-
-
-//        scheduleInvalidate();
+        mMap.buffer(0, 0, 1);
 
         super.zoomIn();
 
@@ -602,9 +611,7 @@ public class MapView
         mScaleFactor = 0.5;
         mCurrentFocusLocation.set(-getWidth() / 2, -getHeight() / 2);
 
-        mMap.buffer(0, 0, 1); //TODO: zoom the buffer and just draw it, not draw with scale
-
-//        scheduleInvalidate();
+        mMap.buffer(0, 0, 1);
 
         super.zoomOut();
 
@@ -661,7 +668,9 @@ public class MapView
             float zoom,
             GeoPoint center)
     {
-        drawMapDrawable();
+        if (mMap != null) {
+            mRedrawScheduler.requestRender(true);
+        }
     }
 
 
@@ -672,9 +681,29 @@ public class MapView
     }
 
 
+    /**
+     * Request map render. Requests are merged into one render pass per display frame.
+     */
     public void drawMapDrawable()
     {
         if (mMap != null) {
+            mRedrawScheduler.requestRender(false);
+        }
+    }
+
+
+    protected void runDraw(boolean cancelRunning)
+    {
+        if (mMap != null) {
+            if (cancelRunning) {
+                mMap.cancelDraw();
+            }
+
+            // zoom has ended, keep its snapshot on screen while rendering
+            if (mDrawingState == DRAW_STATE_zooming) {
+                mKeepSnapshot = true;
+            }
+
             mDrawingState = DRAW_STATE_drawing;
             mStartDrawTime = System.currentTimeMillis();
             mMap.runDraw(null);
@@ -695,14 +724,12 @@ public class MapView
 
         if (System.currentTimeMillis() - mStartDrawTime > DISPLAY_REDRAW_TIMEOUT) {
             mStartDrawTime = System.currentTimeMillis();
-            mMap.buffer(0, 0, 1);
-            postInvalidate();
+            mRedrawScheduler.requestInvalidate();
 
         } else if (id == DRAW_FINISH_ID && percent >= 1.0) {
             //Log.d(TAG, "LayerDrawFinished: id - " + id + ", percent - " + percent);
 
-            mMap.buffer(0, 0, 1);
-            postInvalidate();
+            mRedrawScheduler.requestInvalidate();
         }
     }
 
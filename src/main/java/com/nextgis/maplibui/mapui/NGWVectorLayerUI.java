@@ -44,6 +44,7 @@ import com.nextgis.maplibui.util.ControlHelper;
 import com.nextgis.maplibui.util.LayerUtil;
 
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
@@ -52,8 +53,10 @@ import java.util.ArrayList;
 
 public class NGWVectorLayerUI
         extends NGWVectorLayer
-        implements IVectorLayerUI
+        implements IVectorLayerUI, LayerConfigPrefetcher.PrefetchedLayer
 {
+    protected JSONObject mPrefetchedConfig;
+
     public NGWVectorLayerUI(
             Context context,
             File path)
@@ -143,4 +146,20 @@ public class NGWVectorLayerUI
         settings.putExtra(ConstantsUI.KEY_LAYER_ID, getId());
         mContext.startActivity(settings);
     }
+
+
+    @Override
+    public void setPrefetchedConfig(JSONObject config)
+    {
+        mPrefetchedConfig = config;
+    }
+
+
+    @Override
+    public boolean load()
+    {
+        JSONObject config = mPrefetchedConfig;
+        mPrefetchedConfig = null;
+        return null == config ? super.load() : LayerConfigPrefetcher.load(this, config);
+    }
 }
@@ -3,7 +3,7 @@
  * Purpose:  Mobile GIS for Android.
  * Author:   Stanislav Petriakov, becomeglory@gmail.com
  * *****************************************************************************
- * Copyright (c) 2016-2017 NextGIS, info@nextgis.com
+ * Copyright (c) 2016-2020 NextGIS, info@nextgis.com
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU Lesser Public License as published by
@@ -25,23 +25,31 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.map.NGWWebMapLayer;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.activity.TMSLayerSettingsActivity;
 import com.nextgis.maplibui.api.ILayerUI;
 import com.nextgis.maplibui.dialog.SelectZoomLevelsDialog;
-import com.nextgis.maplibui.util.ClearCacheTask;
 import com.nextgis.maplibui.util.ConstantsUI;
+import com.nextgis.maplibui.util.TileCacheManager;
+import com.nextgis.maplibui.util.TileCacheNamespaces;
+import com.nextgis.maplibui.util.TrimCacheTask;
+
+import org.json.JSONObject;
 
 import java.io.File;
 
-public class NGWWebMapLayerUI extends NGWWebMapLayer implements ILayerUI {
+public class NGWWebMapLayerUI extends NGWWebMapLayer implements ILayerUI, LayerConfigPrefetcher.PrefetchedLayer {
+    protected JSONObject mPrefetchedConfig;
+
     public NGWWebMapLayerUI(Context context, File path) {
         super(context, path);
     }
@@ -59,6 +67,12 @@ public class NGWWebMapLayerUI extends NGWWebMapLayer implements ILayerUI {
         context.startActivity(settings);
     }
 
+    @Override
+    public Bitmap getBitmap(TileItem tile) {
+        TileCacheManager.touch(getPath(), tile);
+        return super.getBitmap(tile);
+    }
+
     public void downloadTiles(Context context, GeoEnvelope env) {
         FragmentActivity fragmentActivity = (FragmentActivity) context;
         SelectZoomLevelsDialog newFragment = new SelectZoomLevelsDialog();
@@ -90,18 +104,20 @@ public class NGWWebMapLayerUI extends NGWWebMapLayer implements ILayerUI {
                         String newUrl = updateURL();
 
                         if (!oldUrl.equals(newUrl)) {
-                            DialogInterface.OnDismissListener listener = new DialogInterface.OnDismissListener() {
-                                @Override
-                                public void onDismiss(DialogInterface dialogInterface) {
-                                    if (mBitmapCache != null)
-                                        mBitmapCache.clear();
-
-                                    map.drawMapDrawable();
-                                }
-                            };
+                            // each sublayer set keeps its own tiles, they are moved while the old
+                            // URL is still set, so no tile of the new one lands in the old namespace
+                            setURL(oldUrl);
+                            // cancelDraw returns when draw threads are stopped, no new draw starts
+                            // before drawMapDrawable below, so no old tile lands in the new one
+                            map.getMap().cancelDraw();
+                            TileCacheNamespaces.switchTo(getPath(), oldUrl, newUrl);
+                            setURL(newUrl);
+                            if (mBitmapCache != null)
+                                mBitmapCache.clear();
 
-                            new ClearCacheTask(activity, listener).execute(getPath());
                             save();
+                            map.drawMapDrawable();
+                            new TrimCacheTask().execute(getPath());
                         }
                     }
                 });
@@ -109,4 +125,15 @@ public class NGWWebMapLayerUI extends NGWWebMapLayer implements ILayerUI {
         builder.show();
     }
 
+    @Override
+    public void setPrefetchedConfig(JSONObject config) {
+        mPrefetchedConfig = config;
+    }
+
+    @Override
+    public boolean load() {
+        JSONObject config = mPrefetchedConfig;
+        mPrefetchedConfig = null;
+        return null == config ? super.load() : LayerConfigPrefetcher.load(this, config);
+    }
 }
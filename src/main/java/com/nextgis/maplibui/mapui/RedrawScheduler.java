@@ -0,0 +1,209 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Choreographer;
+
+import com.nextgis.maplib.util.Constants;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * Merges map redraw requests from layers, overlays and gestures into at most one render pass and
+ * one buffer update per display frame. Requests may come from any thread, callbacks are called on
+ * the main thread, requests made on the main thread during input handling run in the same frame. Frames are driven by Choreographer on Jelly Bean and above and by a 16 ms
+ * handler delay on older devices.
+ */
+public class RedrawScheduler
+{
+    protected static final long FRAME_INTERVAL_MS = 16;
+    protected static final long FRAME_INTERVAL_NS = 16666667;
+    protected static final int  STATS_LOG_STEP    = 100;
+
+    public interface Callback
+    {
+        /**
+         * Render map layers.
+         *
+         * @param cancelRunning cancel the render pass in progress as the extent has changed
+         */
+        void onRender(boolean cancelRunning);
+
+        /**
+         * Copy rendered image to the display buffer and invalidate the view.
+         */
+        void onInvalidate();
+    }
+
+    protected final Callback mCallback;
+    protected final Handler  mHandler;
+    protected final Runnable mPostFrame;
+    protected Object mFrameCallback;
+
+    protected boolean mIsFramePosted;
+    protected boolean mIsRenderRequested, mIsCancelRequested, mIsInvalidateRequested;
+    protected long    mFrames, mRenders, mMergedRequests, mDroppedFrames;
+
+
+    public RedrawScheduler(Callback callback)
+    {
+        mCallback = callback;
+        mHandler = new Handler(Looper.getMainLooper());
+        mPostFrame = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    postFrameCallback();
+                } else {
+                    mHandler.postDelayed(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            doFrame(0);
+                        }
+                    }, FRAME_INTERVAL_MS);
+                }
+            }
+        };
+    }
+
+
+    public synchronized void requestRender(boolean cancelRunning)
+    {
+        if (mIsRenderRequested) {
+            mMergedRequests++;
+        }
+
+        mIsRenderRequested = true;
+        mIsCancelRequested |= cancelRunning;
+        postFrame();
+    }
+
+
+    public synchronized void requestInvalidate()
+    {
+        if (mIsInvalidateRequested) {
+            mMergedRequests++;
+        }
+
+        mIsInvalidateRequested = true;
+        postFrame();
+    }
+
+
+    public synchronized void cancel()
+    {
+        mIsRenderRequested = mIsCancelRequested = mIsInvalidateRequested = false;
+    }
+
+
+    public synchronized long getMergedRequests()
+    {
+        return mMergedRequests;
+    }
+
+
+    public synchronized long getDroppedFrames()
+    {
+        return mDroppedFrames;
+    }
+
+
+    protected void postFrame()
+    {
+        if (mIsFramePosted) {
+            return;
+        }
+
+        mIsFramePosted = true;
+        // gesture requests come from input handling and are drawn in the same frame
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            mPostFrame.run();
+        } else {
+            mHandler.post(mPostFrame);
+        }
+    }
+
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    protected void postFrameCallback()
+    {
+        if (mFrameCallback == null) {
+            mFrameCallback = new Choreographer.FrameCallback()
+            {
+                @Override
+                public void doFrame(long frameTimeNanos)
+                {
+                    RedrawScheduler.this.doFrame(frameTimeNanos);
+                }
+            };
+        }
+
+        Choreographer.getInstance().postFrameCallback((Choreographer.FrameCallback) mFrameCallback);
+    }
+
+
+    protected void doFrame(long frameTimeNanos)
+    {
+        boolean render, cancelRunning, invalidate;
+        synchronized (this) {
+            mIsFramePosted = false;
+            render = mIsRenderRequested;
+            cancelRunning = mIsCancelRequested;
+            invalidate = mIsInvalidateRequested;
+            mIsRenderRequested = mIsCancelRequested = mIsInvalidateRequested = false;
+
+            if (frameTimeNanos > 0) {
+                long late = System.nanoTime() - frameTimeNanos;
+                if (late > FRAME_INTERVAL_NS) {
+                    mDroppedFrames += late / FRAME_INTERVAL_NS;
+                }
+            }
+
+            mFrames++;
+            if (render) {
+                mRenders++;
+            }
+        }
+
+        // show gesture frame before the render pass changes drawing state
+        if (invalidate) {
+            mCallback.onInvalidate();
+        }
+        if (render) {
+            mCallback.onRender(cancelRunning);
+        }
+
+        if (Constants.DEBUG_MODE && mFrames % STATS_LOG_STEP == 0) {
+            Log.d(TAG, "RedrawScheduler: frames " + mFrames + ", renders " + mRenders + ", merged "
+                    + getMergedRequests() + ", dropped " + getDroppedFrames());
+        }
+    }
+}
@@ -25,25 +25,32 @@ package com.nextgis.maplibui.mapui;
 
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.content.ContextCompat;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.map.RemoteTMSLayer;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.activity.TMSLayerSettingsActivity;
 import com.nextgis.maplibui.api.ILayerUI;
 import com.nextgis.maplibui.dialog.SelectZoomLevelsDialog;
 import com.nextgis.maplibui.util.ConstantsUI;
+import com.nextgis.maplibui.util.TileCacheManager;
+
+import org.json.JSONObject;
 
 import java.io.File;
 
 
 public class RemoteTMSLayerUI
         extends RemoteTMSLayer
-        implements ILayerUI
+        implements ILayerUI, LayerConfigPrefetcher.PrefetchedLayer
 {
+    protected JSONObject mPrefetchedConfig;
+
     public RemoteTMSLayerUI(
             Context context,
             File path)
@@ -68,10 +75,33 @@ public class RemoteTMSLayerUI
         context.startActivity(settings);
     }
 
+    @Override
+    public Bitmap getBitmap(TileItem tile)
+    {
+        TileCacheManager.touch(getPath(), tile);
+        return super.getBitmap(tile);
+    }
+
     public void downloadTiles(Context context, GeoEnvelope env) {
         FragmentActivity fragmentActivity = (FragmentActivity) context;
         SelectZoomLevelsDialog newFragment = new SelectZoomLevelsDialog();
         newFragment.setEnvelope(env).setLayerId(getId()).
                 show(fragmentActivity.getSupportFragmentManager(), "select_zoom_levels");
     }
+
+
+    @Override
+    public void setPrefetchedConfig(JSONObject config)
+    {
+        mPrefetchedConfig = config;
+    }
+
+
+    @Override
+    public boolean load()
+    {
+        JSONObject config = mPrefetchedConfig;
+        mPrefetchedConfig = null;
+        return null == config ? super.load() : LayerConfigPrefetcher.load(this, config);
+    }
 }
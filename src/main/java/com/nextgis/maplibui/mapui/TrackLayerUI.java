@@ -37,12 +37,16 @@ import com.nextgis.maplibui.activity.TracksActivity;
 import com.nextgis.maplibui.api.ILayerUI;
 import com.nextgis.maplibui.service.TrackerService;
 
+import org.json.JSONObject;
+
 import java.io.File;
 
 import static com.nextgis.maplibui.service.TrackerService.ACTION_SYNC;
 
 
-public class TrackLayerUI extends TrackLayer implements ILayerUI {
+public class TrackLayerUI extends TrackLayer implements ILayerUI, LayerConfigPrefetcher.PrefetchedLayer {
+    protected JSONObject mPrefetchedConfig;
+
     public TrackLayerUI(Context context, File path) {
         super(context, path);
         mColor = ContextCompat.getColor(mContext, R.color.accent);
@@ -80,4 +84,16 @@ public class TrackLayerUI extends TrackLayer implements ILayerUI {
         trackerService.setAction(ACTION_SYNC);
         ContextCompat.startForegroundService(mContext, trackerService);
     }
+
+    @Override
+    public void setPrefetchedConfig(JSONObject config) {
+        mPrefetchedConfig = config;
+    }
+
+    @Override
+    public boolean load() {
+        JSONObject config = mPrefetchedConfig;
+        mPrefetchedConfig = null;
+        return null == config ? super.load() : LayerConfigPrefetcher.load(this, config);
+    }
 }
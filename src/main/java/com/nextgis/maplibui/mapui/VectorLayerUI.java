@@ -46,6 +46,8 @@ import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
 import com.nextgis.maplibui.util.LayerUtil;
 
+import org.json.JSONObject;
+
 import java.io.File;
 
 
@@ -54,8 +56,9 @@ import java.io.File;
  */
 public class VectorLayerUI
         extends VectorLayer
-        implements IVectorLayerUI
+        implements IVectorLayerUI, LayerConfigPrefetcher.PrefetchedLayer
 {
+    protected JSONObject mPrefetchedConfig;
 
     public VectorLayerUI(
             Context context,
@@ -137,4 +140,19 @@ public class VectorLayerUI
                 .show(activity.getSupportFragmentManager(), "send_layer_to_ngw");
     }
 
+
+    @Override
+    public void setPrefetchedConfig(JSONObject config)
+    {
+        mPrefetchedConfig = config;
+    }
+
+
+    @Override
+    public boolean load()
+    {
+        JSONObject config = mPrefetchedConfig;
+        mPrefetchedConfig = null;
+        return null == config ? super.load() : LayerConfigPrefetcher.load(this, config);
+    }
 }
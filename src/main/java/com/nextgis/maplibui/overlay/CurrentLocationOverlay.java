@@ -37,6 +37,7 @@ import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
 import android.location.Location;
 import android.preference.PreferenceManager;
+import android.util.SparseArray;
 
 import com.nextgis.maplib.api.GpsEventListener;
 import com.nextgis.maplib.api.IGISApplication;
@@ -57,6 +58,9 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
     public static final int WITH_MARKER = 1;
     public static final int WITH_ACCURACY = 1 << 1;
     private static final int AUTOPAN_THRESHOLD = 10;  // distance in pixels
+    private static final int BEARING_STEP = 5;  // degrees per cached moving marker sprite
+    private static final int STANDING_SPRITE = -1;
+    private static final double TRANSFORM_BASE = 1000000;
     protected final float mTolerancePX;
 
     private GpsEventSource mGpsEventSource;
@@ -68,9 +72,18 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
     private int mStandingMarkerRes = R.drawable.ic_action_maps_directions_walk;
     private int mMovingMarkerRes = android.R.drawable.arrow_up_float;
     private int mMarkerColor;
-    private OverlayItem mMarker, mAccuracy;
+    private OverlayItem mMarker;
     private int mShowMode;
 
+    // sprites keyed by bearing bucket, standing marker has its own key
+    private SparseArray<Bitmap> mSprites;
+    private Paint mAccuracyFill, mAccuracyStroke;
+    private float[] mAccuracyCenter;
+    private float mAccuracyRadius;
+    private GeoPoint mCenterPoint, mRadiusPoint, mTransformPoint;
+    private GeoEnvelope mTransformBounds, mScreenMapBounds;
+    private double mScaleX, mScaleY, mOffsetX, mOffsetY;
+
     public CurrentLocationOverlay(Context context, MapViewOverlays mapViewOverlays) {
         super(context, mapViewOverlays);
         Activity parent = (Activity) context;
@@ -79,9 +92,19 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
 
         mTolerancePX = context.getResources().getDisplayMetrics().density * AUTOPAN_THRESHOLD;
 
+        mSprites = new SparseArray<>();
+        mAccuracyCenter = new float[2];
+        mCenterPoint = new GeoPoint();
+        mRadiusPoint = new GeoPoint();
+        mTransformPoint = new GeoPoint();
+        mAccuracyFill = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mAccuracyStroke = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mAccuracyStroke.setStyle(Paint.Style.STROKE);
+        mAccuracyStroke.setStrokeWidth(2);
+        setAccuracyColor();
+
         double longitude = 0, latitude = 0;
         mMarker = new OverlayItem(mapViewOverlays.getMap(), longitude, latitude, getDefaultMarker());
-        mAccuracy = new OverlayItem(mapViewOverlays.getMap(), longitude, latitude, null);
 
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
         mShowMode = Integer.parseInt(preferences.getString(SettingsConstantsUI.KEY_PREF_SHOW_CURRENT_LOC, "3"));
@@ -97,7 +120,8 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
 
         if (mIsInBounds && isMarkerEnabled() && mCurrentLocation != null) {
             if (mIsAccuracyEnabled) {
-                drawOnPanning(canvas, currentMouseOffset, mAccuracy);
+                drawAccuracy(canvas, mAccuracyCenter[0] - currentMouseOffset.x,
+                        mAccuracyCenter[1] - currentMouseOffset.y, mAccuracyRadius);
             }
 
             drawOnPanning(canvas, currentMouseOffset, mMarker);
@@ -113,7 +137,11 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
 
         if (mIsInBounds && isMarkerEnabled() && mCurrentLocation != null) {
             if (mIsAccuracyEnabled) {
-                drawOnZooming(canvas, currentFocusLocation, scale, mAccuracy, true);
+                float x = mAccuracyCenter[0], y = mAccuracyCenter[1];
+                zoomPoints(mAccuracyCenter, mAccuracyCenter, 2, currentFocusLocation, scale);
+                drawAccuracy(canvas, mAccuracyCenter[0], mAccuracyCenter[1], mAccuracyRadius * scale);
+                mAccuracyCenter[0] = x;
+                mAccuracyCenter[1] = y;
             }
 
             drawOnZooming(canvas, currentFocusLocation, scale, mMarker, false);
@@ -129,33 +157,31 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
             mMarker.setCoordinatesFromWGS(lon, lat);
 
             if (null != mapDrawable) {
+                updateTransform(mapDrawable);
+
                 // set accuracy marker with proper meter radius
                 double accuracy = mCurrentLocation.getAccuracy();
                 accuracy = getAccuracyRadius(lat, accuracy);
 
-                GeoPoint centerPoint = new GeoPoint(lon, lat);
-                centerPoint.setCRS(GeoConstants.CRS_WGS84);
-                centerPoint.project(GeoConstants.CRS_WEB_MERCATOR);
-                centerPoint = mapDrawable.mapToScreen(centerPoint);
-                GeoPoint newPoint = new GeoPoint(lon, accuracy);
-                newPoint.setCRS(GeoConstants.CRS_WGS84);
-                newPoint.project(GeoConstants.CRS_WEB_MERCATOR);
-                newPoint = mapDrawable.mapToScreen(newPoint);
-
-                int radius = (int) (centerPoint.getY() - newPoint.getY());
-                mAccuracy.setMarker(getAccuracyMarker(radius));
-                mAccuracy.setCoordinatesFromWGS(lon, lat);
-
-                // set marker in current map and screen bounds flags
-                newPoint = mMarker.getCoordinates(GeoConstants.CRS_WEB_MERCATOR);
-                mIsInBounds = mapDrawable.getCurrentBounds().contains(newPoint);
-                GeoEnvelope screenBounds = mapDrawable.getFullScreenBounds();
-                mIsInScreenBounds = mapDrawable.screenToMap(screenBounds).contains(newPoint);
+                mCenterPoint.setCoordinates(lon, lat);
+                mCenterPoint.setCRS(GeoConstants.CRS_WGS84);
+                mCenterPoint.project(GeoConstants.CRS_WEB_MERCATOR);
+                mRadiusPoint.setCoordinates(lon, accuracy);
+                mRadiusPoint.setCRS(GeoConstants.CRS_WGS84);
+                mRadiusPoint.project(GeoConstants.CRS_WEB_MERCATOR);
+
+                mAccuracyCenter[0] = (float) (mCenterPoint.getX() * mScaleX + mOffsetX);
+                mAccuracyCenter[1] = (float) (mCenterPoint.getY() * mScaleY + mOffsetY);
+                mAccuracyRadius = (float) ((mCenterPoint.getY() - mRadiusPoint.getY()) * mScaleY);
+
+                // set marker in current map and screen bounds flags, the marker has the same point
+                mIsInBounds = mapDrawable.getCurrentBounds().contains(mCenterPoint);
+                mIsInScreenBounds = mScreenMapBounds.contains(mCenterPoint);
             }
 
             if (mIsInBounds) {
                 if (mIsAccuracyEnabled) {
-                    drawOverlayItem(canvas, mAccuracy);
+                    drawAccuracy(canvas, mAccuracyCenter[0], mAccuracyCenter[1], mAccuracyRadius);
                 }
 
                 drawOverlayItem(canvas, mMarker);
@@ -163,6 +189,35 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
         }
     }
 
+    /**
+     * Map to screen transform is linear for the same extent, so take it from two points only when
+     * the extent has changed. Other frames transform the location in place, the marker item still
+     * allocates its screen point in {@link OverlayItem#updateScreenCoordinates()}.
+     */
+    private void updateTransform(MapDrawable mapDrawable) {
+        GeoEnvelope bounds = mapDrawable.getCurrentBounds();
+        if (mTransformBounds != null && bounds.getMinX() == mTransformBounds.getMinX() &&
+                bounds.getMaxX() == mTransformBounds.getMaxX() && bounds.getMinY() == mTransformBounds.getMinY() &&
+                bounds.getMaxY() == mTransformBounds.getMaxY())
+            return;
+
+        mTransformBounds = new GeoEnvelope(bounds.getMinX(), bounds.getMaxX(), bounds.getMinY(), bounds.getMaxY());
+
+        mTransformPoint.setCoordinates(0, 0);
+        mTransformPoint.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+        GeoPoint screen = mapDrawable.mapToScreen(mTransformPoint);
+        mOffsetX = screen.getX();
+        mOffsetY = screen.getY();
+
+        mTransformPoint.setCoordinates(TRANSFORM_BASE, TRANSFORM_BASE);
+        mTransformPoint.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+        screen = mapDrawable.mapToScreen(mTransformPoint);
+        mScaleX = (screen.getX() - mOffsetX) / TRANSFORM_BASE;
+        mScaleY = (screen.getY() - mOffsetY) / TRANSFORM_BASE;
+
+        mScreenMapBounds = mapDrawable.screenToMap(mapDrawable.getFullScreenBounds());
+    }
+
     private double getAccuracyRadius(double lat, double accuracy) {
         int R = 6378137;
         double dxLat = accuracy / R;
@@ -196,11 +251,13 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
     public void setStandingMarker(int standingMarkerResource) {
         mStandingMarkerRes = standingMarkerResource;
         mIsStandingMarkerCustom = true;
+        mSprites.clear();
     }
 
     public void setMovingMarker(int movingMarkerResource) {
         mMovingMarkerRes = movingMarkerResource;
         mIsMovingMarkerCustom = true;
+        mSprites.clear();
     }
 
     /**
@@ -210,6 +267,14 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
      */
     public void setColor(int color) {
         mMarkerColor = color;
+        mSprites.clear();
+        setAccuracyColor();
+    }
+
+    private void setAccuracyColor() {
+        mAccuracyFill.setColor(mMarkerColor);
+        mAccuracyFill.setAlpha(64);
+        mAccuracyStroke.setColor(mMarkerColor);
     }
 
     public void setAutopanningEnabled(boolean isAutopanningEnabled) {
@@ -283,6 +348,21 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
     public Bitmap getDefaultMarker() {
         boolean isStanding = mCurrentLocation == null || !mCurrentLocation.hasBearing() || !mCurrentLocation.hasSpeed() || mCurrentLocation.getSpeed() == 0;
 
+        int key = STANDING_SPRITE;
+        if (!isStanding) {
+            key = Math.round(mCurrentLocation.getBearing() / BEARING_STEP) % (360 / BEARING_STEP);
+        }
+
+        Bitmap marker = mSprites.get(key);
+        if (marker == null) {
+            marker = createMarker(isStanding, key * BEARING_STEP);
+            mSprites.put(key, marker);
+        }
+
+        return marker;
+    }
+
+    private Bitmap createMarker(boolean isStanding, int bearing) {
         int resource = isStanding ? mStandingMarkerRes : mMovingMarkerRes;
         Bitmap marker = BitmapFactory.decodeResource(mContext.getResources(), resource);
         marker = marker.copy(Bitmap.Config.ARGB_8888, true);
@@ -293,17 +373,13 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
             }
         } else {
             Matrix matrix = new Matrix();
-            int arrowRotate = 0;
+            int arrowRotate = bearing;
 
             if (!mIsMovingMarkerCustom) {
                 applyColorFilter(marker);
                 arrowRotate += 90;
             }
 
-            if (mCurrentLocation.hasBearing()) {
-                arrowRotate += mCurrentLocation.getBearing();
-            }
-
             matrix.setRotate(arrowRotate);
 
             int w = marker.getWidth();
@@ -326,34 +402,19 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
         return marker;
     }
 
-    private Bitmap getAccuracyMarker(int accuracy) {
+    private void drawAccuracy(Canvas canvas, float x, float y, float radius) {
         int max = Math.max(mContext.getResources().getDisplayMetrics().widthPixels, mContext.getResources().getDisplayMetrics().heightPixels);
 
-        if (accuracy * 2 > max) {
-            return null;
-        }
-
-        if (accuracy <= 0) {
-            accuracy = 1;
+        if (radius * 2 > max || !isVisible()) {
+            return;
         }
 
-        Bitmap result = null;
-        try {
-            result = Bitmap.createBitmap(accuracy * 2, accuracy * 2, Bitmap.Config.ARGB_4444);
-            Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
-            Canvas canvas = new Canvas(result);
-            paint.setColor(mMarkerColor);
-            paint.setAlpha(64);
-            canvas.drawCircle(accuracy, accuracy, accuracy, paint);
-            paint.setAlpha(255);
-            paint.setStyle(Paint.Style.STROKE);
-            paint.setStrokeWidth(2);
-            canvas.drawCircle(accuracy, accuracy, accuracy - 2, paint);
-        } catch (OutOfMemoryError oom) {
-            oom.printStackTrace();
+        if (radius < 1) {
+            radius = 1;
         }
 
-        return result;
+        canvas.drawCircle(x, y, radius, mAccuracyFill);
+        canvas.drawCircle(x, y, radius - 2, mAccuracyStroke);
     }
 
     public Location getCurrentLocation() {
@@ -24,14 +24,20 @@
 package com.nextgis.maplibui.overlay;
 
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PointF;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.IBinder;
+import android.view.View;
 import com.nextgis.maplib.api.IGISApplication;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.MapDrawable;
@@ -40,24 +46,53 @@ import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.Overlay;
 import com.nextgis.maplibui.mapui.MapViewOverlays;
+import com.nextgis.maplibui.service.TrackerService;
 import com.nextgis.maplibui.util.ControlHelper;
 
-import java.util.ArrayList;
-import java.util.List;
-
 
+/**
+ * Draws the track being recorded. Track points are cached in a primitive array and only points
+ * added since the last update are read from the database. Screen coordinates are recalculated in
+ * bulk when the map extent changes, otherwise only new segments are appended to the lines buffer.
+ * While the overlay is attached and visible it stays bound to the tracker service, which stores
+ * each fix at once for as long as it has a bound client.
+ */
 public class CurrentTrackOverlay
         extends Overlay
 {
+    protected static final int    INITIAL_CAPACITY = 1024;
+    protected static final double TRANSFORM_BASE   = 1000000;
+
     private       Cursor         mCursor;
     private final Uri            mContentUriTracks;
+    private final Uri            mContentUriTrackPoints;
     private       Paint          mPaint;
-    private       List<GeoPoint> mTrackpoints;
+    private       boolean        mIsDirty;
+    private       boolean        mIsBound;
+
+    private final ServiceConnection mTrackerConnection;
+
+    private String   mTrackId;
+    private long     mLastTimestamp;
+    private double[] mMapPoints;
+    private int      mPointsCount;
+
+    private GeoPoint mTransformPoint;
+    private double   mScaleX, mScaleY, mOffsetX, mOffsetY;
+    private int      mWidth, mHeight;
+    private float[]  mScreenPoints;
+    private int      mTransformedCount;
+    private float[]  mLines;
+    private int      mLinesCount;
+    private float[]  mTransformedLines;
 
     String[] mProjection = new String[] {TrackLayer.FIELD_ID};
     String   mSelection  = TrackLayer.FIELD_VISIBLE + " = 1 AND (" + TrackLayer.FIELD_END +
                            " IS NULL OR " + TrackLayer.FIELD_END +
                            " = '')";
+    String[] mPointsProjection = new String[] {TrackLayer.FIELD_LON, TrackLayer.FIELD_LAT, TrackLayer.FIELD_TIMESTAMP};
+    String   mPointsSelection  = TrackLayer.FIELD_SESSION + " = ? AND " + TrackLayer.FIELD_TIMESTAMP + " > ?";
+    String   mPointsSort       = TrackLayer.FIELD_TIMESTAMP + " ASC";
 
 
     public CurrentTrackOverlay(
@@ -74,10 +109,50 @@ public class CurrentTrackOverlay
         mPaint.setColor(ControlHelper.getColor(mContext, R.attr.colorAccent));
         mPaint.setStrokeWidth(4);
 
-        mTrackpoints = new ArrayList<>();
+        mMapPoints = new double[INITIAL_CAPACITY * 2];
+        mScreenPoints = new float[INITIAL_CAPACITY * 2];
+        mLines = new float[INITIAL_CAPACITY * 4];
+        mTransformedLines = new float[0];
+        mTransformPoint = new GeoPoint();
+        mIsDirty = true;
+
         IGISApplication app = (IGISApplication) parent.getApplication();
         String authority = app.getAuthority();
         mContentUriTracks = Uri.parse("content://" + authority + "/" + TrackLayer.TABLE_TRACKS);
+        mContentUriTrackPoints = Uri.parse("content://" + authority + "/" + TrackLayer.TABLE_TRACKPOINTS);
+        mTrackerConnection = new ServiceConnection()
+        {
+            @Override
+            public void onServiceConnected(
+                    ComponentName name,
+                    IBinder service)
+            {
+            }
+
+
+            @Override
+            public void onServiceDisconnected(ComponentName name)
+            {
+            }
+        };
+
+        mapViewOverlays.addOnAttachStateChangeListener(new View.OnAttachStateChangeListener()
+        {
+            @Override
+            public void onViewAttachedToWindow(View view)
+            {
+                updateBinding();
+            }
+
+
+            @Override
+            public void onViewDetachedFromWindow(View view)
+            {
+                unbindTracker();
+            }
+        });
+        updateBinding();
+
         mCursor = mContext.getContentResolver()
                 .query(mContentUriTracks, mProjection, mSelection, null, null);
 
@@ -99,19 +174,13 @@ public class CurrentTrackOverlay
             return;
         }
 
-        if (mTrackpoints.size() < 2) {
+        if (mLinesCount == 0) {
             return;
         }
 
-        float x0, y0, x1, y1;
-
-        for (int i = 1; i < mTrackpoints.size(); i++) {
-            x0 = (float) mTrackpoints.get(i - 1).getX() - currentMouseOffset.x;
-            y0 = (float) mTrackpoints.get(i - 1).getY() - currentMouseOffset.y;
-            x1 = (float) mTrackpoints.get(i).getX() - currentMouseOffset.x;
-            y1 = (float) mTrackpoints.get(i).getY() - currentMouseOffset.y;
-            canvas.drawLine(x0, y0, x1, y1, mPaint);
-        }
+        float[] lines = getTransformedLines();
+        panPoints(mLines, lines, mLinesCount, currentMouseOffset);
+        canvas.drawLines(lines, 0, mLinesCount, mPaint);
     }
 
 
@@ -125,28 +194,13 @@ public class CurrentTrackOverlay
             return;
         }
 
-        float x0, y0, x1, y1;
-        double dx, dy;
-
-        if (mTrackpoints.size() < 2) {
+        if (mLinesCount == 0) {
             return;
-        } else {
-            dx = mTrackpoints.get(0).getX() + currentFocusLocation.x;
-            dy = mTrackpoints.get(0).getY() + currentFocusLocation.y;
-            x0 = (float) (mTrackpoints.get(0).getX() - (1 - scale) * dx);
-            y0 = (float) (mTrackpoints.get(0).getY() - (1 - scale) * dy);
         }
 
-        for (int i = 1; i < mTrackpoints.size(); i++) {
-            dx = mTrackpoints.get(i).getX() + currentFocusLocation.x;
-            dy = mTrackpoints.get(i).getY() + currentFocusLocation.y;
-            x1 = (float) (mTrackpoints.get(i).getX() - (1 - scale) * dx);
-            y1 = (float) (mTrackpoints.get(i).getY() - (1 - scale) * dy);
-
-            canvas.drawLine(x0, y0, x1, y1, mPaint);
-            x0 = x1;
-            y0 = y1;
-        }
+        float[] lines = getTransformedLines();
+        zoomPoints(mLines, lines, mLinesCount, currentFocusLocation, scale);
+        canvas.drawLines(lines, 0, mLinesCount, mPaint);
     }
 
 
@@ -155,61 +209,216 @@ public class CurrentTrackOverlay
             Canvas canvas,
             MapDrawable mapDrawable)
     {
-        mTrackpoints.clear();
+        if (mIsDirty) {
+            mIsDirty = false;
+            try {
+                updateTrack();
+            } catch (Exception ignored) {
+            }
+        }
 
-        if (mCursor == null || mCursor.getCount() == 0 || !mCursor.moveToFirst()) {
+        if (mPointsCount < 2) {
+            mLinesCount = 0;
             return;
         }
 
-        String id = mCursor.getString(0);
-        String[] proj = new String[] {TrackLayer.FIELD_LON, TrackLayer.FIELD_LAT};
+        updateTransform(mapDrawable, canvas.getWidth(), canvas.getHeight());
+        transformPoints();
 
-        try {
-            Cursor track = mContext.getContentResolver().query(Uri.withAppendedPath(mContentUriTracks, id), proj, null, null, null);
+        if (mLinesCount > 0) {
+            canvas.drawLines(mLines, 0, mLinesCount, mPaint);
+        }
+    }
 
-            if (track == null) {
-                return;
-            }
 
-            drawTrack(track, mapDrawable, canvas);
+    @Override
+    public void setVisibility(boolean isVisible)
+    {
+        super.setVisibility(isVisible);
+        updateBinding();
+    }
+
+
+    @Override
+    public void onRestoreState(Bundle bundle)
+    {
+        super.onRestoreState(bundle);
+        updateBinding();
+    }
+
+
+    /**
+     * Stay bound to the tracker service while the track is shown. The service is not started by
+     * the binding, the connection is made when the tracking starts.
+     */
+    private void updateBinding()
+    {
+        if (!mIsVisible || mMapViewOverlays.getWindowToken() == null) {
+            unbindTracker();
+            return;
+        }
+
+        if (!mIsBound) {
+            Intent intent = new Intent(mContext, TrackerService.class);
+            mIsBound = mContext.getApplicationContext().bindService(intent, mTrackerConnection, 0);
+        }
+    }
 
-            track.close();
-        } catch (Exception e) {
 
+    private void unbindTracker()
+    {
+        if (mIsBound) {
+            mIsBound = false;
+            mContext.getApplicationContext().unbindService(mTrackerConnection);
         }
     }
 
 
-    private void drawTrack(Cursor track, MapDrawable mapDrawable, Canvas canvas) {
+    /**
+     * Find the track being recorded and load its points added after the last known one. Called
+     * once per frame at most, however many points were inserted since the previous one.
+     */
+    private void updateTrack()
+    {
+        String id = null;
+        if (mCursor != null && mCursor.requery() && mCursor.getCount() > 0 && mCursor.moveToFirst()) {
+            id = mCursor.getString(0);
+        }
+
+        if (id == null || !id.equals(mTrackId)) {
+            mTrackId = id;
+            mLastTimestamp = Long.MIN_VALUE;
+            mPointsCount = 0;
+            mTransformedCount = 0;
+            mLinesCount = 0;
+        }
+
+        if (mTrackId == null) {
+            return;
+        }
+
+        String[] args = new String[] {mTrackId, Long.toString(mLastTimestamp)};
+        Cursor track = mContext.getContentResolver()
+                .query(mContentUriTrackPoints, mPointsProjection, mPointsSelection, args, mPointsSort);
+
+        if (track == null) {
+            return;
+        }
+
         if (track.moveToFirst()) {
-            float x0 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LON)),
-                    y0 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LAT)), x1, y1;
-            GeoPoint point;
-            point = new GeoPoint(x0, y0);
-            point.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+            ensureCapacity(mPointsCount + track.getCount());
+            do {
+                mMapPoints[mPointsCount * 2] = track.getDouble(0);
+                mMapPoints[mPointsCount * 2 + 1] = track.getDouble(1);
+                mLastTimestamp = track.getLong(2);
+                mPointsCount++;
+            } while (track.moveToNext());
+        }
 
-            GeoPoint mts = mapDrawable.mapToScreen(point);
-            x0 = (float) (mts.getX());
-            y0 = (float) (mts.getY());
+        track.close();
+    }
 
-            while (track.moveToNext()) {
-                x1 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LON));
-                y1 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LAT));
 
-                point = new GeoPoint(x1, y1);
-                point.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+    private void ensureCapacity(int count)
+    {
+        if (mMapPoints.length >= count * 2) {
+            return;
+        }
 
-                mts = mapDrawable.mapToScreen(point);
+        int capacity = Math.max(count, mMapPoints.length);
+        double[] mapPoints = new double[capacity * 2];
+        System.arraycopy(mMapPoints, 0, mapPoints, 0, mPointsCount * 2);
+        mMapPoints = mapPoints;
+
+        float[] screenPoints = new float[capacity * 2];
+        System.arraycopy(mScreenPoints, 0, screenPoints, 0, mTransformedCount * 2);
+        mScreenPoints = screenPoints;
+    }
 
-                canvas.drawLine(x0, y0, (float) mts.getX(), (float) mts.getY(), mPaint);
 
-                mTrackpoints.add(new GeoPoint(x0, y0));
-                x0 = (float) (mts.getX());
-                y0 = (float) (mts.getY());
+    /**
+     * Map to screen transform is linear for the same extent, so take it from two points and reset
+     * cached screen coordinates if it has changed.
+     */
+    private void updateTransform(
+            MapDrawable mapDrawable,
+            int width,
+            int height)
+    {
+        mTransformPoint.setCoordinates(0, 0);
+        mTransformPoint.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+        GeoPoint screen = mapDrawable.mapToScreen(mTransformPoint);
+        double offsetX = screen.getX(), offsetY = screen.getY();
+
+        mTransformPoint.setCoordinates(TRANSFORM_BASE, TRANSFORM_BASE);
+        mTransformPoint.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+        screen = mapDrawable.mapToScreen(mTransformPoint);
+        double scaleX = (screen.getX() - offsetX) / TRANSFORM_BASE;
+        double scaleY = (screen.getY() - offsetY) / TRANSFORM_BASE;
+
+        if (scaleX != mScaleX || scaleY != mScaleY || offsetX != mOffsetX || offsetY != mOffsetY ||
+                width != mWidth || height != mHeight) {
+            mScaleX = scaleX;
+            mScaleY = scaleY;
+            mOffsetX = offsetX;
+            mOffsetY = offsetY;
+            mWidth = width;
+            mHeight = height;
+            mTransformedCount = 0;
+            mLinesCount = 0;
+        }
+    }
+
+
+    /**
+     * Transform points not yet on screen and append visible segments to the lines buffer.
+     */
+    private void transformPoints()
+    {
+        if (mTransformedCount == mPointsCount) {
+            return;
+        }
+
+        for (int i = mTransformedCount; i < mPointsCount; i++) {
+            mScreenPoints[i * 2] = (float) (mMapPoints[i * 2] * mScaleX + mOffsetX);
+            mScreenPoints[i * 2 + 1] = (float) (mMapPoints[i * 2 + 1] * mScaleY + mOffsetY);
+        }
+
+        int start = Math.max(1, mTransformedCount);
+        int required = mLinesCount + (mPointsCount - start) * 4;
+        if (mLines.length < required) {
+            float[] lines = new float[Math.max(required, mLines.length * 2)];
+            System.arraycopy(mLines, 0, lines, 0, mLinesCount);
+            mLines = lines;
+        }
+
+        for (int i = start; i < mPointsCount; i++) {
+            float x0 = mScreenPoints[i * 2 - 2], y0 = mScreenPoints[i * 2 - 1];
+            float x1 = mScreenPoints[i * 2], y1 = mScreenPoints[i * 2 + 1];
+
+            // keep a screen size margin around to have something to show on panning
+            if (x0 < -mWidth && x1 < -mWidth || y0 < -mHeight && y1 < -mHeight ||
+                    x0 > 2 * mWidth && x1 > 2 * mWidth || y0 > 2 * mHeight && y1 > 2 * mHeight) {
+                continue;
             }
 
-            mTrackpoints.add(new GeoPoint(x0, y0));
+            mLines[mLinesCount++] = x0;
+            mLines[mLinesCount++] = y0;
+            mLines[mLinesCount++] = x1;
+            mLines[mLinesCount++] = y1;
+        }
+
+        mTransformedCount = mPointsCount;
+    }
+
+
+    private float[] getTransformedLines()
+    {
+        if (mTransformedLines.length < mLinesCount) {
+            mTransformedLines = new float[mLines.length];
         }
+
+        return mTransformedLines;
     }
 
 
@@ -240,7 +449,7 @@ public class CurrentTrackOverlay
         {
             super.onChange(selfChange);
 
-            mCursor.requery();
+            mIsDirty = true;
             mMapViewOverlays.postInvalidate();
         }
 
@@ -78,6 +78,7 @@ import com.nextgis.maplibui.mapui.MapViewOverlays;
 import com.nextgis.maplibui.service.WalkEditService;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.GeometryStore;
 import com.nextgis.maplibui.util.SettingsConstantsUI;
 
 import java.util.ArrayList;
@@ -126,6 +127,8 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
 
     protected List<DrawItem> mDrawItems;
     protected DrawItem mSelectedItem;
+    protected GeoGeometry mDrawnGeometry;
+    protected GeoEnvelope mDrawnBounds;
 
     protected int mMode;
     protected boolean mHasEdits;
@@ -259,6 +262,16 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
     protected void clearDrawItems() {
         mDrawItems.clear();
         mSelectedItem = null;
+        invalidateDrawItems();
+    }
+
+
+    /**
+     * Force draw items to be rebuilt from the feature geometry on the next draw
+     */
+    protected void invalidateDrawItems() {
+        mDrawnGeometry = null;
+        mDrawnBounds = null;
     }
 
 
@@ -698,34 +711,48 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
             return;
 
         // start service if not started yet
+        GeoGeometry geometry = getWalkGeometry();
+        if (null == geometry)
+            return;
+
+        Intent trackerService = new Intent(mContext, WalkEditService.class);
+        trackerService.setAction(WalkEditService.ACTION_START);
+        trackerService.putExtra(ConstantsUI.KEY_LAYER_ID, mLayer.getId());
+        GeometryStore.putExtra(mContext, trackerService, ConstantsUI.KEY_GEOMETRY, geometry);
+        trackerService.putExtra(ConstantsUI.TARGET_CLASS, mContext.getClass().getName());
+        ContextCompat.startForegroundService(mContext, trackerService);
+    }
+
+
+    // line or ring of the feature which is collected by walk
+    protected GeoGeometry getWalkGeometry() {
         GeoGeometry geometry = mFeature.getGeometry();
         int selectedRing = mSelectedItem.getSelectedRingId();
         int selectedGeometry = mDrawItems.indexOf(mSelectedItem);
 
         switch (mLayer.getGeometryType()) {
             case GeoConstants.GTLineString:
-                break;
+                return geometry;
             case GeoConstants.GTPolygon:
                 GeoPolygon polygon = ((GeoPolygon) geometry);
-                geometry = selectedRing == 0 ? polygon.getOuterRing() : polygon.getInnerRing(selectedRing - 1);
-                break;
+                return selectedRing == 0 ? polygon.getOuterRing() : polygon.getInnerRing(selectedRing - 1);
             case GeoConstants.GTMultiLineString:
-                geometry = ((GeoMultiLineString) geometry).get(selectedGeometry);
-                break;
+                return ((GeoMultiLineString) geometry).get(selectedGeometry);
             case GeoConstants.GTMultiPolygon:
                 GeoPolygon selectedPolygon = ((GeoMultiPolygon) geometry).get(selectedGeometry);
-                geometry = selectedRing == 0 ? selectedPolygon.getOuterRing() : selectedPolygon.getInnerRing(selectedRing - 1);
-                break;
+                return selectedRing == 0 ? selectedPolygon.getOuterRing() : selectedPolygon.getInnerRing(selectedRing - 1);
             default:
-                return;
+                return null;
         }
+    }
+
 
+    // ask running service to send the whole geometry
+    protected void requestGeometryFromWalkEdit() {
         Intent trackerService = new Intent(mContext, WalkEditService.class);
-        trackerService.setAction(WalkEditService.ACTION_START);
+        trackerService.setAction(WalkEditService.ACTION_RESYNC);
         trackerService.putExtra(ConstantsUI.KEY_LAYER_ID, mLayer.getId());
-        trackerService.putExtra(ConstantsUI.KEY_GEOMETRY, geometry);
-        trackerService.putExtra(ConstantsUI.TARGET_CLASS, mContext.getClass().getName());
-        ContextCompat.startForegroundService(mContext, trackerService);
+        mContext.startService(trackerService);
     }
 
 
@@ -779,6 +806,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
         }
 
         mFeature.setGeometry(geometry);
+        invalidateDrawItems();
     }
 
 
@@ -838,7 +866,15 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
         if (mMode == MODE_CHANGE || mFeature == null)
             return;
 
-        fillDrawItems(mFeature.getGeometry());
+        // keep draw items and their hit indexes until the geometry or the extent changes
+        GeoGeometry geometry = mFeature.getGeometry();
+        GeoEnvelope bounds = mapDrawable.getFullScreenBounds();
+        if (geometry != mDrawnGeometry || !sameBounds(bounds, mDrawnBounds)) {
+            fillDrawItems(geometry);
+            mDrawnGeometry = geometry;
+            mDrawnBounds = bounds == null ? null : new GeoEnvelope(
+                    bounds.getMinX(), bounds.getMaxX(), bounds.getMinY(), bounds.getMaxY());
+        }
 
         for (DrawItem drawItem : mDrawItems) {
             boolean isSelected = mSelectedItem == drawItem;
@@ -849,6 +885,13 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
     }
 
 
+    protected static boolean sameBounds(GeoEnvelope bounds, GeoEnvelope other) {
+        return bounds != null && other != null &&
+                bounds.getMinX() == other.getMinX() && bounds.getMaxX() == other.getMaxX() &&
+                bounds.getMinY() == other.getMinY() && bounds.getMaxY() == other.getMaxY();
+    }
+
+
     @Override
     public void drawOnPanning(
             Canvas canvas,
@@ -1169,16 +1212,19 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
         GeoPoint point = new GeoPoint(exactEnv.getMaxX(), exactEnv.getMinY());
         point.setCRS(GeoConstants.CRS_WEB_MERCATOR);
 
-        for (int i = 0; i < items.size(); i++) {    // FIXME hack for bad RTree cache
+        // the last candidate wins, so go backwards and load each geometry only once
+        for (int i = items.size() - 1; i >= 0; i--) {
             long featureId = items.get(i);
+            if (previousFeatureId == featureId)
+                continue;
+
             GeoGeometry geometry = mLayer.getGeometryForId(featureId);
-            if (notContains(geometry, point))
+            if (geometry == null || notContains(geometry, point))
                 continue;
 
-            if (geometry != null && previousFeatureId != featureId) {
-                mFeature = new Feature(featureId, mLayer.getFields());
-                mFeature.setGeometry(mLayer.getGeometryForId(featureId));
-            }
+            mFeature = new Feature(featureId, mLayer.getFields());
+            mFeature.setGeometry(geometry);
+            break;
         }
 
         if (mFeature == null || previousFeatureId == mFeature.getId())
@@ -1200,6 +1246,12 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
 
 
     public boolean notContains(GeoGeometry geometry, GeoPoint point) {
+        if (geometry instanceof GeoPolygon || geometry instanceof GeoMultiPolygon) {
+            GeoEnvelope envelope = geometry.getEnvelope();
+            if (envelope != null && !envelope.contains(point))
+                return true;
+        }
+
         if (geometry instanceof GeoPolygon) {
             GeoPolygon polygon = (GeoPolygon) geometry;
             if (!polygon.contains(point))
@@ -1388,12 +1440,101 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
     public class WalkEditReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            GeoGeometry geometry = (GeoGeometry) intent.getSerializableExtra(ConstantsUI.KEY_GEOMETRY);
-            setGeometryFromWalkEdit(geometry);
+            double[] points = intent.getDoubleArrayExtra(WalkEditService.EXTRA_POINTS);
+            if (points != null) {
+                int start = intent.getIntExtra(WalkEditService.EXTRA_START, Constants.NOT_FOUND);
+                if (!appendPointsFromWalkEdit(start, points)) {
+                    requestGeometryFromWalkEdit();
+                    return;
+                }
+            } else {
+                GeoGeometry geometry = GeometryStore.getExtra(context, intent.getExtras(), ConstantsUI.KEY_GEOMETRY);
+                setGeometryFromWalkEdit(geometry);
+            }
+
             mMapViewOverlays.postInvalidate();
         }
     }
 
+    /**
+     * Append new walk vertices to the feature and the selected draw item in place
+     *
+     * @param start index of the first new vertex
+     * @param points projected x, y pairs
+     * @return false if the geometry is out of sync with the service
+     */
+    public boolean appendPointsFromWalkEdit(int start, double[] points) {
+        if (mFeature == null || mSelectedItem == null)
+            return false;
+
+        GeoGeometry geometry = getWalkGeometry();
+        if (geometry == null)
+            return false;
+
+        GeoPoint[] geoPoints = new GeoPoint[points.length / 2];
+        for (int i = 0; i < geoPoints.length; i++) {
+            geoPoints[i] = new GeoPoint(points[i * 2], points[i * 2 + 1]);
+            geoPoints[i].setCRS(GeoConstants.CRS_WEB_MERCATOR);
+        }
+
+        switch (geometry.getType()) {
+            case GeoConstants.GTLineString:
+                GeoLineString line = (GeoLineString) geometry;
+                if (line.getPointCount() != start)
+                    return false;
+
+                for (GeoPoint point : geoPoints)
+                    line.add(point);
+                break;
+            case GeoConstants.GTLinearRing:
+                // the service keeps the ring open, ours repeats the first vertex at the end
+                GeoLinearRing ring = (GeoLinearRing) geometry;
+                boolean closed = ring.isClosed() && ring.getPointCount() > 1;
+                if (ring.getPointCount() - (closed ? 1 : 0) != start)
+                    return false;
+
+                GeoPoint first = null;
+                if (closed) {
+                    first = ring.getPoints().get(0);
+                    ring.remove(ring.getPointCount() - 1);
+                }
+
+                for (GeoPoint point : geoPoints)
+                    ring.add(point);
+
+                if (closed) {
+                    GeoPoint last = new GeoPoint(first.getX(), first.getY());
+                    last.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+                    ring.add(last);
+                    appendPointsToClosedRing(mSelectedItem.getSelectedRingId(), mapToScreen(geoPoints));
+                    return true;
+                }
+                break;
+            default:
+                return false;
+        }
+
+        mSelectedItem.appendPoints(mSelectedItem.getSelectedRingId(), mapToScreen(geoPoints));
+        return true;
+    }
+
+
+    // insert screen points before the closing vertex of the selected item ring
+    protected void appendPointsToClosedRing(int ringId, float[] points) {
+        float[] ring = mSelectedItem.getRing(ringId);
+        if (ring == null || ring.length < 2) {
+            mSelectedItem.appendPoints(ringId, points);
+            return;
+        }
+
+        float[] newRing = new float[ring.length + points.length];
+        System.arraycopy(ring, 0, newRing, 0, ring.length - 2);
+        System.arraycopy(points, 0, newRing, ring.length - 2, points.length);
+        newRing[newRing.length - 2] = ring[ring.length - 2];
+        newRing[newRing.length - 1] = ring[ring.length - 1];
+        mSelectedItem.setRing(ringId, newRing);
+    }
+
     public void setGeometryFromWalkEdit(GeoGeometry geometry) {
         int selectedGeometry = mDrawItems.indexOf(mSelectedItem);
         int selectedRing = mSelectedItem.getSelectedRingId();
@@ -1431,5 +1572,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener, G
                 mFeature.setGeometry(multiPolygon);
                 break;
         }
+
+        invalidateDrawItems();
     }
 }
@@ -3,7 +3,7 @@
  * Purpose:  Mobile GIS for Android.
  * Author:   Stanislav Petriakov, becomeglory@gmail.com
  * *****************************************************************************
- * Copyright (c) 2016-2019 NextGIS, info@nextgis.com
+ * Copyright (c) 2016-2020 NextGIS, info@nextgis.com
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU Lesser Public License as published by
@@ -25,7 +25,6 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.DashPathEffect;
 import android.graphics.Paint;
-import android.graphics.Path;
 import android.graphics.PointF;
 import android.os.Bundle;
 import android.view.MotionEvent;
@@ -34,7 +33,6 @@ import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoGeometryFactory;
 import com.nextgis.maplib.datasource.GeoLineString;
 import com.nextgis.maplib.datasource.GeoPoint;
-import com.nextgis.maplib.datasource.GeoPolygon;
 import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.DrawItem;
@@ -43,6 +41,7 @@ import com.nextgis.maplibui.api.Overlay;
 import com.nextgis.maplibui.mapui.MapViewOverlays;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.RulerMeasurement;
 
 import java.io.IOException;
 
@@ -55,7 +54,7 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
     protected Paint mPaint;
     protected DrawItem mRulerItem;
     protected GeoLineString mRulerString;
-    protected GeoPolygon mRulerPolygon;
+    protected RulerMeasurement mMeasurement;
     protected OnRulerChanged mListener;
 
     public interface OnRulerChanged {
@@ -74,12 +73,12 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
         mPaint.setAlpha(64);
 
         mTolerancePX = context.getResources().getDisplayMetrics().density * ConstantsUI.TOLERANCE_DP;
+        mMeasurement = new RulerMeasurement();
     }
 
     public void startMeasuring(OnRulerChanged listener, GeoPoint currentCenter) {
         mMeasuring = true;
         mRulerItem = new DrawItem();
-        mRulerPolygon = new GeoPolygon();
         mListener = listener;
         mMapViewOverlays.addListener(this);
 
@@ -92,6 +91,8 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
                 mRulerString.add(currentCenter);
                 fillDrawItem();
             }
+
+            mMeasurement.setPoints(mRulerString.getPoints());
         }
     }
 
@@ -99,7 +100,7 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
         mMeasuring = false;
         mRulerItem = null;
         mRulerString = null;
-        mRulerPolygon = null;
+        mMeasurement.clear();
         mListener = null;
         mMapViewOverlays.removeListener(this);
         mMapViewOverlays.postInvalidate();
@@ -111,14 +112,14 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
 
     public double getLength() {
         if (mMeasuring)
-            return mRulerString.getLength();
+            return mMeasurement.getLength();
 
         return 0;
     }
 
     public double getArea() {
         if (mMeasuring)
-            return mRulerPolygon.getArea();
+            return mMeasurement.getArea();
 
         return 0;
     }
@@ -139,26 +140,41 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
         mRulerItem.setSelectedPoint(selectedPoint);
     }
 
+    // full recount, also drops the rounding error collected by incremental updates
     protected void fillGeometry() {
-        mRulerString.clear();
-        mRulerPolygon.clear();
-        float[] points = mRulerItem.getRing(0);
+        mMeasurement.setPoints(mRulerString.getPoints());
+        notifyMeasurementChanged();
+    }
 
-        if (points != null) {
-            GeoPoint[] geoPoints = mMapViewOverlays.getMap().screenToMap(points);
-            for (GeoPoint geoPoint : geoPoints) {
-                mRulerString.add(geoPoint);
+    protected GeoPoint toMap(float x, float y) {
+        return mMapViewOverlays.getMap().screenToMap(new float[]{x, y})[0];
+    }
 
-                if (geoPoints.length > 2)
-                    mRulerPolygon.add(geoPoint);
-            }
+    protected void addPoint(float x, float y) {
+        GeoPoint point = toMap(x, y);
+        mRulerString.add(point);
+        mMeasurement.add(point.getX(), point.getY());
+        notifyMeasurementChanged();
+    }
 
-            if (mListener != null)
-                mListener.onLengthChanged(getLength());
+    protected void moveSelectedPoint(float x, float y) {
+        int index = mRulerItem.getSelectedPointId() / 2;
+        if (index < 0 || index >= mMeasurement.size())
+            return;
 
-            if (mListener != null && geoPoints.length > 2)
-                mListener.onAreaChanged(getArea());
-        }
+        GeoPoint point = toMap(x, y);
+        mRulerString.getPoints().get(index).setCoordinates(point.getX(), point.getY());
+        mMeasurement.move(index, point.getX(), point.getY());
+        notifyMeasurementChanged();
+    }
+
+    protected void notifyMeasurementChanged() {
+        if (mListener == null)
+            return;
+
+        mListener.onLengthChanged(getLength());
+        if (mMeasurement.size() > 2)
+            mListener.onAreaChanged(getArea());
     }
 
     @Override
@@ -194,19 +210,15 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
 
     protected void drawClosingLine(Canvas canvas, DrawItem drawItem) {
         float[] points = drawItem.getSelectedRing();
-        if (points != null && points.length >= 6) {
-            Path path = new Path();
-            path.moveTo(points[0], points[1]);
-            path.lineTo(points[points.length - 2], points[points.length - 1]);
-            canvas.drawPath(path, mPaint);
-        }
+        if (points != null && points.length >= 6)
+            canvas.drawLine(points[0], points[1], points[points.length - 2], points[points.length - 1], mPaint);
     }
 
     @Override
     public Bundle onSaveState() {
         Bundle bundle = super.onSaveState();
         try {
-            if (isMeasuring() && mRulerPolygon != null)
+            if (isMeasuring() && mRulerString != null)
                 bundle.putByteArray(BUNDLE_GEOMETRY, mRulerString.toBlob());
         } catch (IOException e) {
             e.printStackTrace();
@@ -254,7 +266,7 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
                 mRulerItem.setSelectedPoint(mRulerItem.getSelectedRing().length - 2);
             }
 
-            fillGeometry();
+            addPoint(event.getX(), event.getY());
             mMapViewOverlays.buffer();
             mMapViewOverlays.postInvalidate();
         }
@@ -278,8 +290,12 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
 
     @Override
     public void panMoveTo(MotionEvent e) {
-        if (mIsMoving)
-            mRulerItem.setSelectedPointCoordinates(e.getX() + mTempPointOffset.x, e.getY() + mTempPointOffset.y);
+        if (mIsMoving) {
+            float x = e.getX() + mTempPointOffset.x;
+            float y = e.getY() + mTempPointOffset.y;
+            mRulerItem.setSelectedPointCoordinates(x, y);
+            moveSelectedPoint(x, y);
+        }
     }
 
     @Override
@@ -3,7 +3,7 @@
  * Purpose:  Mobile GIS for Android.
  * Author:   Stanislav Petriakov, becomeglory@gmail.com
  * *****************************************************************************
- * Copyright (c) 2016-2017, 2019 NextGIS, info@nextgis.com
+ * Copyright (c) 2016-2017, 2019-2020 NextGIS, info@nextgis.com
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU Lesser Public License as published by
@@ -35,26 +35,45 @@ import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.Overlay;
 import com.nextgis.maplibui.mapui.MapViewOverlays;
+import com.nextgis.maplibui.util.BinaryDelta;
 import com.nextgis.maplibui.util.ControlHelper;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.LinkedList;
 
+/**
+ * Undo and redo of feature geometry edits. Only the current geometry blob is kept in full, each
+ * edit step is a reversible {@link BinaryDelta} to the previous step stored in a ring buffer.
+ * Steps changing most of the geometry are stored as full checkpoints. History is saved to a
+ * file in the cache directory instead of the state bundle.
+ */
 public class UndoRedoOverlay extends Overlay {
-    private static final String BUNDLE_KEY_HISTORY = "history_";
-    private static final String BUNDLE_KEY_HISTORY_SIZE = "history_size";
     private static final String BUNDLE_KEY_HISTORY_STATE = "history_state";
+    private static final String BUNDLE_KEY_HISTORY_FILE = "history_file";
+    private static final String HISTORY_FILE = "undo_history";
+    private static final int HISTORY_VERSION = 1;
 
-    private final static int MAX_UNDO = 10;
+    private final static int MAX_UNDO = 200;
 
     private Toolbar mTopToolbar;
     private int mHistoryState;
-    private LinkedList<GeoGeometry> mHistory;
+    private int mHistorySize;
+    // delta k changes step k to step k + 1 and is stored at (mHead + k) % MAX_UNDO
+    private BinaryDelta[] mDeltas;
+    private int mHead;
+    private byte[] mCurrent;
     private Feature mFeature;
 
     public UndoRedoOverlay(Context context, MapViewOverlays mapViewOverlays) {
         super(context, mapViewOverlays);
-        mHistory = new LinkedList<>();
+        mDeltas = new BinaryDelta[MAX_UNDO];
+        mHistoryState = -1;
         mFeature = new Feature();
     }
 
@@ -78,25 +97,30 @@ public class UndoRedoOverlay extends Overlay {
         Bundle bundle = super.onSaveState();
 
         bundle.putInt(BUNDLE_KEY_HISTORY_STATE, mHistoryState);
-        bundle.putInt(BUNDLE_KEY_HISTORY_SIZE, mHistory.size());
-        for (int i = 0; i < mHistory.size(); i++)
+        if (mHistorySize > 0) {
+            File file = getHistoryFile();
             try {
-                bundle.putByteArray(BUNDLE_KEY_HISTORY + i, mHistory.get(i).toBlob());
+                writeHistory(file);
+                bundle.putString(BUNDLE_KEY_HISTORY_FILE, file.getPath());
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        }
 
         return bundle;
     }
 
     @Override
     public void onRestoreState(Bundle bundle) {
-        mHistoryState = bundle.getInt(BUNDLE_KEY_HISTORY_STATE, mHistoryState);
-        for (int i = 0; i < bundle.getInt(BUNDLE_KEY_HISTORY_SIZE, mHistory.size()); i++)
+        String path = bundle.getString(BUNDLE_KEY_HISTORY_FILE);
+        if (null != path)
             try {
-                mHistory.add(GeoGeometryFactory.fromBlob(bundle.getByteArray(BUNDLE_KEY_HISTORY + i)));
+                readHistory(new File(path));
+                mHistoryState = bundle.getInt(BUNDLE_KEY_HISTORY_STATE, mHistoryState);
+                mFeature.setGeometry(GeoGeometryFactory.fromBlob(mCurrent));
             } catch (IOException e) {
                 e.printStackTrace();
+                clearHistory();
             }
 
         super.onRestoreState(bundle);
@@ -105,9 +129,9 @@ public class UndoRedoOverlay extends Overlay {
 
     public boolean onOptionsItemSelected(int id) {
         if (id == R.id.menu_edit_undo) {
-            return restoreFromHistory(--mHistoryState);
+            return undo();
         } else if (id == R.id.menu_edit_redo) {
-            return restoreFromHistory(++mHistoryState);
+            return redo();
         }
 
         return false;
@@ -121,33 +145,77 @@ public class UndoRedoOverlay extends Overlay {
         if (null == feature || null == feature.getGeometry())
             return;
 
-        for (int i = mHistory.size() - 1; i > mHistoryState; i--)
-            mHistory.remove(i);
+        byte[] blob;
+        try {
+            blob = feature.getGeometry().toBlob();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
 
-        if (mHistory.size() >= MAX_UNDO + 1)
-            mHistory.removeFirst();
+        // drop redo steps
+        mHistorySize = mHistoryState + 1;
+        if (mHistorySize > 0) {
+            if (mHistorySize > MAX_UNDO) {
+                mDeltas[mHead] = null;
+                mHead = (mHead + 1) % MAX_UNDO;
+                mHistorySize--;
+                mHistoryState--;
+            }
+
+            mDeltas[(mHead + mHistorySize - 1) % MAX_UNDO] = BinaryDelta.create(mCurrent, blob);
+        }
 
+        mHistorySize++;
         mHistoryState++;
-        mHistory.add(feature.getGeometry().copy());
-        mFeature.setGeometry(mHistory.getLast());
+        mCurrent = blob;
+        mFeature.setGeometry(feature.getGeometry().copy());
         defineUndoRedo();
     }
 
 
-    private boolean restoreFromHistory(int id) {
-        if (id < 0 || id >= mHistory.size())
+    private boolean undo() {
+        if (mHistoryState <= 0)
             return false;
 
-        mFeature.setGeometry(mHistory.get(id).copy());
-        defineUndoRedo();
+        mCurrent = mDeltas[(mHead + mHistoryState - 1) % MAX_UNDO].revert(mCurrent);
+        mHistoryState--;
+        return restoreCurrent();
+    }
+
+
+    private boolean redo() {
+        if (mHistoryState + 1 >= mHistorySize)
+            return false;
+
+        mCurrent = mDeltas[(mHead + mHistoryState) % MAX_UNDO].apply(mCurrent);
+        mHistoryState++;
+        return restoreCurrent();
+    }
+
 
+    private boolean restoreCurrent() {
+        try {
+            mFeature.setGeometry(GeoGeometryFactory.fromBlob(mCurrent));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        defineUndoRedo();
         return true;
     }
 
 
     public void clearHistory() {
-        mHistory.clear();
+        for (int i = 0; i < MAX_UNDO; i++)
+            mDeltas[i] = null;
+
+        mHead = 0;
+        mHistorySize = 0;
         mHistoryState = -1;
+        mCurrent = null;
+        getHistoryFile().delete();
     }
 
 
@@ -158,10 +226,53 @@ public class UndoRedoOverlay extends Overlay {
 
         item = mTopToolbar.getMenu().findItem(R.id.menu_edit_redo);
         if (item != null)
-            ControlHelper.setEnabled(item, mHistoryState + 1 < mHistory.size());
+            ControlHelper.setEnabled(item, mHistoryState + 1 < mHistorySize);
     }
 
     public Feature getFeature() {
         return mFeature;
     }
+
+
+    private File getHistoryFile() {
+        return new File(mContext.getCacheDir(), HISTORY_FILE);
+    }
+
+
+    private void writeHistory(File file) throws IOException {
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            stream.writeInt(HISTORY_VERSION);
+            stream.writeInt(mHistorySize);
+            stream.writeInt(mCurrent.length);
+            stream.write(mCurrent);
+            for (int i = 0; i < mHistorySize - 1; i++)
+                mDeltas[(mHead + i) % MAX_UNDO].write(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+
+    private void readHistory(File file) throws IOException {
+        DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (stream.readInt() != HISTORY_VERSION)
+                throw new IOException("Unknown history version");
+
+            int size = stream.readInt();
+            byte[] current = new byte[stream.readInt()];
+            stream.readFully(current);
+            BinaryDelta[] deltas = new BinaryDelta[MAX_UNDO];
+            for (int i = 0; i < size - 1; i++)
+                deltas[i] = BinaryDelta.read(stream);
+
+            mDeltas = deltas;
+            mHead = 0;
+            mHistorySize = size;
+            mCurrent = current;
+        } finally {
+            stream.close();
+        }
+    }
 }
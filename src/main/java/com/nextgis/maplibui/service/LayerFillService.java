@@ -4,7 +4,7 @@
  * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
  * Author:   Stanislav Petriakov, becomeglory@gmail.com
  * *****************************************************************************
- * Copyright (c) 2015-2019 NextGIS, info@nextgis.com
+ * Copyright (c) 2015-2020 NextGIS, info@nextgis.com
  *
  * This program is free software: you can redistribute it and/or modify
  * it under the terms of the GNU Lesser Public License as published by
@@ -27,7 +27,11 @@ import android.accounts.AccountsException;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ContentResolver;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.UriPermission;
+import android.content.pm.ProviderInfo;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.net.Uri;
@@ -38,6 +42,7 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.text.TextUtils;
 import android.util.Log;
@@ -70,7 +75,9 @@ import com.nextgis.maplibui.mapui.VectorLayerUI;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.LayerUtil;
 import com.nextgis.maplibui.util.NotificationHelper;
+import com.nextgis.maplibui.util.SettingsConstantsUI;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -82,31 +89,40 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
-import java.util.LinkedList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import static com.nextgis.maplibui.util.NotificationHelper.createBuilder;
 
 /**
- * Service for filling layers with data
+ * Service for filling layers with data. Tasks are journaled to disk until they finish, so they
+ * are resumed after process death. Network bound tasks run in parallel with each other and with
+ * one local task at a time, queued tasks are started by priority.
  */
-public class LayerFillService extends Service implements IProgressor {
+public class LayerFillService extends Service {
     protected NotificationManager mNotifyManager;
-    protected List<LayerFillTask> mQueue;
+    protected final List<LayerFillTask> mQueue = new ArrayList<>();
+    protected final List<LayerFillTask> mRunning = new ArrayList<>();
     protected static final int FILL_NOTIFICATION_ID = 9;
     protected NotificationCompat.Builder mBuilder;
-    protected String mNotifyTitle;
 
     public final static int VECTOR_LAYER           = 1;
     public final static int VECTOR_LAYER_WITH_FORM = 2;
     public final static int TMS_LAYER              = 3;
     public final static int NGW_LAYER              = 4;
+    protected final static int FORM_DATA_LAYER     = 5;
 
     public static final String ACTION_STOP = "com.nextgis.maplibui.FILL_LAYER_STOP";
     public static final String ACTION_ADD_TASK = "com.nextgis.maplibui.ADD_FILL_LAYER_TASK";
+    public static final String ACTION_CANCEL_TASK = "com.nextgis.maplibui.CANCEL_FILL_LAYER_TASK";
     public static final String ACTION_SHOW = "com.nextgis.maplibui.SHOW_PROGRESS_DIALOG";
     public static final String ACTION_UPDATE = "com.nextgis.maplibui.UPDATE_FILL_LAYER_PROGRESS";
     public static final String KEY_STATUS = "status";
@@ -132,6 +148,8 @@ public class LayerFillService extends Service implements IProgressor {
     public static final String KEY_LAYER_GROUP_ID = "layer_group_id";
     public static final String KEY_TMS_TYPE   = "tms_type";
     public static final String KEY_TMS_CACHE   = "tms_cache";
+    public static final String KEY_TASK_ID = "task_id";
+    public static final String KEY_PRIORITY = "priority";
     public static final String NGFP_META = "ngfp_meta.json";
     protected final static String NGFP_FILE_META = "meta.json";
     protected final static String NGFP_FILE_DATA = "data.geojson";
@@ -142,16 +160,25 @@ public class LayerFillService extends Service implements IProgressor {
     public static final short STATUS_STOP = 2;
     public static final short STATUS_SHOW = 3;
 
-    protected int mProgressMax;
-    protected int mProgressValue;
-    protected LayerGroup mLayerGroup;
-    protected long mLastUpdate = 0;
-    protected String mProgressMessage;
-    protected boolean mIndeterminate;
-    protected boolean mIsCanceled;
-    protected boolean mIsRunning;
+    protected static final String JOURNAL_DIR = "layer_fill";
+    protected static final String JOURNAL_EXT = ".json";
+    protected static final String JSON_ID = "id";
+    protected static final String JSON_TYPE = "type";
+    protected static final String JSON_PRIORITY = "priority";
+    protected static final String JSON_GROUP = "group";
+    protected static final String JSON_KEEP_PATH = "keep_path";
+    protected static final String KEY_URI_PERMISSION = "uri_permission";
+    protected static final String JSON_EXTRAS = "extras";
+    protected static final String JSON_VALUE = "v";
+    protected static final String JSON_VALUE_TYPE = "t";
+
+    protected static final int DEFAULT_MAX_TASKS = 4;
+    protected static final int MAX_LOCAL_TASKS = 1;
+
+    protected ExecutorService mExecutor;
+    protected int mMaxTasks;
+    protected long mNextId;
     protected Handler mHandler;
-    protected Intent mProgressIntent;
 
     protected static final String BUNDLE_MSG_KEY = "error_message";
 
@@ -161,7 +188,6 @@ public class LayerFillService extends Service implements IProgressor {
         int icon = R.drawable.ic_notification_download;
         Bitmap largeIcon = NotificationHelper.getLargeIcon(icon, getResources());
 
-        mProgressIntent = new Intent(ACTION_UPDATE);
         Intent intent = new Intent(this, LayerFillService.class);
         intent.setAction(ACTION_STOP);
         int flag = PendingIntent.FLAG_UPDATE_CURRENT;
@@ -175,10 +201,7 @@ public class LayerFillService extends Service implements IProgressor {
                 .setOngoing(true)
                 .setContentIntent(show)
                 .addAction(R.drawable.ic_action_cancel_dark, getString(R.string.tracks_stop), stop);
-        mIsCanceled = false;
 
-        mQueue = new LinkedList<>();
-        mIsRunning = false;
         mHandler = new Handler(Looper.getMainLooper()){
             @Override
             public void handleMessage(Message msg) {
@@ -193,6 +216,18 @@ public class LayerFillService extends Service implements IProgressor {
             mBuilder.setWhen(System.currentTimeMillis()).setContentTitle(title).setTicker(title);
             startForeground(FILL_NOTIFICATION_ID, mBuilder.build());
         }
+
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+        try {
+            String value = preferences.getString(SettingsConstantsUI.KEY_PREF_LAYER_FILL_TASKS, DEFAULT_MAX_TASKS + "");
+            mMaxTasks = Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            mMaxTasks = DEFAULT_MAX_TASKS;
+        }
+
+        mExecutor = Executors.newCachedThreadPool();
+        mNextId = System.currentTimeMillis();
+        resumeTasks();
     }
 
     @Override
@@ -204,165 +239,339 @@ public class LayerFillService extends Service implements IProgressor {
                 switch (action) {
                     case ACTION_ADD_TASK:
                         int layerGroupId = intent.getIntExtra(KEY_LAYER_GROUP_ID, Constants.NOT_FOUND);
-                        mLayerGroup = (LayerGroup) MapBase.getInstance().getLayerById(layerGroupId);
+                        LayerGroup layerGroup = (LayerGroup) MapBase.getInstance().getLayerById(layerGroupId);
 
                         int layerType = intent.getIntExtra(KEY_INPUT_TYPE, Constants.NOT_FOUND);
-                        Bundle extra = intent.getExtras();
-
-                        switch (layerType) {
-                            case VECTOR_LAYER:
-                                mQueue.add(new VectorLayerFillTask(extra));
-                                break;
-                            case VECTOR_LAYER_WITH_FORM:
-                                mQueue.add(new UnzipForm(extra));
-                                break;
-                            case TMS_LAYER:
-                                mQueue.add(new LocalTMSFillTask(extra));
-                                break;
-                            case NGW_LAYER:
-                                mQueue.add(new NGWVectorLayerFillTask(extra));
-                                break;
-                        }
-
-                        if(!mIsRunning){
-                            startNextTask();
-                        }
-
+                        Bundle extra = new Bundle(intent.getExtras());
+                        addTask(layerType, extra, layerGroup, extra.getInt(KEY_PRIORITY, 0), false);
                         return START_STICKY;
                     case ACTION_STOP:
-                        mQueue.clear();
-                        mIsCanceled = true;
+                        synchronized (mQueue) {
+                            for (LayerFillTask task : mQueue)
+                                removeTask(task);
+                            mQueue.clear();
+
+                            for (LayerFillTask task : mRunning)
+                                task.mIsCanceled = true;
+                        }
                         startNextTask();
                         break;
+                    case ACTION_CANCEL_TASK:
+                        cancelTask(intent.getLongExtra(KEY_TASK_ID, Constants.NOT_FOUND));
+                        break;
                     case ACTION_SHOW:
-                        mProgressIntent.putExtra(KEY_STATUS, STATUS_SHOW).putExtra(KEY_TITLE, mNotifyTitle);
-                        sendBroadcast(mProgressIntent);
+                        LayerFillTask current = null;
+                        synchronized (mQueue) {
+                            if (!mRunning.isEmpty())
+                                current = mRunning.get(0);
+                        }
+
+                        Intent show = new Intent(ACTION_UPDATE);
+                        show.putExtra(KEY_STATUS, STATUS_SHOW);
+                        if (current != null)
+                            show.putExtra(KEY_TITLE, current.getDescription()).putExtra(KEY_TASK_ID, current.mId);
+                        sendBroadcast(show);
                         break;
                 }
             }
-        }
+        } else
+            startNextTask(); // restarted by system, stop if there is nothing to resume
+
         return START_STICKY;
     }
 
-    protected void startNextTask(){
-        if (mQueue.isEmpty()){
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
-                stopForeground(true);
-            else
-                mNotifyManager.cancel(FILL_NOTIFICATION_ID);
+    /**
+     * Create task, journal it and put to the queue
+     *
+     * @param keepPath task data is already in the layer path, the path should not be recreated on resume
+     */
+    protected void addTask(int layerType, Bundle extra, LayerGroup layerGroup, int priority, boolean keepPath) {
+        if (layerGroup == null)
+            return;
 
-            stopSelf();
+        LayerFillTask task = createTask(layerType, extra, layerGroup);
+        if (task == null)
             return;
+
+        extra.putSerializable(KEY_LAYER_PATH, task.mLayerPath);
+        synchronized (mQueue) {
+            task.mId = mNextId++;
+        }
+        task.mType = layerType;
+        task.mPriority = priority;
+        task.mBundle = extra;
+        task.mKeepPath = keepPath;
+        if (takeUriPermission(task))
+            saveTask(task);
+
+        synchronized (mQueue) {
+            mQueue.add(task);
         }
+        startNextTask();
+    }
 
-        mIsRunning = true;
-        final  IProgressor progressor = this;
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                if (mIsCanceled)
-                    return;
+    protected LayerFillTask createTask(int layerType, Bundle extra, LayerGroup layerGroup) {
+        switch (layerType) {
+            case VECTOR_LAYER:
+                return new VectorLayerFillTask(extra, layerGroup);
+            case VECTOR_LAYER_WITH_FORM:
+                return new UnzipForm(extra, layerGroup);
+            case TMS_LAYER:
+                return new LocalTMSFillTask(extra, layerGroup);
+            case NGW_LAYER:
+                return new NGWVectorLayerFillTask(extra, layerGroup);
+            case FORM_DATA_LAYER:
+                return new VectorLayerFormFillTask(extra, layerGroup);
+            default:
+                return null;
+        }
+    }
 
-                LayerFillTask task = mQueue.remove(0);
-                mNotifyTitle = task.getDescription();
+    protected void cancelTask(long id) {
+        LayerFillTask queued = null;
+        synchronized (mQueue) {
+            for (LayerFillTask task : mRunning)
+                if (task.mId == id)
+                    task.mIsCanceled = true;
 
-                mBuilder.setWhen(System.currentTimeMillis())
-                        .setContentTitle(mNotifyTitle)
-                        .setTicker(mNotifyTitle);
-                mNotifyManager.notify(FILL_NOTIFICATION_ID, mBuilder.build());
+            for (LayerFillTask task : mQueue)
+                if (task.mId == id)
+                    queued = task;
 
-                if (mProgressIntent.getExtras() != null)
-                    mProgressIntent.getExtras().clear();
+            if (queued != null)
+                mQueue.remove(queued);
+        }
 
-                mProgressIntent.putExtra(KEY_STATUS, STATUS_START).putExtra(KEY_TITLE, mNotifyTitle);
-                sendBroadcast(mProgressIntent);
+        if (queued != null) {
+            removeTask(queued);
+            Intent stop = new Intent(ACTION_UPDATE);
+            stop.putExtra(KEY_STATUS, STATUS_STOP)
+                .putExtra(KEY_TASK_ID, id)
+                .putExtra(KEY_CANCELLED, true)
+                .putExtra(KEY_RESULT, false)
+                .putExtra(KEY_TOTAL, getTasksCount());
+            sendBroadcast(stop);
+            startNextTask();
+        }
+    }
 
-                Process.setThreadPriority(Constants.DEFAULT_DOWNLOAD_THREAD_PRIORITY);
-                progressor.setValue(0);
-                boolean result = task.execute(progressor);
+    // queued task is dropped with its data
+    protected void removeTask(LayerFillTask task) {
+        task.cancel();
+        getTaskFile(task.mId).delete();
+        releaseUriPermission(task);
+    }
 
-                if (!(task instanceof UnzipForm))
-                    mProgressIntent.putExtra(KEY_MESSAGE, mProgressMessage);
+    /**
+     * Content URI grant of the caller ends with its process, so a task is journaled only if it
+     * can read the source after restart
+     *
+     * @return true if the task can be resumed
+     */
+    protected boolean takeUriPermission(LayerFillTask task) {
+        Uri uri = task.mUri;
+        if (uri == null || !ContentResolver.SCHEME_CONTENT.equals(uri.getScheme()))
+            return true;
 
-                mProgressIntent.putExtra(KEY_STATUS, STATUS_STOP);
-                mProgressIntent.putExtra(KEY_CANCELLED, mIsCanceled);
-                mProgressIntent.putExtra(KEY_RESULT, result && !mIsCanceled);
-                mProgressIntent.putExtra(KEY_TOTAL, mQueue.size());
+        ProviderInfo provider = getPackageManager().resolveContentProvider(uri.getAuthority(), 0);
+        if (provider != null && getPackageName().equals(provider.packageName))
+            return true;
 
-                if (result) {
-                    mLayerGroup.addLayer(task.getLayer());
-                    mLayerGroup.save();
-                } else
-                    task.cancel();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT)
+            return false;
 
-                if (task instanceof NGWVectorLayerFillTask) {
-                    mProgressIntent.putExtra(KEY_SYNC, ((NGWVectorLayerFillTask) task).showSyncDialog());
-                    mProgressIntent.putExtra(KEY_ACCOUNT, ((NGWVectorLayerFillTask) task).getAccountName());
-                    mProgressIntent.putExtra(KEY_REMOTE_ID, task.getLayer().getId());
-                }
+        if (task.mBundle.getBoolean(KEY_URI_PERMISSION))
+            return true;
 
-                sendBroadcast(mProgressIntent);
-                mProgressIntent.removeExtra(KEY_STATUS);
-                mIsRunning = false;
-                startNextTask();
-            }
-        }).start();
+        for (UriPermission permission : getContentResolver().getPersistedUriPermissions())
+            if (permission.getUri().equals(uri) && permission.isReadPermission())
+                return true; // held by the application, not released with the task
+
+        try {
+            getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            task.mBundle.putBoolean(KEY_URI_PERMISSION, true);
+            return true;
+        } catch (SecurityException e) {
+            if (Constants.DEBUG_MODE)
+                Log.d(Constants.TAG, "LayerFillService: task is not resumable, no persistable grant for " + uri);
+            return false;
+        }
     }
 
+    protected void releaseUriPermission(LayerFillTask task) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT || !task.mBundle.getBoolean(KEY_URI_PERMISSION))
+            return;
 
-    @Override
-    public IBinder onBind(Intent intent) {
-        return null;
+        try {
+            getContentResolver().releasePersistableUriPermission(task.mUri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            e.printStackTrace();
+        }
     }
 
-
-    @Override
-    public void setMax(int maxValue) {
-        mProgressMax = maxValue;
+    protected int getTasksCount() {
+        synchronized (mQueue) {
+            return mQueue.size() + mRunning.size();
+        }
     }
 
-    @Override
-    public boolean isCanceled() {
-        return mIsCanceled;
+    /**
+     * Start queued tasks by priority while there are free slots, stop the service when all tasks
+     * are done
+     */
+    protected void startNextTask() {
+        List<LayerFillTask> started = new ArrayList<>();
+        boolean isDone;
+        synchronized (mQueue) {
+            Collections.sort(mQueue, new Comparator<LayerFillTask>() {
+                @Override
+                public int compare(LayerFillTask lhs, LayerFillTask rhs) {
+                    if (lhs.mPriority != rhs.mPriority)
+                        return rhs.mPriority - lhs.mPriority;
+                    return lhs.mId < rhs.mId ? -1 : lhs.mId > rhs.mId ? 1 : 0;
+                }
+            });
+
+            int local = 0;
+            for (LayerFillTask task : mRunning)
+                if (!task.isRemote())
+                    local++;
+
+            Iterator<LayerFillTask> iterator = mQueue.iterator();
+            while (iterator.hasNext() && mRunning.size() < mMaxTasks) {
+                LayerFillTask task = iterator.next();
+                if (!task.isRemote()) {
+                    if (local >= MAX_LOCAL_TASKS)
+                        continue;
+                    local++;
+                }
+
+                iterator.remove();
+                mRunning.add(task);
+                started.add(task);
+            }
+
+            isDone = mQueue.isEmpty() && mRunning.isEmpty();
+        }
+
+        if (isDone) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+                stopForeground(true);
+            else
+                mNotifyManager.cancel(FILL_NOTIFICATION_ID);
+
+            stopSelf();
+            return;
+        }
+
+        for (final LayerFillTask task : started)
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runTask(task);
+                }
+            });
     }
 
-    @Override
-    public void setValue(int value) {
-        mProgressValue = value;
-        updateNotify();
+    protected void runTask(LayerFillTask task) {
+        Process.setThreadPriority(Constants.DEFAULT_DOWNLOAD_THREAD_PRIORITY);
+        String title = task.getDescription();
+        synchronized (mBuilder) {
+            mBuilder.setWhen(System.currentTimeMillis())
+                    .setContentTitle(title)
+                    .setTicker(title);
+            mNotifyManager.notify(FILL_NOTIFICATION_ID, mBuilder.build());
+        }
+
+        Intent start = new Intent(ACTION_UPDATE);
+        start.putExtra(KEY_STATUS, STATUS_START).putExtra(KEY_TITLE, title).putExtra(KEY_TASK_ID, task.mId);
+        sendBroadcast(start);
+
+        // the slot and the journal are always released, a failed task must not stop the queue
+        Intent stop = new Intent(ACTION_UPDATE);
+        boolean result = false;
+        try {
+            if (!task.isCanceled()) {
+                task.setValue(0);
+                result = task.execute(task);
+            }
+
+            if (task instanceof NGWVectorLayerFillTask) {
+                stop.putExtra(KEY_SYNC, ((NGWVectorLayerFillTask) task).showSyncDialog());
+                stop.putExtra(KEY_ACCOUNT, ((NGWVectorLayerFillTask) task).getAccountName());
+                if (task.getLayer() != null)
+                    stop.putExtra(KEY_REMOTE_ID, task.getLayer().getId());
+            }
+
+            if (result) {
+                synchronized (task.mGroup) {
+                    if (task.getLayer() != null)
+                        task.mGroup.addLayer(task.getLayer());
+                    task.mGroup.save();
+                }
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            task.setError(e, null);
+            result = false;
+        } finally {
+            if (!result)
+                try {
+                    task.cancel();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+
+            getTaskFile(task.mId).delete();
+            releaseUriPermission(task);
+            synchronized (mQueue) {
+                mRunning.remove(task);
+            }
+
+            if (!(task instanceof UnzipForm) && task.mProgressMessage != null)
+                stop.putExtra(KEY_MESSAGE, task.mProgressMessage);
+
+            stop.putExtra(KEY_STATUS, STATUS_STOP);
+            stop.putExtra(KEY_TASK_ID, task.mId);
+            stop.putExtra(KEY_CANCELLED, task.isCanceled());
+            stop.putExtra(KEY_RESULT, result && !task.isCanceled());
+            stop.putExtra(KEY_TOTAL, getTasksCount());
+            sendBroadcast(stop);
+            startNextTask();
+        }
     }
 
+
     @Override
-    public void setIndeterminate(boolean indeterminate) {
-        mIndeterminate = indeterminate;
-        updateNotify();
+    public IBinder onBind(Intent intent) {
+        return null;
     }
 
     @Override
-    public void setMessage(String message) {
-        mProgressMessage = message;
-        updateNotify();
+    public void onDestroy() {
+        mExecutor.shutdownNow();
+        super.onDestroy();
     }
 
-    protected void updateNotify(){
-        if (mLastUpdate + ConstantsUI.NOTIFICATION_DELAY < System.currentTimeMillis()) {
-            mLastUpdate = System.currentTimeMillis();
-            mBuilder.setProgress(mProgressMax, mProgressValue, mIndeterminate)
-                    .setContentText(mProgressMessage);
-            // Displays the progress bar for the first time.
-            mNotifyManager.notify(FILL_NOTIFICATION_ID, mBuilder.build());
+    protected void updateNotify(LayerFillTask task) {
+        if (task.mLastUpdate + ConstantsUI.NOTIFICATION_DELAY < System.currentTimeMillis()) {
+            task.mLastUpdate = System.currentTimeMillis();
+            synchronized (mBuilder) {
+                mBuilder.setProgress(task.mProgressMax, task.mProgressValue, task.mIndeterminate)
+                        .setContentTitle(task.getDescription())
+                        .setContentText(task.mProgressMessage);
+                // Displays the progress bar for the first time.
+                mNotifyManager.notify(FILL_NOTIFICATION_ID, mBuilder.build());
+            }
         }
 
-        if (mProgressIntent.getExtras() != null)
-            mProgressIntent.getExtras().clear();
-        if (mProgressMessage != null)
-            mProgressIntent.putExtra(KEY_MESSAGE, mProgressMessage);
-        else
-            mProgressIntent.removeExtra(KEY_MESSAGE);
+        Intent update = new Intent(ACTION_UPDATE);
+        if (task.mProgressMessage != null)
+            update.putExtra(KEY_MESSAGE, task.mProgressMessage);
 
-        mProgressIntent.putExtra(KEY_STATUS, STATUS_UPDATE).putExtra(KEY_TOTAL, mProgressMax)
-                .putExtra(KEY_PROGRESS, mProgressValue);
-        sendBroadcast(mProgressIntent);
+        update.putExtra(KEY_STATUS, STATUS_UPDATE).putExtra(KEY_TOTAL, task.mProgressMax)
+                .putExtra(KEY_PROGRESS, task.mProgressValue).putExtra(KEY_TASK_ID, task.mId);
+        sendBroadcast(update);
     }
 
     private void notifyError(String error) {
@@ -374,11 +583,213 @@ public class LayerFillService extends Service implements IProgressor {
         mHandler.sendMessage(msg);
     }
 
+    /**
+     * task journal
+     */
+
+    protected File getTaskFile(long id) {
+        File dir = new File(getFilesDir(), JOURNAL_DIR);
+        if (!dir.isDirectory())
+            dir.mkdirs();
+
+        return new File(dir, id + JOURNAL_EXT);
+    }
+
+    protected void saveTask(LayerFillTask task) {
+        try {
+            JSONObject json = new JSONObject();
+            json.put(JSON_ID, task.mId);
+            json.put(JSON_TYPE, task.mType);
+            json.put(JSON_PRIORITY, task.mPriority);
+            json.put(JSON_GROUP, task.mGroup.getPath().getAbsolutePath());
+            json.put(JSON_KEEP_PATH, task.mKeepPath);
+            json.put(JSON_EXTRAS, bundleToJson(task.mBundle));
+
+            File file = getTaskFile(task.mId);
+            File temp = new File(file.getPath() + ".tmp");
+            FileUtil.writeToFile(temp, json.toString());
+            temp.renameTo(file);
+        } catch (JSONException | IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // tasks left by killed process are started again from the beginning
+    protected void resumeTasks() {
+        File[] files = new File(getFilesDir(), JOURNAL_DIR).listFiles();
+        if (files == null)
+            return;
+
+        Arrays.sort(files); // names are ids, keep the order of tasks
+        MapBase map = MapBase.getInstance();
+        for (File file : files) {
+            if (!file.getName().endsWith(JOURNAL_EXT)) {
+                file.delete();
+                continue;
+            }
+
+            try {
+                JSONObject json = new JSONObject(FileUtil.readFromFile(file));
+                File groupPath = new File(json.getString(JSON_GROUP));
+                LayerGroup layerGroup = null;
+                if (map != null && groupPath.equals(map.getPath()))
+                    layerGroup = map;
+                else if (map != null && map.getLayerByPathName(groupPath.getName()) instanceof LayerGroup)
+                    layerGroup = (LayerGroup) map.getLayerByPathName(groupPath.getName());
+
+                Bundle extra = jsonToBundle(json.getJSONObject(JSON_EXTRAS));
+                int type = json.getInt(JSON_TYPE);
+                boolean keepPath = json.optBoolean(JSON_KEEP_PATH);
+                file.delete();
+
+                if (layerGroup == null)
+                    continue;
+
+                if (!keepPath) {
+                    // drop partially filled layer, the task creates a new one
+                    LayerFillTask partial = createTask(type, extra, layerGroup);
+                    if (partial != null)
+                        partial.cancel();
+                    extra.remove(KEY_LAYER_PATH);
+                }
+
+                addTask(type, extra, layerGroup, json.optInt(JSON_PRIORITY), keepPath);
+            } catch (JSONException | IOException | RuntimeException e) {
+                e.printStackTrace();
+                file.delete();
+            }
+        }
+    }
+
+    protected static JSONObject bundleToJson(Bundle bundle) throws JSONException {
+        JSONObject json = new JSONObject();
+        for (String key : bundle.keySet()) {
+            Object value = bundle.get(key);
+            JSONObject item = new JSONObject();
+            if (value instanceof Uri) {
+                item.put(JSON_VALUE_TYPE, "uri").put(JSON_VALUE, value.toString());
+            } else if (value instanceof File) {
+                item.put(JSON_VALUE_TYPE, "file").put(JSON_VALUE, ((File) value).getAbsolutePath());
+            } else if (value instanceof String) {
+                item.put(JSON_VALUE_TYPE, "string").put(JSON_VALUE, value);
+            } else if (value instanceof Boolean) {
+                item.put(JSON_VALUE_TYPE, "boolean").put(JSON_VALUE, value);
+            } else if (value instanceof Integer) {
+                item.put(JSON_VALUE_TYPE, "int").put(JSON_VALUE, value);
+            } else if (value instanceof Long) {
+                item.put(JSON_VALUE_TYPE, "long").put(JSON_VALUE, value);
+            } else if (value instanceof Float) {
+                item.put(JSON_VALUE_TYPE, "float").put(JSON_VALUE, value.toString());
+            } else if (value instanceof ArrayList) {
+                ArrayList<?> list = (ArrayList<?>) value;
+                JSONArray array = new JSONArray();
+                for (Object element : list)
+                    array.put(element instanceof Uri ? element.toString() : element);
+                item.put(JSON_VALUE_TYPE, getListType(list)).put(JSON_VALUE, array);
+            } else
+                continue;
+
+            json.put(key, item);
+        }
+
+        return json;
+    }
+
+    // lists are restored with their element type, a task with other lists is not journaled
+    protected static String getListType(List<?> list) throws JSONException {
+        String type = "strings";
+        for (int i = 0; i < list.size(); i++) {
+            Object element = list.get(i);
+            String elementType;
+            if (element instanceof String)
+                elementType = "strings";
+            else if (element instanceof Integer)
+                elementType = "ints";
+            else if (element instanceof Uri)
+                elementType = "uris";
+            else
+                throw new JSONException("Can not journal list of " + element);
+
+            if (i > 0 && !elementType.equals(type))
+                throw new JSONException("Can not journal mixed list");
+            type = elementType;
+        }
+
+        return type;
+    }
+
+    protected static Bundle jsonToBundle(JSONObject json) throws JSONException {
+        Bundle bundle = new Bundle();
+        Iterator<String> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            JSONObject item = json.getJSONObject(key);
+            switch (item.getString(JSON_VALUE_TYPE)) {
+                case "uri":
+                    bundle.putParcelable(key, Uri.parse(item.getString(JSON_VALUE)));
+                    break;
+                case "file":
+                    bundle.putSerializable(key, new File(item.getString(JSON_VALUE)));
+                    break;
+                case "string":
+                    bundle.putString(key, item.getString(JSON_VALUE));
+                    break;
+                case "boolean":
+                    bundle.putBoolean(key, item.getBoolean(JSON_VALUE));
+                    break;
+                case "int":
+                    bundle.putInt(key, item.getInt(JSON_VALUE));
+                    break;
+                case "long":
+                    bundle.putLong(key, item.getLong(JSON_VALUE));
+                    break;
+                case "float":
+                    bundle.putFloat(key, Float.parseFloat(item.getString(JSON_VALUE)));
+                    break;
+                case "strings":
+                    JSONArray array = item.getJSONArray(JSON_VALUE);
+                    ArrayList<String> strings = new ArrayList<>();
+                    for (int i = 0; i < array.length(); i++)
+                        strings.add(array.getString(i));
+                    bundle.putStringArrayList(key, strings);
+                    break;
+                case "ints":
+                    array = item.getJSONArray(JSON_VALUE);
+                    ArrayList<Integer> ints = new ArrayList<>();
+                    for (int i = 0; i < array.length(); i++)
+                        ints.add(array.getInt(i));
+                    bundle.putIntegerArrayList(key, ints);
+                    break;
+                case "uris":
+                    array = item.getJSONArray(JSON_VALUE);
+                    ArrayList<Uri> uris = new ArrayList<>();
+                    for (int i = 0; i < array.length(); i++)
+                        uris.add(Uri.parse(array.getString(i)));
+                    bundle.putParcelableArrayList(key, uris);
+                    break;
+            }
+        }
+
+        return bundle;
+    }
+
     /**
      * task classes
      */
 
-    private abstract class LayerFillTask{
+    private abstract class LayerFillTask implements IProgressor {
+        long mId;
+        int mType, mPriority;
+        boolean mKeepPath;
+        Bundle mBundle;
+        LayerGroup mGroup;
+
+        int mProgressMax, mProgressValue;
+        String mProgressMessage;
+        boolean mIndeterminate;
+        volatile boolean mIsCanceled;
+        long mLastUpdate;
+
         String mLayerName;
         File mLayerPath;
         float mMinZoom, mMaxZoom;
@@ -386,12 +797,13 @@ public class LayerFillService extends Service implements IProgressor {
         Uri mUri;
         protected Layer mLayer;
 
-        LayerFillTask(Bundle bundle) {
+        LayerFillTask(Bundle bundle, LayerGroup layerGroup) {
+            mGroup = layerGroup;
             mUri = bundle.getParcelable(KEY_URI);
             mLayerName = bundle.getString(KEY_NAME);
             mLayerPath = bundle.containsKey(KEY_LAYER_PATH) ?
                     (File) bundle.getSerializable(KEY_LAYER_PATH) :
-                    mLayerGroup.createLayerStorage();
+                    mGroup.createLayerStorage();
             mMinZoom = bundle.getFloat(KEY_MIN_ZOOM, GeoConstants.DEFAULT_MIN_ZOOM);
             mMaxZoom = bundle.getFloat(KEY_MAX_ZOOM, GeoConstants.DEFAULT_MAX_ZOOM);
             mVisible = bundle.getBoolean(KEY_VISIBLE, true);
@@ -406,6 +818,39 @@ public class LayerFillService extends Service implements IProgressor {
 
         public abstract boolean execute(IProgressor progressor);
 
+        // network bound tasks may run in parallel with a local one
+        boolean isRemote() {
+            return false;
+        }
+
+        @Override
+        public void setMax(int maxValue) {
+            mProgressMax = maxValue;
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mIsCanceled;
+        }
+
+        @Override
+        public void setValue(int value) {
+            mProgressValue = value;
+            updateNotify(this);
+        }
+
+        @Override
+        public void setIndeterminate(boolean indeterminate) {
+            mIndeterminate = indeterminate;
+            updateNotify(this);
+        }
+
+        @Override
+        public void setMessage(String message) {
+            mProgressMessage = message;
+            updateNotify(this);
+        }
+
         public String getDescription(){
             if(null == mLayer)
                 return "";
@@ -434,9 +879,9 @@ public class LayerFillService extends Service implements IProgressor {
     }
 
     private class VectorLayerFillTask extends LayerFillTask{
-        VectorLayerFillTask(Bundle bundle) {
-            super(bundle);
-            mLayer = new VectorLayerUI(mLayerGroup.getContext(), mLayerPath);
+        VectorLayerFillTask(Bundle bundle, LayerGroup layerGroup) {
+            super(bundle, layerGroup);
+            mLayer = new VectorLayerUI(mGroup.getContext(), mLayerPath);
             initLayer();
         }
 
@@ -464,8 +909,8 @@ public class LayerFillService extends Service implements IProgressor {
         long mRemoteId;
         String mAccount;
 
-        UnzipForm(Bundle bundle) {
-            super(bundle);
+        UnzipForm(Bundle bundle, LayerGroup layerGroup) {
+            super(bundle, layerGroup);
             mSync = bundle.getBoolean(KEY_SYNC, true);
             mRemoteId = bundle.getLong(KEY_REMOTE_ID, -1);
             mAccount = bundle.getString(KEY_ACCOUNT, "");
@@ -596,13 +1041,13 @@ public class LayerFillService extends Service implements IProgressor {
                         extra.putBoolean(KEY_SYNC, mSync);
 
                         if (!isCanceled())
-                            mQueue.add(new NGWVectorLayerFillTask(extra));
+                            addTask(NGW_LAYER, extra, mGroup, mPriority, true);
                     } else {
                         extra.putSerializable(LayerFillService.KEY_PATH, dataFile);
                         extra.putBoolean(LayerFillService.KEY_DELETE_SRC_FILE, true);
 
                         if (!isCanceled())
-                            mQueue.add(new VectorLayerFormFillTask(extra));
+                            addTask(FORM_DATA_LAYER, extra, mGroup, mPriority, true);
                     }
                 }
             } catch (AccountsException | JSONException | IOException | URISyntaxException | RuntimeException e) {
@@ -614,17 +1059,22 @@ public class LayerFillService extends Service implements IProgressor {
 
             return true;
         }
+
+        @Override
+        boolean isRemote() {
+            return NetworkUtil.isValidUri(mUri.toString());
+        }
     }
 
     private class VectorLayerFormFillTask extends LayerFillTask {
         File mPath;
         boolean mDeletePath;
 
-        VectorLayerFormFillTask(Bundle bundle) {
-            super(bundle);
+        VectorLayerFormFillTask(Bundle bundle, LayerGroup layerGroup) {
+            super(bundle, layerGroup);
             mPath = (File) bundle.getSerializable(KEY_PATH);
             mDeletePath = bundle.getBoolean(KEY_DELETE_SRC_FILE, false);
-            mLayer = new VectorLayerUI(mLayerGroup.getContext(), mLayerPath);
+            mLayer = new VectorLayerUI(mGroup.getContext(), mLayerPath);
             initLayer();
         }
 
@@ -671,9 +1121,9 @@ public class LayerFillService extends Service implements IProgressor {
     private class LocalTMSFillTask extends LayerFillTask{
         boolean mIsNgrc;
 
-        LocalTMSFillTask(Bundle bundle) {
-            super(bundle);
-            mLayer = new LocalTMSLayerUI(mLayerGroup.getContext(), mLayerPath);
+        LocalTMSFillTask(Bundle bundle, LayerGroup layerGroup) {
+            super(bundle, layerGroup);
+            mLayer = new LocalTMSLayerUI(mGroup.getContext(), mLayerPath);
             mIsNgrc = !bundle.containsKey(KEY_TMS_TYPE);
             ((LocalTMSLayerUI) mLayer).setCacheSizeMultiply(bundle.getInt(KEY_TMS_CACHE));
 
@@ -715,9 +1165,9 @@ public class LayerFillService extends Service implements IProgressor {
         private ArrayList<String> mLookupIds = new ArrayList<>();
         private boolean mShowSyncDialog;
 
-        NGWVectorLayerFillTask(Bundle bundle) {
-            super(bundle);
-            mLayer = new NGWVectorLayerUI(mLayerGroup.getContext(), mLayerPath);
+        NGWVectorLayerFillTask(Bundle bundle, LayerGroup layerGroup) {
+            super(bundle, layerGroup);
+            mLayer = new NGWVectorLayerUI(mGroup.getContext(), mLayerPath);
             ((NGWVectorLayerUI) mLayer).setRemoteId(bundle.getLong(KEY_REMOTE_ID));
             ((NGWVectorLayerUI) mLayer).setAccountName(bundle.getString(KEY_ACCOUNT));
             initLayer();
@@ -727,9 +1177,9 @@ public class LayerFillService extends Service implements IProgressor {
 
             mShowSyncDialog = bundle.getBoolean(KEY_SYNC, false);
 
-            for (int i = 0; i < mLayerGroup.getLayerCount(); i++) {
-                if (mLayerGroup.getLayer(i) instanceof NGWLookupTable) {
-                    NGWLookupTable table = (NGWLookupTable) mLayerGroup.getLayer(i);
+            for (int i = 0; i < mGroup.getLayerCount(); i++) {
+                if (mGroup.getLayer(i) instanceof NGWLookupTable) {
+                    NGWLookupTable table = (NGWLookupTable) mGroup.getLayer(i);
                     String id = table.getRemoteId() + "";
                     if (table.getAccountName().equals(bundle.getString(KEY_ACCOUNT)) && mLookupIds.contains(id))
                         mLookupIds.remove(id);
@@ -745,13 +1195,15 @@ public class LayerFillService extends Service implements IProgressor {
                     return false;
 
                 for (String id : mLookupIds) {
-                    NGWLookupTable table = new NGWLookupTable(mLayer.getContext(), mLayerGroup.createLayerStorage());
+                    NGWLookupTable table = new NGWLookupTable(mLayer.getContext(), mGroup.createLayerStorage());
                     table.setAccountName(((NGWVectorLayer) mLayer).getAccountName());
                     table.setRemoteId(Long.parseLong(id));
                     table.setSyncType(Constants.SYNC_ALL);
                     table.setName(getText(R.string.layer_lookuptable) + " #" + id);
                     table.fillFromNGW(null);
-                    mLayerGroup.addLayer(table);
+                    synchronized (mGroup) {
+                        mGroup.addLayer(table);
+                    }
                 }
 
                 ngwVectorLayer.createFromNGW(progressor);
@@ -765,6 +1217,11 @@ public class LayerFillService extends Service implements IProgressor {
             return true;
         }
 
+        @Override
+        boolean isRemote() {
+            return true;
+        }
+
         boolean showSyncDialog() {
             return mShowSyncDialog;
         }
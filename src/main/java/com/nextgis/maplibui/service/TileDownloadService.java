@@ -26,8 +26,11 @@ package com.nextgis.maplibui.service;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
+import android.net.Uri;
 import android.os.Build;
 import android.os.IBinder;
 import android.support.v4.app.NotificationCompat;
@@ -44,26 +47,36 @@ import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.util.NotificationHelper;
+import com.nextgis.maplibui.util.TileCacheManager;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.nextgis.maplib.util.Constants.DRAWING_SEPARATE_THREADS;
-import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME;
-import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME_UNIT;
 import static com.nextgis.maplibui.util.NotificationHelper.createBuilder;
 
 /**
- * The service to batch download tiles
+ * The service to batch download tiles. Tiles are enumerated lazily row by row for each zoom
+ * level, tiles already present in the layer cache are skipped, and connections per tile server
+ * are limited. Queued tasks and the last completed row of the current one are kept in
+ * preferences, so a killed service resumes where it stopped. A task with failed tiles is
+ * retried from its first incomplete row, and kept for the next start if it still fails.
  */
 public class TileDownloadService extends Service {
     protected static final int TILE_DOWNLOAD_NOTIFICATION_ID = 7;
@@ -79,11 +92,28 @@ public class TileDownloadService extends Service {
     public static final String ACTION_STOP     = "tile_download_stop";
     public static final String ACTION_ADD_TASK = "add_tile_download_task";
 
+    protected static final String PREFERENCES_TASKS = "tile_download_tasks";
+    protected static final String KEY_TASKS         = "tasks";
+    protected static final String KEY_ZOOM_INDEX    = "zoom_index";
+    protected static final String KEY_ROW           = "row";
+    protected static final String KEY_TILES_PER_SECOND = "tiles_per_second";
+
+    protected static final int MAX_CONNECTIONS_PER_HOST = 4;
+    protected static final int MAX_QUEUE_DEPTH          = 64;
+    protected static final int SAVE_PROGRESS_STEP       = 16;
+    protected static final int NOTIFY_TIMEOUT           = 1000;
+    protected static final int MAX_TASK_ATTEMPTS        = 3;
+
+    protected static final Map<String, Semaphore> mHostConnections = new ConcurrentHashMap<>();
+
     protected NotificationManager        mNotifyManager;
     protected NotificationCompat.Builder mBuilder;
 
     protected Queue<DownloadTask> mQueue;
+    protected Queue<DownloadTask> mFailedTasks;
     protected Thread              mDownloadThread;
+    protected SharedPreferences   mPreferences;
+    protected long                mLastNotify;
 
     protected volatile boolean mIsDownloadError = false;
 
@@ -123,6 +153,11 @@ public class TileDownloadService extends Service {
         }
 
         mQueue = new ConcurrentLinkedQueue<>();
+        mFailedTasks = new ConcurrentLinkedQueue<>();
+        mPreferences = getSharedPreferences(PREFERENCES_TASKS, Context.MODE_PRIVATE);
+
+        // load interrupted and failed tasks before any new one rewrites them
+        restoreTasks();
     }
 
     // For overriding in subclasses
@@ -157,10 +192,55 @@ public class TileDownloadService extends Service {
                 }
                 return START_STICKY;
             }
+        } else if (!mQueue.isEmpty()) {
+            // restarted after the process was killed
+            startDownloadThread();
+            return START_STICKY;
         }
         return START_NOT_STICKY;
     }
 
+    protected boolean restoreTasks() {
+        try {
+            JSONArray tasks = new JSONArray(mPreferences.getString(KEY_TASKS, "[]"));
+            for (int i = 0; i < tasks.length(); i++) {
+                mQueue.add(new DownloadTask(tasks.getJSONObject(i)));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            mPreferences.edit().remove(KEY_TASKS).apply();
+        }
+
+        if (mQueue.isEmpty()) {
+            return false;
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "TileDownloadService restored " + mQueue.size() + " tasks");
+        }
+        return true;
+    }
+
+    protected synchronized void saveTasks() {
+        JSONArray tasks = new JSONArray();
+        try {
+            for (DownloadTask task : mQueue) {
+                tasks.put(task.toJSON());
+            }
+            for (DownloadTask task : mFailedTasks) {
+                tasks.put(task.toJSON());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+
+        if (tasks.length() > 0) {
+            mPreferences.edit().putString(KEY_TASKS, tasks.toString()).apply();
+        } else {
+            mPreferences.edit().remove(KEY_TASKS).apply();
+        }
+    }
+
     protected void addDownloadTask(Intent intent) {
         if (Constants.DEBUG_MODE) {
             Log.d(Constants.TAG, "Add task to download queue");
@@ -201,6 +281,8 @@ public class TileDownloadService extends Service {
     // For overriding in subclasses
     protected void clearResources() {
         mQueue.clear();
+        mFailedTasks.clear();
+        saveTasks();
         if (mDownloadThread != null && mDownloadThread.isAlive()) {
             mDownloadThread.interrupt();
             mDownloadThread = null;
@@ -218,7 +300,12 @@ public class TileDownloadService extends Service {
 
     @Override
     public void onDestroy() {
-        clearResources();
+        // keep tasks on disk to resume them on restart
+        if (mDownloadThread != null && mDownloadThread.isAlive()) {
+            mDownloadThread.interrupt();
+            mDownloadThread = null;
+            mIsDownloadInterrupted = true;
+        }
         if (Constants.DEBUG_MODE) {
             Log.d(Constants.TAG, "TileDownloadService.onDestroy(), service is stopped");
         }
@@ -245,7 +332,11 @@ public class TileDownloadService extends Service {
     {
         DownloadTask task = new DownloadTask(layerPathName, env, zoomList);
         mQueue.add(task);
+        saveTasks();
+        startDownloadThread();
+    }
 
+    protected void startDownloadThread() {
         if (mDownloadThread == null) {
             if (Constants.DEBUG_MODE) {
                 Log.d(
@@ -275,8 +366,21 @@ public class TileDownloadService extends Service {
                     if (Constants.DEBUG_MODE) {
                         Log.d(Constants.TAG, "Tile download queue size " + mQueue.size());
                     }
-                    DownloadTask task = mQueue.poll();
+                    DownloadTask task = mQueue.peek();
                     download(task);
+
+                    if (mIsDownloadInterrupted) {
+                        break;
+                    }
+                    mQueue.remove(task);
+                    if (mIsDownloadError) {
+                        retryTask(task);
+                    }
+                    saveTasks();
+                }
+
+                if (mIsDownloadInterrupted) {
+                    return;
                 }
 
                 cancelNotification();
@@ -290,6 +394,25 @@ public class TileDownloadService extends Service {
         });
     }
 
+    /**
+     * Queue a task with failed tiles again. It resumes from the first row with a failed tile,
+     * rows downloaded after it are skipped as cached. A task failed too many times is kept on
+     * disk only and is retried on the next service start.
+     */
+    protected void retryTask(DownloadTask task) {
+        task.mAttempts++;
+        if (task.mAttempts < MAX_TASK_ATTEMPTS) {
+            mQueue.add(task);
+        } else {
+            mFailedTasks.add(task);
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "TileDownloadService, task " + task.getLayerPathName()
+                    + " has failed tiles, attempt " + task.mAttempts);
+        }
+    }
+
     // For overriding in subclasses
     protected List<TileItem> getTileItems(
             GeoEnvelope bounds,
@@ -299,7 +422,7 @@ public class TileDownloadService extends Service {
         return MapUtil.getTileItems(bounds, zoom, tmsLayer.getTMSType());
     }
 
-    protected void download(DownloadTask task) {
+    protected void download(final DownloadTask task) {
         mIsDownloadError = false;
 
         MapBase map = MapBase.getInstance();
@@ -317,171 +440,132 @@ public class TileDownloadService extends Service {
             mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
 
             final RemoteTMSLayer tmsLayer = (RemoteTMSLayer) layer;
-            final List<TileItem> tiles = new LinkedList<>();
-            int zoomCount = task.getZoomList().size();
-
-            sendProgressorsValues(zoomCount, 0, tmsLayer.getPath().getName());
+            final String layerPathName = tmsLayer.getPath().getName();
+            final Semaphore hostConnections = getHostConnections(tmsLayer);
+            final Semaphore queueSlots = new Semaphore(MAX_QUEUE_DEPTH);
+            final long started = System.currentTimeMillis();
+            final int total = getTilesCount(task);
+            // tiles of rows completed before resume count as done, but not as downloaded
+            int skipped = getTilesDone(task);
+            final AtomicInteger done = new AtomicInteger(skipped);
+
+            // completed rows are saved in order, so keep rows with tiles in progress
+            Queue<RowState> rows = new ArrayDeque<>();
+            int rowsCompleted = 0;
+
+            ExecutorService threadPool = Executors.newFixedThreadPool(
+                    Math.min(DRAWING_SEPARATE_THREADS, MAX_CONNECTIONS_PER_HOST));
+            sendProgressorsValues(total, skipped, layerPathName);
 
-            for (Integer zoom : task.getZoomList()) {
-                if (mIsDownloadInterrupted) {
-                    if (Constants.DEBUG_MODE) {
-                        Log.d(
-                                Constants.TAG,
-                                "TileDownloadService.mDownloadThread is interrupted, point 01");
-                    }
-                    return;
-                }
-
-                tiles.addAll(getTileItems(task.getEnvelope(), zoom, tmsLayer));
-
-                mBuilder.setProgress(zoomCount, zoom, false)
-                        .setContentText(getString(R.string.form_tiles_list));
-                mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
-                sendProgressorsValues(zoomCount, zoom, tmsLayer.getPath().getName());
-
-                if (tiles.size() > Constants.MAX_TILES_COUNT) {
-                    break;
-                }
-            }
+            try {
+                List<Integer> zoomList = task.getZoomList();
+                int startZoomIndex = task.mZoomIndex, startRow = task.mRow;
+                for (int zoomIndex = startZoomIndex; zoomIndex < zoomList.size(); zoomIndex++) {
+                    int zoom = zoomList.get(zoomIndex);
+                    int[] range = getTileRange(task.getEnvelope(), zoom);
+                    int firstRow = zoomIndex == startZoomIndex ? Math.max(startRow, range[2]) : range[2];
+
+                    for (int row = firstRow; row < range[3]; row++) {
+                        if (isDownloadError() || mIsDownloadInterrupted) {
+                            if (Constants.DEBUG_MODE) {
+                                Log.d(Constants.TAG,
+                                      "TileDownloadService.mDownloadThread is interrupted, point 02");
+                            }
+                            return;
+                        }
 
-            int threadCount = DRAWING_SEPARATE_THREADS;
-            int coreCount = Runtime.getRuntime().availableProcessors();
+                        GeoEnvelope rowEnvelope = getRowEnvelope(task.getEnvelope(), zoom, row);
+                        final RowState rowState = new RowState(zoomIndex, row);
+                        rows.add(rowState);
 
-            // FIXME: More than 1 pool size causing strange behaviour on 6.0.
-            // FIXME: Check this again after 29.06.2017.
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                coreCount = 1;
-            }
+                        for (final TileItem tile : getTileItems(rowEnvelope, zoom, tmsLayer)) {
+                            if (isTileCached(tmsLayer, tile)) {
+                                TileCacheManager.pin(tmsLayer.getPath(), tile);
+                                skipped++;
+                                done.incrementAndGet();
+                                continue;
+                            }
 
-            ThreadPoolExecutor threadPool =
-                    new ThreadPoolExecutor(coreCount, threadCount, KEEP_ALIVE_TIME,
-                            KEEP_ALIVE_TIME_UNIT, new LinkedBlockingQueue<Runnable>(),
-                            new RejectedExecutionHandler()
+                            queueSlots.acquire();
+                            rowState.mPending.incrementAndGet();
+                            threadPool.execute(new Runnable()
                             {
                                 @Override
-                                public void rejectedExecution(
-                                        Runnable r,
-                                        ThreadPoolExecutor executor)
+                                public void run()
                                 {
+                                    android.os.Process.setThreadPriority(
+                                            Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+
+                                    // failed or interrupted tile keeps its row pending to resume from it
+                                    boolean isProcessed = false;
                                     try {
-                                        executor.getQueue().put(r);
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                        //throw new RuntimeException("Interrupted while submitting task", e);
+                                        hostConnections.acquire();
+                                        try {
+                                            isProcessed = downloadTile(tmsLayer, tile);
+                                        } finally {
+                                            hostConnections.release();
+                                        }
+
+                                        if (isProcessed) {
+                                            TileCacheManager.pin(tmsLayer.getPath(), tile);
+                                            done.incrementAndGet();
+                                        } else {
+                                            mIsDownloadError = true;
+                                            if (Constants.DEBUG_MODE) {
+                                                Log.d(Constants.TAG,
+                                                      "TileDownloadService.mDownloadThread, downloadTile() with error, layer: "
+                                                              + tmsLayer.getName() + ", tile: " + tile.toString());
+                                            }
+                                        }
+                                    } catch (InterruptedException ignored) {
+                                    } finally {
+                                        if (isProcessed) {
+                                            rowState.mPending.decrementAndGet();
+                                        }
+                                        queueSlots.release();
                                     }
                                 }
                             });
+                        }
 
-            int tilesSize = tiles.size();
-            List<Future> futures = new ArrayList<>(tilesSize);
-
-            int nStep = tilesSize / Constants.DRAW_NOTIFY_STEP_PERCENT;
-            if (nStep == 0) {
-                nStep = 1;
-            }
-
-            for (int i = 0; i < tilesSize; ++i) {
-                boolean isError = isDownloadError();
-                if (isError || mIsDownloadInterrupted) {
-                    if (Constants.DEBUG_MODE) {
-                        Log.d(
-                                Constants.TAG,
-                                "TileDownloadService.mDownloadThread is interrupted, point 02, isDownloadError: "
-                                        + isError);
-                    }
-                    break;
-                }
-
-                final TileItem tile = tiles.get(i);
-                futures.add(threadPool.submit(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        android.os.Process.setThreadPriority(
-                                Constants.DEFAULT_DRAW_THREAD_PRIORITY);
-
-                        if (!downloadTile(tmsLayer, tile)) {
-                            mIsDownloadError = true;
-                            if (Constants.DEBUG_MODE) {
-                                Log.d(
-                                        Constants.TAG,
-                                        "TileDownloadService.mDownloadThread, downloadTile() with error, layer: "
-                                                + tmsLayer.getName() + ", tile: "
-                                                + tile.toString());
-                            }
+                        int completed = removeCompletedRows(task, rows);
+                        if ((rowsCompleted + completed) / SAVE_PROGRESS_STEP > rowsCompleted / SAVE_PROGRESS_STEP) {
+                            saveTasks();
                         }
+                        rowsCompleted += completed;
+                        notifyProgress(tmsLayer, total, done.get(), skipped, started, queueSlots);
                     }
-                }));
-
-                if (i % nStep == 0) {
-                    mBuilder.setProgress(tilesSize, i, false)
-                            .setContentText(
-                                    getString(R.string.processing) + " " + tmsLayer.getName());
-                    // Displays the progress bar for the first time.
-                    mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
-                    sendProgressorsValues(tilesSize, i, tmsLayer.getPath().getName());
                 }
-            }
-
-            // in separate thread
-
-            // wait for download ending
-            nStep = futures.size() / Constants.DRAW_NOTIFY_STEP_PERCENT;
-            if (nStep == 0) {
-                nStep = 1;
-            }
 
-            int futuresSize = futures.size();
-            for (int i = 0; i < futuresSize; ++i) {
-                boolean isError = isDownloadError();
-                if (isError || mIsDownloadInterrupted) {
-                    if (Constants.DEBUG_MODE) {
-                        Log.d(
-                                Constants.TAG,
-                                "TileDownloadService.mDownloadThread is interrupted, point 03, isDownloadError: "
-                                        + isError);
+                // wait for download ending
+                while (!queueSlots.tryAcquire(MAX_QUEUE_DEPTH, NOTIFY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    if (isDownloadError() || mIsDownloadInterrupted) {
+                        return;
                     }
-                    break;
+                    notifyProgress(tmsLayer, total, done.get(), skipped, started, queueSlots);
                 }
 
+                queueSlots.release(MAX_QUEUE_DEPTH);
+                sendProgressorsValues(total, total, layerPathName);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                removeCompletedRows(task, rows);
+                saveTasks();
+                saveThroughput(done.get() - skipped, started);
+                threadPool.shutdownNow(); // Cancel currently executing tasks
                 try {
-                    Future future = futures.get(i);
-                    future.get(); // wait for task ending
-
-                    if (i % nStep == 0) {
-                        mBuilder.setProgress(futuresSize, i, false)
-                                .setContentText(
-                                        getString(R.string.processing) + " " + tmsLayer.getName());
-                        // Displays the progress bar for the first time.
-                        mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
-                        sendProgressorsValues(futuresSize, i, tmsLayer.getPath().getName());
-                    }
-
-                } catch (CancellationException | InterruptedException e) {
-                    //e.printStackTrace();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
-                }
-            }
-
-            sendProgressorsValues(futuresSize, futuresSize, tmsLayer.getPath().getName());
-
-            threadPool.shutdownNow(); // Cancel currently executing tasks
-            try {
-                // Wait a while for tasks to respond to being cancelled
-                if (!threadPool.awaitTermination(2000, Constants.KEEP_ALIVE_TIME_UNIT)) {
-                    if (Constants.DEBUG_MODE) {
-                        Log.d(
-                                Constants.TAG,
-                                "TileDownloadService.mDownloadThread, threadPool did not terminate");
+                    // Wait a while for tasks to respond to being cancelled
+                    if (!threadPool.awaitTermination(2000, Constants.KEEP_ALIVE_TIME_UNIT)) {
+                        if (Constants.DEBUG_MODE) {
+                            Log.d(Constants.TAG,
+                                  "TileDownloadService.mDownloadThread, threadPool did not terminate");
+                        }
                     }
+                } catch (InterruptedException e) {
+                    // Preserve interrupt status
+                    Thread.currentThread().interrupt();
                 }
-            } catch (InterruptedException e) {
-                // (Re-)Cancel if current thread also interrupted
-                threadPool.shutdownNow();
-                // Preserve interrupt status
-                Thread.currentThread().interrupt();
             }
         } else {
             if (Constants.DEBUG_MODE) {
@@ -499,6 +583,207 @@ public class TileDownloadService extends Service {
         }
     }
 
+    /**
+     * Move task position past rows which have all tiles downloaded.
+     *
+     * @return number of completed rows removed from the queue
+     */
+    protected int removeCompletedRows(
+            DownloadTask task,
+            Queue<RowState> rows)
+    {
+        int count = 0;
+        Iterator<RowState> iterator = rows.iterator();
+        while (iterator.hasNext()) {
+            RowState row = iterator.next();
+            if (row.mPending.get() > 0) {
+                break;
+            }
+
+            task.mZoomIndex = row.mZoomIndex;
+            task.mRow = row.mRow + 1;
+            iterator.remove();
+            count++;
+        }
+        return count;
+    }
+
+    protected void notifyProgress(
+            RemoteTMSLayer tmsLayer,
+            int total,
+            int done,
+            int skipped,
+            long started,
+            Semaphore queueSlots)
+    {
+        long now = System.currentTimeMillis();
+        if (now - mLastNotify < NOTIFY_TIMEOUT) {
+            return;
+        }
+        mLastNotify = now;
+
+        float seconds = Math.max(1, now - started) / 1000f;
+        float tilesPerSecond = (done - skipped) / seconds;
+        int queueDepth = MAX_QUEUE_DEPTH - queueSlots.availablePermits();
+
+        mBuilder.setProgress(total, done, false)
+                .setContentText(getString(R.string.processing) + " " + tmsLayer.getName());
+        mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
+        sendProgressorsValues(total, done, tmsLayer.getPath().getName(), queueDepth, tilesPerSecond);
+    }
+
+    /**
+     * Keep smoothed download speed for download estimations.
+     */
+    protected void saveThroughput(
+            int downloaded,
+            long started)
+    {
+        long elapsed = System.currentTimeMillis() - started;
+        if (downloaded < SAVE_PROGRESS_STEP || elapsed <= 0) {
+            return;
+        }
+
+        float tilesPerSecond = downloaded * 1000f / elapsed;
+        float last = mPreferences.getFloat(KEY_TILES_PER_SECOND, 0);
+        if (last > 0) {
+            tilesPerSecond = (last + tilesPerSecond) / 2;
+        }
+        mPreferences.edit().putFloat(KEY_TILES_PER_SECOND, tilesPerSecond).apply();
+    }
+
+    /**
+     * @return recent tiles download speed or 0 if there were no downloads yet
+     */
+    public static float getTilesPerSecond(Context context)
+    {
+        SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_TASKS, Context.MODE_PRIVATE);
+        return preferences.getFloat(KEY_TILES_PER_SECOND, 0);
+    }
+
+    protected static Semaphore getHostConnections(RemoteTMSLayer tmsLayer) {
+        String host = null;
+        String url = tmsLayer.getURL();
+        if (url != null) {
+            host = Uri.parse(url).getHost();
+        }
+        if (host == null) {
+            host = "";
+        }
+
+        synchronized (mHostConnections) {
+            Semaphore semaphore = mHostConnections.get(host);
+            if (semaphore == null) {
+                semaphore = new Semaphore(MAX_CONNECTIONS_PER_HOST);
+                mHostConnections.put(host, semaphore);
+            }
+            return semaphore;
+        }
+    }
+
+    /**
+     * Get tile range for the envelope in the same way as MapUtil.getTileItems does.
+     *
+     * @return begin x, end x, begin y, end y (exclusive), y counts from the bottom
+     */
+    public static int[] getTileRange(
+            GeoEnvelope bounds,
+            int zoom)
+    {
+        int tilesInMapOneDimension = 1 << zoom;
+        double halfTilesInMapOneDimension = tilesInMapOneDimension * 0.5;
+        double tilesSizeOneDimension = GeoConstants.MERCATOR_MAX * 2 / tilesInMapOneDimension;
+
+        int begX = (int) Math.floor(bounds.getMinX() / tilesSizeOneDimension + halfTilesInMapOneDimension);
+        int begY = (int) Math.floor(bounds.getMinY() / tilesSizeOneDimension + halfTilesInMapOneDimension);
+        int endX = (int) Math.ceil(bounds.getMaxX() / tilesSizeOneDimension + halfTilesInMapOneDimension);
+        int endY = (int) Math.ceil(bounds.getMaxY() / tilesSizeOneDimension + halfTilesInMapOneDimension);
+
+        if (begY == endY) {
+            endY++;
+        }
+        if (begX == endX) {
+            endX++;
+        }
+        if (begY < 0) {
+            begY = 0;
+        }
+        if (endY > tilesInMapOneDimension) {
+            endY = tilesInMapOneDimension;
+        }
+
+        return new int[] {begX, endX, begY, endY};
+    }
+
+    /**
+     * Get envelope part covering one tile row only.
+     */
+    protected static GeoEnvelope getRowEnvelope(
+            GeoEnvelope bounds,
+            int zoom,
+            int row)
+    {
+        int tilesInMapOneDimension = 1 << zoom;
+        double tilesSizeOneDimension = GeoConstants.MERCATOR_MAX * 2 / tilesInMapOneDimension;
+        double bottom = (row - tilesInMapOneDimension * 0.5) * tilesSizeOneDimension;
+        double top = bottom + tilesSizeOneDimension;
+        double epsilon = tilesSizeOneDimension * 1e-6;
+
+        double minY = Math.max(bounds.getMinY(), bottom + epsilon);
+        double maxY = Math.min(bounds.getMaxY(), top - epsilon);
+        if (minY > maxY) {
+            minY = maxY = (bottom + top) / 2;
+        }
+
+        return new GeoEnvelope(bounds.getMinX(), bounds.getMaxX(), minY, maxY);
+    }
+
+    protected static int getTilesCount(DownloadTask task) {
+        long total = 0;
+        for (Integer zoom : task.getZoomList()) {
+            int[] range = getTileRange(task.getEnvelope(), zoom);
+            total += (long) (range[1] - range[0]) * (range[3] - range[2]);
+        }
+        return (int) Math.min(total, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return number of tiles in rows which are already completed by the task
+     */
+    protected static int getTilesDone(DownloadTask task) {
+        long done = 0;
+        List<Integer> zoomList = task.getZoomList();
+        for (int zoomIndex = 0; zoomIndex <= task.mZoomIndex && zoomIndex < zoomList.size(); zoomIndex++) {
+            int[] range = getTileRange(task.getEnvelope(), zoomList.get(zoomIndex));
+            int rows = range[3] - range[2];
+            if (zoomIndex == task.mZoomIndex) {
+                rows = Math.max(0, Math.min(task.mRow, range[3]) - range[2]);
+            }
+            done += (long) (range[1] - range[0]) * rows;
+        }
+        return (int) Math.min(done, Integer.MAX_VALUE);
+    }
+
+    // For overriding in subclasses
+    protected boolean isTileCached(
+            RemoteTMSLayer tmsLayer,
+            TileItem tile)
+    {
+        File tileFile = new File(tmsLayer.getPath(), tile.toString("{z}/{x}/{y}" + Constants.TILE_EXT));
+        return tileFile.length() > 0;
+    }
+
+    // For overriding in subclasses
+    protected void sendProgressorsValues(
+            int maxValue,
+            int value,
+            String layerPathName,
+            int queueDepth,
+            float tilesPerSecond)
+    {
+        sendProgressorsValues(maxValue, value, layerPathName);
+    }
+
     protected void sendProgressorsValues(
             int maxValue,
             int value,
@@ -524,11 +809,29 @@ public class TileDownloadService extends Service {
         //return mIsDownloadError;
     }
 
+    protected static class RowState
+    {
+        final int           mZoomIndex;
+        final int           mRow;
+        final AtomicInteger mPending = new AtomicInteger();
+
+        RowState(
+                int zoomIndex,
+                int row)
+        {
+            mZoomIndex = zoomIndex;
+            mRow = row;
+        }
+    }
+
     public class DownloadTask
     {
         String        mLayerPathName;
         GeoEnvelope   mEnvelope;
         List<Integer> mZoomList;
+        volatile int  mZoomIndex;
+        volatile int  mRow;
+        int           mAttempts;
 
         DownloadTask(
                 String layerPathName,
@@ -540,6 +843,36 @@ public class TileDownloadService extends Service {
             mZoomList = zoomList;
         }
 
+        DownloadTask(JSONObject json)
+                throws JSONException
+        {
+            mLayerPathName = json.getString(KEY_PATH);
+            mEnvelope = new GeoEnvelope(json.getDouble(KEY_MINX), json.getDouble(KEY_MAXX),
+                                        json.getDouble(KEY_MINY), json.getDouble(KEY_MAXY));
+            JSONArray zoomList = json.getJSONArray(KEY_ZOOM_LIST);
+            mZoomList = new ArrayList<>(zoomList.length());
+            for (int i = 0; i < zoomList.length(); i++) {
+                mZoomList.add(zoomList.getInt(i));
+            }
+            mZoomIndex = json.optInt(KEY_ZOOM_INDEX);
+            mRow = json.optInt(KEY_ROW);
+        }
+
+        JSONObject toJSON()
+                throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            json.put(KEY_PATH, mLayerPathName);
+            json.put(KEY_MINX, mEnvelope.getMinX());
+            json.put(KEY_MAXX, mEnvelope.getMaxX());
+            json.put(KEY_MINY, mEnvelope.getMinY());
+            json.put(KEY_MAXY, mEnvelope.getMaxY());
+            json.put(KEY_ZOOM_LIST, new JSONArray(mZoomList));
+            json.put(KEY_ZOOM_INDEX, mZoomIndex);
+            json.put(KEY_ROW, mRow);
+            return json;
+        }
+
         public String getLayerPathName()
         {
             return mLayerPathName;
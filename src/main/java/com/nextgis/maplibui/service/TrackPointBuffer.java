@@ -0,0 +1,221 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.nextgis.maplib.map.TrackLayer;
+import com.nextgis.maplib.util.Constants;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-behind buffer for track points. Fixes are kept in memory and inserted into the trackpoints
+ * table with a single batch when the size or time threshold is reached. Every fix is also appended
+ * to a journal file, so the points which were not flushed yet are restored after the process was
+ * killed. While the current track is shown on the map every fix is flushed at once, so the track
+ * on screen does not lag behind.
+ */
+public class TrackPointBuffer {
+    public static final int  FLUSH_SIZE        = 10;
+    public static final long FLUSH_INTERVAL_MS = 15000;
+
+    protected static final String JOURNAL_FILE = "trackpoints.journal";
+    protected static final char   SEPARATOR    = ';';
+
+    protected final Context mContext;
+    protected final Uri mUri;
+    protected final File mJournal;
+    protected final List<ContentValues> mPoints;
+    protected final StringBuilder mLine;
+    protected long mLastFlush;
+    protected boolean mShown;
+
+    public TrackPointBuffer(Context context, Uri trackPointsUri) {
+        mContext = context;
+        mUri = trackPointsUri;
+        mJournal = new File(context.getFilesDir(), JOURNAL_FILE);
+        mPoints = new ArrayList<>(FLUSH_SIZE);
+        mLine = new StringBuilder(128);
+        mLastFlush = System.currentTimeMillis();
+    }
+
+    /**
+     * Insert points left in the journal by the killed process
+     */
+    public synchronized void restore() {
+        if (!mJournal.exists())
+            return;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mJournal));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ContentValues values = fromLine(line);
+                if (values != null)
+                    mPoints.add(values);
+            }
+        } catch (IOException e) {
+            if (Constants.DEBUG_MODE)
+                Log.d(Constants.TAG, "Failed to read trackpoints journal: " + e.getMessage());
+        } finally {
+            if (reader != null)
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+        }
+
+        if (Constants.DEBUG_MODE)
+            Log.d(Constants.TAG, "Restored " + mPoints.size() + " trackpoints from journal");
+
+        flush();
+    }
+
+    public synchronized void add(ContentValues point) {
+        mPoints.add(new ContentValues(point));
+        appendJournal(point);
+
+        long now = System.currentTimeMillis();
+        if (mPoints.size() >= FLUSH_SIZE || now - mLastFlush >= FLUSH_INTERVAL_MS || mShown)
+            flush();
+    }
+
+    /**
+     * Flush every fix while the track is shown on the map
+     */
+    public synchronized void setShown(boolean shown) {
+        mShown = shown;
+        if (shown)
+            flush();
+    }
+
+    /**
+     * Insert buffered points in one batch. Points the provider did not insert stay in memory and
+     * in the journal, so only they are retried with the next flush.
+     */
+    public synchronized boolean flush() {
+        mLastFlush = System.currentTimeMillis();
+        if (mPoints.isEmpty())
+            return true;
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>(mPoints.size());
+        for (ContentValues point : mPoints)
+            operations.add(ContentProviderOperation.newInsert(mUri).withValues(point).build());
+
+        ContentProviderResult[] results;
+        try {
+            results = mContext.getContentResolver().applyBatch(mUri.getAuthority(), operations);
+        } catch (RemoteException | OperationApplicationException | RuntimeException e) {
+            // the batch is one transaction, keep points in memory and journal for the next attempt
+            if (Constants.DEBUG_MODE)
+                Log.d(Constants.TAG, "Failed to flush " + mPoints.size() + " trackpoints: " + e.getMessage());
+            return false;
+        }
+
+        List<ContentValues> failed = new ArrayList<>();
+        for (int i = 0; i < results.length; i++)
+            if (results[i].uri == null)
+                failed.add(mPoints.get(i));
+
+        mPoints.clear();
+        mPoints.addAll(failed);
+        if (mJournal.exists() && !mJournal.delete() && Constants.DEBUG_MODE)
+            Log.d(Constants.TAG, "Failed to clear trackpoints journal");
+
+        if (failed.isEmpty())
+            return true;
+
+        if (Constants.DEBUG_MODE)
+            Log.d(Constants.TAG, "Failed to insert " + failed.size() + " trackpoints");
+
+        for (ContentValues point : failed)
+            appendJournal(point);
+
+        return false;
+    }
+
+    protected void appendJournal(ContentValues point) {
+        mLine.setLength(0);
+        mLine.append(point.getAsString(TrackLayer.FIELD_SESSION)).append(SEPARATOR)
+             .append(point.getAsDouble(TrackLayer.FIELD_LON)).append(SEPARATOR)
+             .append(point.getAsDouble(TrackLayer.FIELD_LAT)).append(SEPARATOR)
+             .append(point.getAsDouble(TrackLayer.FIELD_ELE)).append(SEPARATOR)
+             .append(point.getAsString(TrackLayer.FIELD_FIX)).append(SEPARATOR)
+             .append(point.getAsInteger(TrackLayer.FIELD_SAT)).append(SEPARATOR)
+             .append(point.getAsFloat(TrackLayer.FIELD_SPEED)).append(SEPARATOR)
+             .append(point.getAsFloat(TrackLayer.FIELD_ACCURACY)).append(SEPARATOR)
+             .append(point.getAsLong(TrackLayer.FIELD_TIMESTAMP)).append('\n');
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mJournal, true);
+            out.write(mLine.toString().getBytes());
+        } catch (IOException e) {
+            if (Constants.DEBUG_MODE)
+                Log.d(Constants.TAG, "Failed to journal trackpoint: " + e.getMessage());
+        } finally {
+            if (out != null)
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+        }
+    }
+
+    protected static ContentValues fromLine(String line) {
+        String[] parts = line.split(String.valueOf(SEPARATOR));
+        if (parts.length != 9)
+            return null;
+
+        try {
+            ContentValues values = new ContentValues();
+            values.put(TrackLayer.FIELD_SESSION, parts[0]);
+            values.put(TrackLayer.FIELD_LON, Double.parseDouble(parts[1]));
+            values.put(TrackLayer.FIELD_LAT, Double.parseDouble(parts[2]));
+            values.put(TrackLayer.FIELD_ELE, Double.parseDouble(parts[3]));
+            values.put(TrackLayer.FIELD_FIX, parts[4]);
+            values.put(TrackLayer.FIELD_SAT, Integer.parseInt(parts[5]));
+            values.put(TrackLayer.FIELD_SPEED, Float.parseFloat(parts[6]));
+            values.put(TrackLayer.FIELD_ACCURACY, Float.parseFloat(parts[7]));
+            values.put(TrackLayer.FIELD_SENT, 0);
+            values.put(TrackLayer.FIELD_TIMESTAMP, Long.parseLong(parts[8]));
+            return values;
+        } catch (NumberFormatException e) {
+            // torn last line of the killed process
+            return null;
+        }
+    }
+}
@@ -28,7 +28,6 @@ import android.app.AlarmManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
@@ -42,6 +41,7 @@ import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
@@ -56,24 +56,15 @@ import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.TrackLayer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.GeoConstants;
-import com.nextgis.maplib.util.HttpResponse;
 import com.nextgis.maplib.util.LocationUtil;
-import com.nextgis.maplib.util.MapUtil;
-import com.nextgis.maplib.util.NetworkUtil;
 import com.nextgis.maplib.util.PermissionUtil;
 import com.nextgis.maplib.util.SettingsConstants;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.NotificationHelper;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import java.io.IOException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.List;
 import java.util.Locale;
 
 import static com.nextgis.maplibui.util.NotificationHelper.createBuilder;
@@ -100,6 +91,9 @@ public class TrackerService extends Service implements LocationListener, GpsStat
     private Uri mContentUriTracks, mContentUriTrackPoints;
     private ContentValues mValues;
     private GeoPoint mPoint;
+    private TrackPointBuffer mPointBuffer;
+    private TrackerUploader mUploader;
+    private IBinder mBinder;
 
     private NotificationManager mNotificationManager;
     private AlarmManager        mAlarmManager;
@@ -127,6 +121,10 @@ public class TrackerService extends Service implements LocationListener, GpsStat
 
         mPoint = new GeoPoint();
         mValues = new ContentValues();
+        mPointBuffer = new TrackPointBuffer(this, mContentUriTrackPoints);
+        mPointBuffer.restore();
+        mUploader = new TrackerUploader(this, mContentUriTrackPoints);
+        mBinder = new Binder();
 
         String name = getPackageName() + "_preferences";
         mSharedPreferences = getSharedPreferences(name, MODE_MULTI_PROCESS);
@@ -281,6 +279,8 @@ public class TrackerService extends Service implements LocationListener, GpsStat
 
 
     private void stopTrack() {
+        mPointBuffer.flush();
+
         // update unclosed tracks in DB
         closeTracks(this, (IGISApplication) getApplication());
 
@@ -409,9 +409,26 @@ public class TrackerService extends Service implements LocationListener, GpsStat
     }
 
 
+    /**
+     * The current track overlay stays bound while it is shown, each fix is stored at once then
+     */
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        mPointBuffer.setShown(true);
+        return mBinder;
+    }
+
+
+    @Override
+    public void onRebind(Intent intent) {
+        mPointBuffer.setShown(true);
+    }
+
+
+    @Override
+    public boolean onUnbind(Intent intent) {
+        mPointBuffer.setShown(false);
+        return true;
     }
 
 
@@ -441,10 +458,7 @@ public class TrackerService extends Service implements LocationListener, GpsStat
         mValues.put(TrackLayer.FIELD_ACCURACY, location.getAccuracy());
         mValues.put(TrackLayer.FIELD_SENT, 0);
         mValues.put(TrackLayer.FIELD_TIMESTAMP, location.getTime());
-        try {
-            getContentResolver().insert(mContentUriTrackPoints, mValues);
-        } catch (Exception ignored) {
-        }
+        mPointBuffer.add(mValues);
     }
 
     @Override
@@ -520,16 +534,18 @@ public class TrackerService extends Service implements LocationListener, GpsStat
             @Override
             public void run() {
 //                Log.d(Constants.TAG, "Entering sync thread");
+                long wait = delay;
                 while (!Thread.currentThread().isInterrupted()) {
                     try {
 //                        Log.d(Constants.TAG, "Sleep sync thread");
-                        Thread.sleep(delay);
+                        Thread.sleep(wait);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                     }
 
                     try {
-                        sync();
+                        // back off while the hub is unreachable
+                        wait = sync() ? delay : mUploader.getRetryDelay(delay);
                     } catch (SQLiteException ignored) {
                     }
 
@@ -542,83 +558,15 @@ public class TrackerService extends Service implements LocationListener, GpsStat
         });
     }
 
-    private void sync() throws SQLiteException {
+    private boolean sync() throws SQLiteException {
 //        Log.d(Constants.TAG, "Syncing trackpoints");
         if (mSharedPreferences.getBoolean(SettingsConstants.KEY_PREF_TRACK_SEND, false)) {
-            ContentResolver resolver = getContentResolver();
-            String selection = TrackLayer.FIELD_SENT + " = 0";
-            String sort = TrackLayer.FIELD_TIMESTAMP + " ASC";
-            Cursor points = resolver.query(mContentUriTrackPoints, null, selection, null, sort);
-            if (points != null) {
-                List<String> ids = new ArrayList<>();
-                if (points.moveToFirst()) {
-                    GeoPoint point = new GeoPoint();
-                    int lon = points.getColumnIndex(TrackLayer.FIELD_LON);
-                    int lat = points.getColumnIndex(TrackLayer.FIELD_LAT);
-                    int ele = points.getColumnIndex(TrackLayer.FIELD_ELE);
-                    int fix = points.getColumnIndex(TrackLayer.FIELD_FIX);
-                    int sat = points.getColumnIndex(TrackLayer.FIELD_SAT);
-                    int acc = points.getColumnIndex(TrackLayer.FIELD_ACCURACY);
-                    int speed = points.getColumnIndex(TrackLayer.FIELD_SPEED);
-                    int time = points.getColumnIndex(TrackLayer.FIELD_TIMESTAMP);
-                    JSONArray payload = new JSONArray();
-
-                    int counter = 0;
-                    do {
-                        JSONObject item = new JSONObject();
-                        try {
-                            point.setCoordinates(points.getDouble(lon), points.getDouble(lat));
-                            point.setCRS(GeoConstants.CRS_WEB_MERCATOR);
-                            point.project(GeoConstants.CRS_WGS84);
-                            item.put("lt", point.getY());
-                            item.put("ln", point.getX());
-                            item.put("ts", points.getLong(time)/1000);
-                            item.put("a", points.getDouble(ele));
-                            item.put("s", points.getInt(sat));
-                            item.put("ft", points.getString(fix).equals("3d") ? 3 : 2);
-                            item.put("sp", points.getDouble(speed) * 18 / 5);
-                            item.put("ha", points.getDouble(acc));
-                            payload.put(item);
-                            ids.add(points.getString(time));
-                            counter++;
-
-                            if (counter >= 100) {
-                                post(payload.toString(), this, ids);
-                                payload = new JSONArray();
-                                ids.clear();
-                                counter = 0;
-                            }
-                        } catch (Exception ignored) { }
-                    } while (points.moveToNext());
-
-                    if (counter > 0) {
-                        try {
-                            post(payload.toString(), this, ids);
-                        } catch (Exception ignored) { }
-                    }
-                }
-                points.close();
-            }
+            String base = mSharedPreferences.getString("tracker_hub_url", HOST);
+            String url = String.format("%s/%s/packet", base + URL, getUid(this));
+            return mUploader.upload(url);
         }
-    }
 
-    private void post(String payload, Context context, List<String> ids) throws IOException {
-        String base = mSharedPreferences.getString("tracker_hub_url", HOST);
-        String url = String.format("%s/%s/packet", base + URL, getUid(context));
-//        Log.d(Constants.TAG, "Post to " + url);
-        HttpResponse response = NetworkUtil.post(url, payload, null, null, false);
-//        Log.d(Constants.TAG, "Response is " + response.getResponseCode());
-        if (!response.isOk())
-            return;
-
-        ContentValues cv = new ContentValues();
-        cv.put(TrackLayer.FIELD_SENT, 1);
-        String where = TrackLayer.FIELD_TIMESTAMP + " in (" + MapUtil.makePlaceholders(ids.size()) + ")";
-        String[] timestamps = ids.toArray(new String[0]);
-        try {
-            context.getContentResolver().update(mContentUriTrackPoints, cv, where, timestamps);
-        } catch (SQLiteException ignored) {
-        }
+        return true;
     }
 
     @SuppressLint("HardwareIds")
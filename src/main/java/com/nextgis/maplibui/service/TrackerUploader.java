@@ -0,0 +1,274 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.util.Log;
+
+import com.nextgis.maplib.map.TrackLayer;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.NetworkUtil;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Sends unsent track points to the tracker hub. Points are read in pages ordered by timestamp and
+ * row id, serialized into a reused buffer and gzipped. The page size follows the link quality and
+ * exactly the rows of a sent page are marked by a single update. While the hub is unreachable or
+ * rejects packets the caller should wait for {@link #getRetryDelay(long)} before the next attempt.
+ */
+public class TrackerUploader {
+    public static final int MIN_BATCH_SIZE = 25;
+    public static final int MAX_BATCH_SIZE = 500;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    protected static final long FAST_RESPONSE_MS = 2000;
+    protected static final long SLOW_RESPONSE_MS = 8000;
+    protected static final long MIN_RETRY_DELAY_MS = 1000;
+    protected static final long MAX_RETRY_DELAY_MS = 15 * 60 * 1000;
+    protected static final int MAX_BACKOFF_STEP = 16;
+
+    protected static final String ROW_ID = "rowid";
+    protected static final String[] PROJECTION = new String[]{
+            TrackLayer.FIELD_LON, TrackLayer.FIELD_LAT, TrackLayer.FIELD_ELE, TrackLayer.FIELD_FIX,
+            TrackLayer.FIELD_SAT, TrackLayer.FIELD_ACCURACY, TrackLayer.FIELD_SPEED,
+            TrackLayer.FIELD_TIMESTAMP, ROW_ID};
+    protected static final String SELECTION =
+            TrackLayer.FIELD_SENT + " = 0 AND (" + TrackLayer.FIELD_TIMESTAMP + " > ? OR ("
+                    + TrackLayer.FIELD_TIMESTAMP + " = ? AND " + ROW_ID + " > ?))";
+    protected static final String SORT =
+            TrackLayer.FIELD_TIMESTAMP + " ASC, " + ROW_ID + " ASC";
+
+    protected static final double EARTH_RADIUS = 6378137;
+    protected static final double RAD_TO_DEG = 180 / Math.PI;
+
+    protected final Context mContext;
+    protected final Uri mUri;
+    protected final StringBuilder mPayload;
+    protected final ByteArrayOutputStream mBuffer;
+    protected final byte[] mReadBuffer;
+    protected final ContentValues mSentValues;
+    protected final long[] mIds;
+    protected final StringBuilder mSentSelection;
+
+    protected int mBatchSize;
+    protected int mFailures;
+    protected boolean mUseGzip;
+
+    public TrackerUploader(Context context, Uri trackPointsUri) {
+        mContext = context;
+        mUri = trackPointsUri;
+        mPayload = new StringBuilder(DEFAULT_BATCH_SIZE * 128);
+        mBuffer = new ByteArrayOutputStream(DEFAULT_BATCH_SIZE * 64);
+        mReadBuffer = new byte[1024];
+        mSentValues = new ContentValues();
+        mSentValues.put(TrackLayer.FIELD_SENT, 1);
+        mIds = new long[MAX_BATCH_SIZE];
+        mSentSelection = new StringBuilder(MAX_BATCH_SIZE * 8);
+        mBatchSize = DEFAULT_BATCH_SIZE;
+        mUseGzip = true;
+    }
+
+    /**
+     * Send all unsent points page by page
+     *
+     * @param url hub packet url
+     * @return false if the hub is unreachable or rejects points
+     */
+    public boolean upload(String url) throws SQLiteException {
+        ContentResolver resolver = mContext.getContentResolver();
+        long lastTimestamp = -1, lastId = -1;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            String timestamp = Long.toString(lastTimestamp);
+            String[] args = new String[]{timestamp, timestamp, Long.toString(lastId)};
+            Cursor points = resolver.query(mUri, PROJECTION, SELECTION, args, SORT + " LIMIT " + mBatchSize);
+            if (points == null)
+                return true;
+
+            int count;
+            try {
+                if (!points.moveToFirst())
+                    return true;
+
+                count = writePage(points);
+                points.moveToLast();
+                lastTimestamp = points.getLong(7);
+                lastId = points.getLong(8);
+            } finally {
+                points.close();
+            }
+
+            long started = System.currentTimeMillis();
+            int code = post(url);
+            long elapsed = System.currentTimeMillis() - started;
+
+            if (code < HttpURLConnection.HTTP_OK || code >= HttpURLConnection.HTTP_MULT_CHOICE) {
+                mFailures = Math.min(mFailures + 1, MAX_BACKOFF_STEP);
+                if (code < 0 || code >= HttpURLConnection.HTTP_INTERNAL_ERROR)
+                    mBatchSize = Math.max(MIN_BATCH_SIZE, mBatchSize / 2);
+                return false;
+            }
+
+            mFailures = 0;
+            adaptBatchSize(count, elapsed);
+
+            try {
+                resolver.update(mUri, mSentValues, getSentSelection(count), null);
+            } catch (SQLiteException e) {
+                if (Constants.DEBUG_MODE)
+                    Log.d(Constants.TAG, "Failed to mark trackpoints sent: " + e.getMessage());
+                return true;
+            }
+        }
+
+        return true;
+    }
+
+    // rows written by the last page only
+    protected String getSentSelection(int count) {
+        mSentSelection.setLength(0);
+        mSentSelection.append(ROW_ID).append(" IN (");
+        for (int i = 0; i < count; i++) {
+            if (i > 0)
+                mSentSelection.append(',');
+            mSentSelection.append(mIds[i]);
+        }
+        return mSentSelection.append(')').toString();
+    }
+
+    public long getRetryDelay(long delay) {
+        if (mFailures == 0)
+            return delay;
+
+        delay = Math.max(delay, MIN_RETRY_DELAY_MS);
+        return Math.min(delay << Math.min(mFailures, MAX_BACKOFF_STEP), MAX_RETRY_DELAY_MS);
+    }
+
+    protected void adaptBatchSize(int count, long elapsed) {
+        if (elapsed < FAST_RESPONSE_MS && count == mBatchSize)
+            mBatchSize = Math.min(MAX_BATCH_SIZE, mBatchSize * 2);
+        else if (elapsed > SLOW_RESPONSE_MS)
+            mBatchSize = Math.max(MIN_BATCH_SIZE, mBatchSize / 2);
+    }
+
+    /**
+     * @return number of points written, their row ids are kept for marking them sent
+     */
+    protected int writePage(Cursor points) {
+        mPayload.setLength(0);
+        mPayload.append('[');
+
+        int count = 0;
+        do {
+            double x = points.getDouble(0);
+            double y = points.getDouble(1);
+            long timestamp = points.getLong(7);
+
+            if (count > 0)
+                mPayload.append(',');
+
+            // inverse of web mercator, points are stored in EPSG:3857
+            mPayload.append("{\"lt\":").append((2 * Math.atan(Math.exp(y / EARTH_RADIUS)) - Math.PI / 2) * RAD_TO_DEG)
+                    .append(",\"ln\":").append(x / EARTH_RADIUS * RAD_TO_DEG)
+                    .append(",\"ts\":").append(timestamp / 1000)
+                    .append(",\"a\":").append(points.getDouble(2))
+                    .append(",\"s\":").append(points.getInt(4))
+                    .append(",\"ft\":").append("3d".equals(points.getString(3)) ? 3 : 2)
+                    .append(",\"sp\":").append(points.getDouble(6) * 18 / 5)
+                    .append(",\"ha\":").append(points.getDouble(5))
+                    .append('}');
+            mIds[count++] = points.getLong(8);
+        } while (points.moveToNext() && count < mIds.length);
+
+        mPayload.append(']');
+        return count;
+    }
+
+    /**
+     * @return response code or -1 if the hub is unreachable
+     */
+    protected int post(String url) {
+        HttpURLConnection connection = null;
+        try {
+            mBuffer.reset();
+            OutputStream body = mUseGzip ? new GZIPOutputStream(mBuffer) : mBuffer;
+            body.write(mPayload.toString().getBytes("UTF-8"));
+            body.close();
+
+            connection = NetworkUtil.getHttpConnection("POST", url, null, null);
+            if (connection == null)
+                return -1;
+
+            connection.setRequestProperty("Content-Type", "application/json");
+            if (mUseGzip)
+                connection.setRequestProperty("Content-Encoding", "gzip");
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(mBuffer.size());
+
+            OutputStream out = connection.getOutputStream();
+            mBuffer.writeTo(out);
+            out.close();
+
+            int code = connection.getResponseCode();
+            drain(code < HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getInputStream()
+                    : connection.getErrorStream());
+
+            // hub does not accept compressed packets, send them as is
+            if (mUseGzip && (code == HttpURLConnection.HTTP_BAD_REQUEST
+                    || code == HttpURLConnection.HTTP_UNSUPPORTED_TYPE)) {
+                mUseGzip = false;
+                return post(url);
+            }
+
+            if (Constants.DEBUG_MODE && (code < HttpURLConnection.HTTP_OK || code >= HttpURLConnection.HTTP_MULT_CHOICE))
+                Log.d(Constants.TAG, "Tracker hub response is " + code);
+
+            return code;
+        } catch (IOException e) {
+            if (Constants.DEBUG_MODE)
+                Log.d(Constants.TAG, "Tracker hub is unreachable: " + e.getMessage());
+            return -1;
+        } finally {
+            if (connection != null)
+                connection.disconnect();
+        }
+    }
+
+    protected void drain(InputStream input) throws IOException {
+        if (input == null)
+            return;
+
+        while (input.read(mReadBuffer) != -1) ;
+        input.close();
+    }
+}
@@ -4,7 +4,7 @@
  *  Author:   Dmitry Baryshnikov, dmitry.baryshnikov@nextgis.com
  *  Author:   Stanislav Petriakov, becomeglory@gmail.com
  * ****************************************************************************
- *  Copyright (c) 2015-2019 NextGIS, info@nextgis.com
+ *  Copyright (c) 2015-2020 NextGIS, info@nextgis.com
  *
  *  This program is free software: you can redistribute it and/or modify
  *  it under the terms of the GNU Lesser Public License as published by
@@ -43,7 +43,6 @@ import android.text.TextUtils;
 
 import com.nextgis.maplib.api.ILayer;
 import com.nextgis.maplib.datasource.GeoGeometry;
-import com.nextgis.maplib.datasource.GeoGeometryFactory;
 import com.nextgis.maplib.datasource.GeoLineString;
 import com.nextgis.maplib.datasource.GeoLinearRing;
 import com.nextgis.maplib.datasource.GeoPoint;
@@ -55,8 +54,12 @@ import com.nextgis.maplib.util.PermissionUtil;
 import com.nextgis.maplib.util.SettingsConstants;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.util.ConstantsUI;
+import com.nextgis.maplibui.util.GeometryStore;
 import com.nextgis.maplibui.util.NotificationHelper;
+import com.nextgis.maplibui.util.PointJournal;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.Map;
 
 import static com.nextgis.maplibui.util.NotificationHelper.createBuilder;
@@ -71,7 +74,12 @@ public class WalkEditService extends Service implements LocationListener, GpsSta
     public static final String EXTRA_HEADER = "extra_";
     public static final String ACTION_STOP = "com.nextgis.maplibui.WALKEDIT_STOP";
     public static final String ACTION_START = "com.nextgis.maplibui.WALKEDIT_START";
+    public static final String ACTION_RESYNC = "com.nextgis.maplibui.WALKEDIT_RESYNC";
     public static final String WALKEDIT_CHANGE = "com.nextgis.maplibui.WALKEDIT_CHANGE";
+    public static final String GEOMETRY_TOKEN = "walkedit";
+    public static final String EXTRA_POINTS = "walkedit_points";
+    public static final String EXTRA_START = "walkedit_start";
+    private static final String JOURNAL = "walkedit.journal";
 
     private SharedPreferences mSharedPreferencesTemp;
     private LocationManager mLocationManager;
@@ -79,6 +87,7 @@ public class WalkEditService extends Service implements LocationListener, GpsSta
     private String mTicker;
     private int mSmallIcon;
     private PendingIntent mOpenActivity;
+    private PointJournal mJournal;
 
     protected String mTargetActivity;
     protected Bundle mTargetExtras;
@@ -93,6 +102,7 @@ public class WalkEditService extends Service implements LocationListener, GpsSta
         mNotificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
         mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
         mSharedPreferencesTemp = getSharedPreferences(TEMP_PREFERENCES, MODE_MULTI_PROCESS);
+        mJournal = new PointJournal(new File(getFilesDir(), JOURNAL));
 
         mTicker = getString(R.string.walkedit_title);
         mSmallIcon = R.drawable.ic_action_maps_directions_walk;
@@ -109,17 +119,38 @@ public class WalkEditService extends Service implements LocationListener, GpsSta
                 switch (action) {
                     case ACTION_STOP:
                         mGeometry = null;
+                        mJournal.delete();
                         mLayerId = Constants.NOT_FOUND;
                         removeNotification();
                         stopSelf();
                         break;
+                    case ACTION_RESYNC:
+                        // only the overlay of the layer being walked gets the whole geometry
+                        int resyncId = intent.getIntExtra(ConstantsUI.KEY_LAYER_ID, Constants.NOT_FOUND);
+                        if (mGeometry != null && mLayerId == resyncId)
+                            sendGeometryBroadcast();
+                        else if (mGeometry == null)
+                            stopSelf(startId);
+                        break;
                     case ACTION_START:
                         int layerId = intent.getIntExtra(ConstantsUI.KEY_LAYER_ID, Constants.NOT_FOUND);
-                        if (mLayerId == layerId) { // we are already running track record
+                        if (mGeometry != null && mLayerId == layerId) { // we are already running track record
                             sendGeometryBroadcast();
                         } else {
+                            GeoGeometry geometry = GeometryStore.getExtra(this, intent.getExtras(), ConstantsUI.KEY_GEOMETRY);
+                            String token = intent.getStringExtra(ConstantsUI.KEY_GEOMETRY);
+                            if (null != token)
+                                GeometryStore.remove(this, token);
+
+                            if (geometry == null) {
+                                if (mGeometry == null)
+                                    stopSelf(startId);
+                                break;
+                            }
+
                             mLayerId = layerId;
-                            mGeometry = (GeoGeometry) intent.getSerializableExtra(ConstantsUI.KEY_GEOMETRY);
+                            mGeometry = geometry;
+
                             if (mGeometry instanceof GeoLinearRing) {
                                 GeoLinearRing ring = (GeoLinearRing) mGeometry;
                                 if (ring.isClosed())
@@ -131,9 +162,14 @@ public class WalkEditService extends Service implements LocationListener, GpsSta
                             mShowNotification = intent.getBooleanExtra(ConstantsUI.KEY_MESSAGE, true);
                             startWalkEdit();
 
+                            try {
+                                mJournal.start(mGeometry);
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                            }
+
                             SharedPreferences.Editor edit = mSharedPreferencesTemp.edit();
                             edit.putInt(ConstantsUI.KEY_LAYER_ID, mLayerId);
-                            edit.putString(ConstantsUI.KEY_GEOMETRY, mGeometry.toWKT(true));
                             edit.putString(ConstantsUI.TARGET_CLASS, mTargetActivity);
                             edit.putBoolean(ConstantsUI.KEY_MESSAGE, mShowNotification);
                             saveBundle(edit, mTargetExtras);
@@ -144,7 +180,20 @@ public class WalkEditService extends Service implements LocationListener, GpsSta
             }
         } else {
             mLayerId = mSharedPreferencesTemp.getInt(ConstantsUI.KEY_LAYER_ID, Constants.NOT_FOUND);
-            mGeometry = GeoGeometryFactory.fromWKT(mSharedPreferencesTemp.getString(ConstantsUI.KEY_GEOMETRY, ""), GeoConstants.CRS_WEB_MERCATOR);
+            try {
+                mGeometry = mJournal.read();
+                if (mGeometry != null)
+                    mJournal.open();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            if (mGeometry == null) {
+                mLayerId = Constants.NOT_FOUND;
+                stopSelf(startId);
+                return START_NOT_STICKY;
+            }
+
             mTargetActivity = mSharedPreferencesTemp.getString(ConstantsUI.TARGET_CLASS, "");
             mTargetExtras = loadBundle(mSharedPreferencesTemp);
             mShowNotification = mSharedPreferencesTemp.getBoolean(ConstantsUI.KEY_MESSAGE, true);
@@ -183,9 +232,22 @@ public class WalkEditService extends Service implements LocationListener, GpsSta
         addNotification();
     }
 
+    // whole geometry, sent when a receiver is out of sync
     private void sendGeometryBroadcast() {
+        if (mGeometry == null)
+            return;
+
+        GeometryStore.put(this, GEOMETRY_TOKEN, mGeometry);
         Intent broadcastIntent = new Intent(WALKEDIT_CHANGE);
-        broadcastIntent.putExtra(ConstantsUI.KEY_GEOMETRY, mGeometry);
+        broadcastIntent.putExtra(ConstantsUI.KEY_GEOMETRY, GEOMETRY_TOKEN);
+        sendBroadcast(broadcastIntent);
+    }
+
+    // new vertices only, start is the index of the first one
+    private void sendPointsBroadcast(int start, GeoPoint point) {
+        Intent broadcastIntent = new Intent(WALKEDIT_CHANGE);
+        broadcastIntent.putExtra(EXTRA_START, start);
+        broadcastIntent.putExtra(EXTRA_POINTS, new double[]{point.getX(), point.getY()});
         sendBroadcast(broadcastIntent);
     }
 
@@ -197,6 +259,8 @@ public class WalkEditService extends Service implements LocationListener, GpsSta
     @Override
     public void onDestroy() {
         mSharedPreferencesTemp.edit().clear().apply();
+        mJournal.delete();
+        GeometryStore.remove(this, GEOMETRY_TOKEN);
         removeNotification();
         stopSelf();
 
@@ -211,7 +275,7 @@ public class WalkEditService extends Service implements LocationListener, GpsSta
     @Override
     public void onLocationChanged(Location location) {
         boolean update = LocationUtil.isProviderEnabled(this, location.getProvider(), false);
-        if (!update)
+        if (!update || mGeometry == null)
             return;
 
         GeoPoint point;
@@ -219,23 +283,29 @@ public class WalkEditService extends Service implements LocationListener, GpsSta
         point.setCRS(GeoConstants.CRS_WGS84);
         point.project(GeoConstants.CRS_WEB_MERCATOR);
 
+        int start;
         switch (mGeometry.getType()) {
             case GeoConstants.GTLineString:
                 GeoLineString line = (GeoLineString) mGeometry;
+                start = line.getPointCount();
                 line.add(point);
                 break;
             case GeoConstants.GTLinearRing:
                 GeoLinearRing ring = (GeoLinearRing) mGeometry;
+                start = ring.getPointCount();
                 ring.add(point);
                 break;
             default:
                 throw new UnsupportedOperationException("Unsupported geometry type");
         }
 
-        SharedPreferences.Editor edit = mSharedPreferencesTemp.edit();
-        edit.putString(ConstantsUI.KEY_GEOMETRY, mGeometry.toWKT(true)).apply();
+        try {
+            mJournal.append(point);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
 
-        sendGeometryBroadcast();
+        sendPointsBroadcast(start, point);
     }
 
     @Override
@@ -0,0 +1,199 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reversible difference between two byte arrays, e.g. two geometry blobs. The difference is a
+ * list of hunks replacing bytes of the old array with bytes of the new one. Short same-length
+ * hunks cover changed coordinates and counters, the last hunk covers inserted or removed bytes.
+ * A delta which is not smaller than the new array is stored as a full checkpoint.
+ */
+public final class BinaryDelta {
+    private static final int MAX_HUNK = 16;
+    private static final int SYNC = 8;
+
+    private final int[] mOldOffsets, mNewOffsets;
+    private final byte[][] mOldParts, mNewParts;
+
+    private BinaryDelta(int[] oldOffsets, int[] newOffsets, byte[][] oldParts, byte[][] newParts) {
+        mOldOffsets = oldOffsets;
+        mNewOffsets = newOffsets;
+        mOldParts = oldParts;
+        mNewParts = newParts;
+    }
+
+    public static BinaryDelta create(byte[] a, byte[] b) {
+        List<int[]> hunks = new ArrayList<>();
+        int i = 0, j = 0, size = 0;
+        while (true) {
+            while (i < a.length && j < b.length && a[i] == b[j]) {
+                i++;
+                j++;
+            }
+
+            if (i == a.length && j == b.length)
+                break;
+
+            int d = resync(a, i, b, j);
+            if (d > 0) {
+                hunks.add(new int[]{i, j, d, d});
+                size += 2 * d;
+                i += d;
+                j += d;
+                continue;
+            }
+
+            int s = 0;
+            while (s < a.length - i && s < b.length - j && a[a.length - 1 - s] == b[b.length - 1 - s])
+                s++;
+
+            hunks.add(new int[]{i, j, a.length - s - i, b.length - s - j});
+            size += a.length - s - i + b.length - s - j;
+            break;
+        }
+
+        // too many changes, keep both arrays as is
+        if (size >= a.length + b.length) {
+            hunks.clear();
+            hunks.add(new int[]{0, 0, a.length, b.length});
+        }
+
+        int count = hunks.size();
+        int[] oldOffsets = new int[count], newOffsets = new int[count];
+        byte[][] oldParts = new byte[count][], newParts = new byte[count][];
+        for (int k = 0; k < count; k++) {
+            int[] hunk = hunks.get(k);
+            oldOffsets[k] = hunk[0];
+            newOffsets[k] = hunk[1];
+            oldParts[k] = Arrays.copyOfRange(a, hunk[0], hunk[0] + hunk[2]);
+            newParts[k] = Arrays.copyOfRange(b, hunk[1], hunk[1] + hunk[3]);
+        }
+
+        return new BinaryDelta(oldOffsets, newOffsets, oldParts, newParts);
+    }
+
+    // length of a short same-length replacement after which both arrays match again
+    private static int resync(byte[] a, int i, byte[] b, int j) {
+        for (int d = 1; d <= MAX_HUNK; d++) {
+            if (i + d == a.length && j + d == b.length)
+                return d;
+
+            if (i + d + SYNC > a.length || j + d + SYNC > b.length)
+                return 0;
+
+            boolean match = true;
+            for (int k = 0; k < SYNC && match; k++)
+                match = a[i + d + k] == b[j + d + k];
+
+            if (match)
+                return d;
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return new array from the old one
+     */
+    public byte[] apply(byte[] source) {
+        return patch(source, mOldOffsets, mOldParts, mNewParts);
+    }
+
+    /**
+     * @return old array from the new one
+     */
+    public byte[] revert(byte[] source) {
+        return patch(source, mNewOffsets, mNewParts, mOldParts);
+    }
+
+    private static byte[] patch(byte[] source, int[] offsets, byte[][] from, byte[][] to) {
+        int length = source.length;
+        for (int k = 0; k < offsets.length; k++)
+            length += to[k].length - from[k].length;
+
+        byte[] result = new byte[length];
+        int position = 0, target = 0;
+        for (int k = 0; k < offsets.length; k++) {
+            int common = offsets[k] - position;
+            System.arraycopy(source, position, result, target, common);
+            target += common;
+            System.arraycopy(to[k], 0, result, target, to[k].length);
+            target += to[k].length;
+            position = offsets[k] + from[k].length;
+        }
+
+        System.arraycopy(source, position, result, target, source.length - position);
+        return result;
+    }
+
+    /**
+     * @return size of changed bytes kept by the delta
+     */
+    public int getSize() {
+        int size = 0;
+        for (int k = 0; k < mOldParts.length; k++)
+            size += mOldParts[k].length + mNewParts[k].length;
+
+        return size;
+    }
+
+    public void write(DataOutputStream stream) throws IOException {
+        stream.writeInt(mOldOffsets.length);
+        for (int k = 0; k < mOldOffsets.length; k++) {
+            stream.writeInt(mOldOffsets[k]);
+            stream.writeInt(mNewOffsets[k]);
+            writeBytes(stream, mOldParts[k]);
+            writeBytes(stream, mNewParts[k]);
+        }
+    }
+
+    public static BinaryDelta read(DataInputStream stream) throws IOException {
+        int count = stream.readInt();
+        int[] oldOffsets = new int[count], newOffsets = new int[count];
+        byte[][] oldParts = new byte[count][], newParts = new byte[count][];
+        for (int k = 0; k < count; k++) {
+            oldOffsets[k] = stream.readInt();
+            newOffsets[k] = stream.readInt();
+            oldParts[k] = readBytes(stream);
+            newParts[k] = readBytes(stream);
+        }
+
+        return new BinaryDelta(oldOffsets, newOffsets, oldParts, newParts);
+    }
+
+    static void writeBytes(DataOutputStream stream, byte[] data) throws IOException {
+        stream.writeInt(data.length);
+        stream.write(data);
+    }
+
+    static byte[] readBytes(DataInputStream stream) throws IOException {
+        byte[] data = new byte[stream.readInt()];
+        stream.readFully(data);
+        return data;
+    }
+}
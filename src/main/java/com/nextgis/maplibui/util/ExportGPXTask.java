@@ -39,19 +39,20 @@ import android.widget.Toast;
 import com.nextgis.maplib.api.IGISApplication;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.TrackLayer;
-import com.nextgis.maplib.util.FileUtil;
 import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.activity.NGActivity;
 
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.Formatter;
+import java.util.Calendar;
 import java.util.Locale;
 import java.util.TimeZone;
 
@@ -60,7 +61,7 @@ import static com.nextgis.maplib.util.GeoConstants.CRS_WGS84;
 import static com.nextgis.maplibui.util.LayerUtil.AUTHORITY;
 import static com.nextgis.maplibui.util.LayerUtil.notFound;
 
-public class ExportGPXTask extends AsyncTask<Void, Void, Void> implements DialogInterface.OnClickListener {
+public class ExportGPXTask extends AsyncTask<Void, Integer, Void> implements DialogInterface.OnClickListener {
     private static final String XML_VERSION = "<?xml version=\"1.0\"?>";
     private static final String GPX_VERSION = "1.1";
     private static final String GPX_TAG = "<gpx version=\""
@@ -73,12 +74,21 @@ public class ExportGPXTask extends AsyncTask<Void, Void, Void> implements Dialog
     private static final String GPX_TAG_TRACK_CLOSE = "</trk>";
     private static final String GPX_TAG_TRACK_SEGMENT = "<trkseg>";
     private static final String GPX_TAG_TRACK_SEGMENT_CLOSE = "</trkseg>";
-    private static final String GPX_TAG_TRACK_SEGMENT_POINT = "<trkpt lat=\"%s\" lon=\"%s\">";
+    private static final String GPX_TAG_TRACK_SEGMENT_POINT_LAT = "<trkpt lat=\"";
+    private static final String GPX_TAG_TRACK_SEGMENT_POINT_LON = "\" lon=\"";
+    private static final String GPX_TAG_TRACK_SEGMENT_POINT_OPEN_END = "\">";
     private static final String GPX_TAG_TRACK_SEGMENT_POINT_CLOSE = "</trkpt>";
-    private static final String GPX_TAG_TRACK_SEGMENT_POINT_TIME = "<time>%s</time>";
-    private static final String GPX_TAG_TRACK_SEGMENT_POINT_SAT = "<sat>%s</sat>";
-    private static final String GPX_TAG_TRACK_SEGMENT_POINT_ELE = "<ele>%s</ele>";
-    private static final String GPX_TAG_TRACK_SEGMENT_POINT_FIX = "<fix>%s</fix>";
+    private static final String GPX_TAG_TIME = "<time>";
+    private static final String GPX_TAG_TIME_CLOSE = "</time>";
+    private static final String GPX_TAG_SAT = "<sat>";
+    private static final String GPX_TAG_SAT_CLOSE = "</sat>";
+    private static final String GPX_TAG_ELE = "<ele>";
+    private static final String GPX_TAG_ELE_CLOSE = "</ele>";
+    private static final String GPX_TAG_FIX = "<fix>";
+    private static final String GPX_TAG_FIX_CLOSE = "</fix>";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int PROGRESS_STEP = 1000;
 
     protected NGActivity mActivity;
     private ProgressDialog mProgress;
@@ -87,12 +97,21 @@ public class ExportGPXTask extends AsyncTask<Void, Void, Void> implements Dialog
     private int mNoPoints = 0;
     private String mHeader;
     private ArrayList<Uri> mUris;
+    private StringBuilder mBuilder;
+    private char[] mChars;
+    private Calendar mCalendar;
+    private DecimalFormat mDecimalFormat;
 
     ExportGPXTask(NGActivity activity, String creator, String[] tracksId) {
         mTracksId = tracksId;
         mActivity = activity;
         mHeader = XML_VERSION + "\r\n" + String.format(GPX_TAG, creator) + "\r\n";
         mUris = new ArrayList<>();
+        mBuilder = new StringBuilder(BUFFER_SIZE + 1024);
+        mChars = new char[BUFFER_SIZE + 1024];
+        mCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ENGLISH);
+        mDecimalFormat = new DecimalFormat("0", new DecimalFormatSymbols(Locale.ENGLISH));
+        mDecimalFormat.setMaximumFractionDigits(340); //340 = DecimalFormat.DOUBLE_FRACTION_DIGITS
     }
 
     @Override
@@ -119,15 +138,14 @@ public class ExportGPXTask extends AsyncTask<Void, Void, Void> implements Dialog
 
         publishProgress();
         File temp = null, parent = MapUtil.prepareTempDir(mActivity, "exported_tracks");
+        Writer writer = null;
         try {
             IGISApplication application = (IGISApplication) mActivity.getApplication();
             Uri mContentUriTracks = Uri.parse("content://" + application.getAuthority() + "/" + TrackLayer.TABLE_TRACKS);
             Cursor track, trackpoints;
-            final StringBuilder sb = new StringBuilder();
-            final Formatter f = new Formatter(sb);
             if (!mSeparateFiles) {
                 temp = new File(parent, "tracks.gpx");
-                FileUtil.writeToFile(temp, mHeader);
+                writer = openWriter(temp);
             }
 
             Context app = mActivity.getApplicationContext();
@@ -142,37 +160,39 @@ public class ExportGPXTask extends AsyncTask<Void, Void, Void> implements Dialog
                                                                                         trackId), null, null, null, TrackLayer.FIELD_TIMESTAMP + " ASC");
 
                 if (track != null && track.moveToFirst()) {
-                    if (mSeparateFiles) {
-                        temp = new File(parent, track.getString(0) + ".gpx");
-                        FileUtil.writeToFile(temp, mHeader);
-                    }
-
                     if (trackpoints != null && trackpoints.moveToFirst()) {
                         if (mSeparateFiles) {
-                            appendTrack(temp, track.getString(0), sb, f, trackpoints);
-                            FileUtil.writeToFile(temp, GPX_TAG_CLOSE, true);
-                            Uri uri = null;
-                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                                if (temp != null)
-                                    uri = FileProvider.getUriForFile(app, authority, temp);
-                            } else
+                            temp = new File(parent, track.getString(0) + ".gpx");
+                            writer = openWriter(temp);
+                            appendTrack(writer, track.getString(0), trackpoints);
+                            writer.write(GPX_TAG_CLOSE);
+                            writer.close();
+                            writer = null;
+
+                            Uri uri;
+                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+                                uri = FileProvider.getUriForFile(app, authority, temp);
+                            else
                                 uri = Uri.fromFile(temp);
                             if (uri != null)
                                 mUris.add(uri);
                         } else
-                            appendTrack(temp, track.getString(0), sb, f, trackpoints);
-
-                        trackpoints.close();
+                            appendTrack(writer, track.getString(0), trackpoints);
                     } else
                         mNoPoints++;
 
                     track.close();
                 }
+
+                if (trackpoints != null)
+                    trackpoints.close();
             }
 
             Uri uri = null;
             if (!mSeparateFiles) {
-                FileUtil.writeToFile(temp, GPX_TAG_CLOSE, true);
+                writer.write(GPX_TAG_CLOSE);
+                writer.close();
+                writer = null;
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
                     if (temp != null)
                         uri = FileProvider.getUriForFile(app, authority, temp);
@@ -183,12 +203,23 @@ public class ExportGPXTask extends AsyncTask<Void, Void, Void> implements Dialog
             }
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            if (writer != null)
+                try {
+                    writer.close();
+                } catch (IOException ignored) { }
         }
 
         return null;
     }
 
-    private void appendTrack(File temp, String name, StringBuilder sb, Formatter f, Cursor trackpoints) throws IOException {
+    private Writer openWriter(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, false), "UTF-8"), BUFFER_SIZE);
+        writer.write(mHeader);
+        return writer;
+    }
+
+    private void appendTrack(Writer writer, String name, Cursor trackpoints) throws IOException {
         GeoPoint point = new GeoPoint();
         int latId = trackpoints.getColumnIndex(TrackLayer.FIELD_LAT);
         int lonId = trackpoints.getColumnIndex(TrackLayer.FIELD_LON);
@@ -196,10 +227,9 @@ public class ExportGPXTask extends AsyncTask<Void, Void, Void> implements Dialog
         int eleId = trackpoints.getColumnIndex(TrackLayer.FIELD_ELE);
         int satId = trackpoints.getColumnIndex(TrackLayer.FIELD_SAT);
         int fixId = trackpoints.getColumnIndex(TrackLayer.FIELD_FIX);
+        int total = trackpoints.getCount();
 
-        DecimalFormat df = new DecimalFormat("0", new DecimalFormatSymbols(Locale.ENGLISH));
-        df.setMaximumFractionDigits(340); //340 = DecimalFormat.DOUBLE_FRACTION_DIGITS
-
+        StringBuilder sb = mBuilder;
         sb.setLength(0);
         sb.append(GPX_TAG_TRACK);
 
@@ -210,34 +240,85 @@ public class ExportGPXTask extends AsyncTask<Void, Void, Void> implements Dialog
         }
 
         sb.append(GPX_TAG_TRACK_SEGMENT);
-        FileUtil.writeToFile(temp, sb.toString(), true);
+        flush(writer, sb);
 
+        int done = 0;
         do {
-            sb.setLength(0);
+            if (mIsCanceled)
+                return;
+
             point.setCoordinates(trackpoints.getDouble(lonId), trackpoints.getDouble(latId));
             point.setCRS(CRS_WEB_MERCATOR);
             point.project(CRS_WGS84);
-            String sLon = df.format(point.getX());
-            String sLat = df.format(point.getY());
-            f.format(GPX_TAG_TRACK_SEGMENT_POINT, sLat, sLon);
-            f.format(GPX_TAG_TRACK_SEGMENT_POINT_TIME, getTimeStampAsString(trackpoints.getLong(timeId)));
-            f.format(GPX_TAG_TRACK_SEGMENT_POINT_ELE, df.format(trackpoints.getDouble(eleId)));
-            f.format(GPX_TAG_TRACK_SEGMENT_POINT_SAT, trackpoints.getString(satId));
-            f.format(GPX_TAG_TRACK_SEGMENT_POINT_FIX, trackpoints.getString(fixId));
+
+            sb.append(GPX_TAG_TRACK_SEGMENT_POINT_LAT);
+            appendDouble(sb, point.getY());
+            sb.append(GPX_TAG_TRACK_SEGMENT_POINT_LON);
+            appendDouble(sb, point.getX());
+            sb.append(GPX_TAG_TRACK_SEGMENT_POINT_OPEN_END);
+            sb.append(GPX_TAG_TIME);
+            appendTimeStamp(sb, trackpoints.getLong(timeId));
+            sb.append(GPX_TAG_TIME_CLOSE);
+            sb.append(GPX_TAG_ELE);
+            appendDouble(sb, trackpoints.getDouble(eleId));
+            sb.append(GPX_TAG_ELE_CLOSE);
+            sb.append(GPX_TAG_SAT);
+            sb.append(trackpoints.getInt(satId));
+            sb.append(GPX_TAG_SAT_CLOSE);
+            sb.append(GPX_TAG_FIX);
+            sb.append(trackpoints.getString(fixId));
+            sb.append(GPX_TAG_FIX_CLOSE);
             sb.append(GPX_TAG_TRACK_SEGMENT_POINT_CLOSE);
-            FileUtil.writeToFile(temp, sb.toString(), true);
+
+            if (sb.length() > BUFFER_SIZE)
+                flush(writer, sb);
+
+            if (++done % PROGRESS_STEP == 0)
+                publishProgress(done, total);
         } while (trackpoints.moveToNext());
 
-        sb.setLength(0);
         sb.append(GPX_TAG_TRACK_SEGMENT_CLOSE);
         sb.append(GPX_TAG_TRACK_CLOSE);
-        FileUtil.writeToFile(temp, sb.toString(), true);
+        flush(writer, sb);
+        publishProgress(done, total);
     }
 
-    private String getTimeStampAsString(long nTimeStamp) {
-        final SimpleDateFormat utcFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.getDefault());
-        utcFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return utcFormat.format(new Date(nTimeStamp));
+    private void flush(Writer writer, StringBuilder sb) throws IOException {
+        int length = sb.length();
+        if (mChars.length < length)
+            mChars = new char[length];
+        sb.getChars(0, length, mChars, 0);
+        writer.write(mChars, 0, length);
+        sb.setLength(0);
+    }
+
+    private void appendDouble(StringBuilder sb, double value) {
+        double abs = Math.abs(value);
+        if (abs == 0 || abs >= 1e-3 && abs < 1e7) // no exponent in Double.toString() notation
+            sb.append(value);
+        else
+            sb.append(mDecimalFormat.format(value));
+    }
+
+    private void appendTimeStamp(StringBuilder sb, long timeStamp) {
+        mCalendar.setTimeInMillis(timeStamp);
+        sb.append(mCalendar.get(Calendar.YEAR)).append('-');
+        appendTwoDigits(sb, mCalendar.get(Calendar.MONTH) + 1);
+        sb.append('-');
+        appendTwoDigits(sb, mCalendar.get(Calendar.DAY_OF_MONTH));
+        sb.append('T');
+        appendTwoDigits(sb, mCalendar.get(Calendar.HOUR_OF_DAY));
+        sb.append(':');
+        appendTwoDigits(sb, mCalendar.get(Calendar.MINUTE));
+        sb.append(':');
+        appendTwoDigits(sb, mCalendar.get(Calendar.SECOND));
+        sb.append('Z');
+    }
+
+    private static void appendTwoDigits(StringBuilder sb, int value) {
+        if (value < 10)
+            sb.append('0');
+        sb.append(value);
     }
 
     @Override
@@ -254,10 +335,20 @@ public class ExportGPXTask extends AsyncTask<Void, Void, Void> implements Dialog
     }
 
     @Override
-    protected void onProgressUpdate(Void... values) {
+    protected void onProgressUpdate(Integer... values) {
         super.onProgressUpdate(values);
+        if (values.length == 2) {
+            if (mProgress != null) {
+                mProgress.setIndeterminate(false);
+                mProgress.setMax(values[1]);
+                mProgress.setProgress(values[0]);
+            }
+            return;
+        }
 
         mProgress = new ProgressDialog(mActivity);
+        mProgress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mProgress.setIndeterminate(true);
         mProgress.setTitle(R.string.export);
         mProgress.setMessage(mActivity.getString(R.string.preparing));
         mProgress.setCanceledOnTouchOutside(false);
@@ -21,29 +21,53 @@
 
 package com.nextgis.maplibui.util;
 
+import android.Manifest;
 import android.app.Activity;
 import android.content.Context;
-import android.os.AsyncTask;
+import android.util.Pair;
 import android.widget.Toast;
 
 import com.nextgis.maplib.api.ILayer;
 import com.nextgis.maplib.map.VectorLayer;
 import com.nextgis.maplib.util.MapUtil;
+import com.nextgis.maplib.util.PermissionUtil;
 import com.nextgis.maplibui.R;
 
+import org.json.JSONException;
+
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import static com.nextgis.maplib.util.LayerUtil.normalizeLayerName;
 
+/**
+ * Exports several layers into one zip. Layers are serialized in parallel on a bounded pool, each
+ * into its own zip which is handed over in chunks through a small bounded queue, while this task
+ * streams the layer zips in layer order into the output zip. Every layer gets its own
+ * {@code <layer>.zip} entry with GeoJSON file and attachments, as exported one by one. A layer which
+ * failed after it was partially written is followed by {@code <layer>.zip.error} entry with the
+ * reason, a zip entry can not be taken back.
+ */
 public class ExportGeoJSONBatchTask extends ExportGeoJSONTask {
+    private static final int CHUNK_SIZE = 32 * 1024;
+    private static final int MAX_CHUNKS = 16;
+
     private List<VectorLayer> mLayers;
     private String mName;
 
@@ -56,70 +80,202 @@ public class ExportGeoJSONBatchTask extends ExportGeoJSONTask {
     @Override
     protected Object doInBackground(Void... voids) {
         Context context = null;
-        for (ILayer layer : mLayers)
-            if (layer != null)
+        List<VectorLayer> layers = new ArrayList<>();
+        for (VectorLayer layer : mLayers)
+            if (layer != null) {
                 context = layer.getContext();
+                layers.add(layer);
+            }
 
-        if (context != null) {
-            try {
-                if (mName.trim().isEmpty())
-                    mName = Long.toString(System.currentTimeMillis());
-                File temp = MapUtil.prepareTempDir(context, "shared_layers");
-                String fileName = normalizeLayerName(mName) + ".zip";
-                if (temp == null)
-                    return R.string.error_file_create;
-
-                temp = new File(temp, fileName);
-                temp.createNewFile();
-                FileOutputStream fos = new FileOutputStream(temp, false);
-                ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(fos));
+        if (context == null)
+            return R.string.error_file_create;
+
+        if (!PermissionUtil.hasPermission(context, Manifest.permission.WRITE_EXTERNAL_STORAGE))
+            return R.string.no_permission;
 
+        int threadCount = Math.max(1, Math.min(layers.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService threadPool = Executors.newFixedThreadPool(threadCount);
+        ZipOutputStream zos = null;
+        try {
+            if (mName.trim().isEmpty())
+                mName = Long.toString(System.currentTimeMillis());
+            File temp = MapUtil.prepareTempDir(context, "shared_layers");
+            String fileName = normalizeLayerName(mName) + ".zip";
+            if (temp == null)
+                return R.string.error_file_create;
+
+            temp = new File(temp, fileName);
+            temp.createNewFile();
+            zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp, false)));
+
+            // jobs start in layer order, so the layer being copied is always running or done
+            List<LayerJob> jobs = new ArrayList<>(layers.size());
+            for (VectorLayer layer : layers) {
+                LayerJob job = new LayerJob(layer);
+                job.mResult = threadPool.submit(job);
+                jobs.add(job);
+            }
+
+            byte[] chunk;
+            for (LayerJob job : jobs) {
                 if (mIsCanceled)
                     return R.string.canceled;
 
-                byte[] buffer = new byte[1024];
-                int length;
-
-                for (VectorLayer layer : mLayers) {
-                    try {
-                        ExportGeoJSONTask exportTask = new ExportGeoJSONTask(mActivity, layer, mProceedAttaches, true);
-                        Object result = exportTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR).get();
-
-                        if (result instanceof File) {
-                            FileInputStream fis = new FileInputStream((File) result);
-                            zos.putNextEntry(new ZipEntry(((File) result).getName()));
-
-                            while ((length = fis.read(buffer)) > 0)
-                                zos.write(buffer, 0, length);
-
-                            zos.closeEntry();
-                            fis.close();
-                        } else {
-                            if (result == null)
-                                result = R.string.error_file_create;
-                            publishProgress((int) result);
-                        }
-                    } catch (ExecutionException | InterruptedException ex) {
+                String entry = getFolderName(job.mLayer) + ".zip";
+                zos.putNextEntry(new ZipEntry(entry));
+                while ((chunk = job.mPipe.take()) != ChunkPipe.END && chunk != ChunkPipe.FAILED)
+                    zos.write(chunk);
+                zos.closeEntry();
+
+                try {
+                    int count = job.mResult.get();
+                    if (count < 0)
+                        return R.string.canceled;
+                    if (count == 0)
+                        publishProgress(R.string.no_features);
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    Throwable cause = e.getCause();
+                    zos.putNextEntry(new ZipEntry(entry + ".error"));
+                    zos.write(String.valueOf(cause).getBytes("UTF-8"));
+                    zos.closeEntry();
+
+                    if (cause instanceof JSONException)
+                        publishProgress(R.string.error_export_geojson);
+                    else
                         publishProgress(R.string.sync_error_io);
-                    }
                 }
+            }
 
-                zos.close();
-                fos.close();
+            zos.close();
+            zos = null;
 
-                return temp;
-            } catch (IOException e) {
-                e.printStackTrace();
-                return R.string.error_file_create;
-            }
+            return temp;
+        } catch (InterruptedException e) {
+            return R.string.canceled;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return R.string.error_file_create;
+        } finally {
+            threadPool.shutdownNow();
+            close(zos);
+        }
+    }
+
+    private String getFolderName(ILayer layer) {
+        String name = normalizeLayerName(layer.getName());
+        int same = 0;
+        for (VectorLayer other : mLayers) {
+            if (other == layer)
+                break;
+            if (other != null && normalizeLayerName(other.getName()).equals(name))
+                same++;
         }
-        return R.string.error_file_create;
+        return same == 0 ? name : name + "_" + same;
     }
 
     @Override
     protected void onProgressUpdate(Integer... values) {
-        super.onProgressUpdate(values);
-        Toast.makeText(mActivity, values[0], Toast.LENGTH_SHORT).show();
+        if (values.length > 0)
+            Toast.makeText(mActivity, values[0], Toast.LENGTH_SHORT).show();
     }
 
-}
\ No newline at end of file
+    private class LayerJob implements Callable<Integer> {
+        VectorLayer mLayer;
+        ChunkPipe mPipe = new ChunkPipe();
+        Future<Integer> mResult;
+
+        LayerJob(VectorLayer layer) {
+            mLayer = layer;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            boolean isDone = false;
+            try {
+                List<Pair<File, String>> attaches = new ArrayList<>();
+                ZipOutputStream zip = new ZipOutputStream(mPipe);
+                zip.putNextEntry(new ZipEntry(mLayer.getName() + ".geojson"));
+                int count = writeGeoJSON(mLayer, zip, attaches);
+                zip.closeEntry();
+                if (count >= 0)
+                    writeAttaches(zip, "", attaches);
+                zip.close();
+                isDone = true;
+                return count;
+            } finally {
+                // the task thread waits for the end of the layer whatever happens
+                if (!isDone)
+                    mPipe.fail();
+            }
+        }
+    }
+
+    /**
+     * Bounded handoff of the bytes written by a worker to the task thread. A full queue blocks the
+     * worker, so memory used per layer is limited whatever the layer size is.
+     */
+    private static class ChunkPipe extends OutputStream {
+        static final byte[] END = new byte[0];
+        static final byte[] FAILED = new byte[0];
+
+        private final BlockingQueue<byte[]> mChunks = new ArrayBlockingQueue<>(MAX_CHUNKS);
+        private byte[] mBuffer = new byte[CHUNK_SIZE];
+        private int mCount;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mBuffer.length)
+                putBuffer();
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (mCount == mBuffer.length)
+                    putBuffer();
+
+                int count = Math.min(length, mBuffer.length - mCount);
+                System.arraycopy(data, offset, mBuffer, mCount, count);
+                mCount += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mCount > 0)
+                putBuffer();
+            put(END);
+        }
+
+        void fail() {
+            mChunks.clear(); // the reader stops at the marker anyway
+            try {
+                mChunks.put(FAILED);
+            } catch (InterruptedException ignored) {
+            }
+        }
+
+        byte[] take() throws InterruptedException {
+            return mChunks.take();
+        }
+
+        private void putBuffer() throws IOException {
+            byte[] chunk = mCount == mBuffer.length ? mBuffer : Arrays.copyOf(mBuffer, mCount);
+            put(chunk);
+            mBuffer = new byte[CHUNK_SIZE];
+            mCount = 0;
+        }
+
+        private void put(byte[] chunk) throws IOException {
+            try {
+                mChunks.put(chunk);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -34,6 +34,7 @@ import android.os.Build;
 import android.support.v4.app.ShareCompat;
 import android.support.v4.content.FileProvider;
 import android.text.TextUtils;
+import android.util.Pair;
 import android.widget.Toast;
 
 import com.nextgis.maplib.datasource.Feature;
@@ -51,10 +52,14 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -63,15 +68,10 @@ import static com.nextgis.maplib.util.GeoConstants.FTDate;
 import static com.nextgis.maplib.util.GeoConstants.FTDateTime;
 import static com.nextgis.maplib.util.GeoConstants.FTTime;
 import static com.nextgis.maplib.util.GeoConstants.GEOJSON_ATTACHES;
-import static com.nextgis.maplib.util.GeoConstants.GEOJSON_CRS;
-import static com.nextgis.maplib.util.GeoConstants.GEOJSON_CRS_EPSG_3857;
 import static com.nextgis.maplib.util.GeoConstants.GEOJSON_GEOMETRY;
-import static com.nextgis.maplib.util.GeoConstants.GEOJSON_NAME;
 import static com.nextgis.maplib.util.GeoConstants.GEOJSON_PROPERTIES;
 import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE;
-import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE_FEATURES;
 import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE_Feature;
-import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE_FeatureCollection;
 import static com.nextgis.maplib.util.LayerUtil.normalizeLayerName;
 import static com.nextgis.maplibui.util.LayerUtil.AUTHORITY;
 import static com.nextgis.maplibui.util.LayerUtil.notFound;
@@ -80,7 +80,7 @@ public class ExportGeoJSONTask extends AsyncTask<Void, Integer, Object> {
     Activity mActivity;
     private VectorLayer mLayer;
     private ProgressDialog mProgress;
-    boolean mIsCanceled;
+    volatile boolean mIsCanceled;
     boolean mProceedAttaches;
     private boolean mResultOnly;
 
@@ -113,6 +113,7 @@ public class ExportGeoJSONTask extends AsyncTask<Void, Integer, Object> {
 
     @Override
     protected Object doInBackground(Void... voids) {
+        ZipOutputStream zos = null;
         try {
             if (!PermissionUtil.hasPermission(mLayer.getContext(), Manifest.permission.WRITE_EXTERNAL_STORAGE))
                 return R.string.no_permission;
@@ -124,92 +125,24 @@ public class ExportGeoJSONTask extends AsyncTask<Void, Integer, Object> {
 
             temp = new File(temp, fileName);
             temp.createNewFile();
-            FileOutputStream fos = new FileOutputStream(temp, false);
-            ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(fos));
-
-            JSONObject obj = new JSONObject();
-            JSONArray geoJSONFeatures = new JSONArray();
-            Cursor featuresCursor = mLayer.query(null, null, null, null, null);
+            zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(temp, false)));
 
             if (mIsCanceled)
                 return R.string.canceled;
 
-            JSONObject crs = new JSONObject();
-            crs.put(GEOJSON_TYPE, GEOJSON_NAME);
-            JSONObject crsName = new JSONObject();
-            crsName.put(GEOJSON_NAME, GEOJSON_CRS_EPSG_3857);
-            crs.put(GEOJSON_PROPERTIES, crsName);
-            obj.put(GEOJSON_CRS, crs);
-            obj.put(GEOJSON_TYPE, GEOJSON_TYPE_FeatureCollection);
-
-            Feature feature;
-            byte[] buffer = new byte[1024];
-            int length;
-
-            if (featuresCursor != null && featuresCursor.moveToFirst()) {
-                do {
-                    if (mIsCanceled)
-                        return R.string.canceled;
-
-                    JSONObject featureJSON = new JSONObject();
-                    featureJSON.put(GEOJSON_TYPE, GEOJSON_TYPE_Feature);
-
-                    feature = mLayer.cursorToFeature(featuresCursor);
-                    JSONObject properties = new JSONObject();
-                    properties.put(Constants.FIELD_ID, feature.getId());
-                    for (Field field : feature.getFields()) {
-                        Object value = feature.getFieldValue(field.getName());
-                        if (value != null) {
-                            if (field.getType() == FTDateTime || field.getType() == FTDate || field.getType() == FTTime)
-                                value = GeoJSONUtil.formatDateTime((Long) value, field.getType());
-                        }
-
-                        boolean isNaN = value instanceof Double && ((Double) value).isNaN();
-                        properties.put(field.getName(), value == null || isNaN ? JSONObject.NULL : value);
-                    }
-
-                    if (mProceedAttaches) {
-                        File attachFile, featureDir = new File(mLayer.getPath(), feature.getId() + "");
-                        JSONArray attaches = new JSONArray();
-                        for (Map.Entry<String, AttachItem> attach : feature.getAttachments().entrySet()) {
-                            attachFile = new File(featureDir, attach.getKey());
-                            String displayName = attach.getValue().getDisplayName();
-                            if (TextUtils.isEmpty(displayName))
-                                displayName = attach.getKey();
-                            attaches.put(displayName);
-
-                            if (attachFile.exists()) {
-                                FileInputStream fis = new FileInputStream(attachFile);
-                                zos.putNextEntry(new ZipEntry(feature.getId() + "/" + displayName));
-
-                                while ((length = fis.read(buffer)) > 0)
-                                    zos.write(buffer, 0, length);
-
-                                zos.closeEntry();
-                                fis.close();
-                            }
-                        }
-                        properties.put(GEOJSON_ATTACHES, attaches);
-                    }
-
-                    featureJSON.put(GEOJSON_PROPERTIES, properties);
-                    featureJSON.put(GEOJSON_GEOMETRY, feature.getGeometry().toJSON());
-                    geoJSONFeatures.put(featureJSON);
-                } while (featuresCursor.moveToNext());
+            List<Pair<File, String>> attaches = new ArrayList<>();
+            zos.putNextEntry(new ZipEntry(mLayer.getName() + ".geojson"));
+            int count = writeGeoJSON(mLayer, zos, attaches);
+            zos.closeEntry();
 
-                featuresCursor.close();
-            } else {
+            if (count < 0)
+                return R.string.canceled;
+            if (count == 0)
                 publishProgress();
-            }
-
-            obj.put(GEOJSON_TYPE_FEATURES, geoJSONFeatures);
 
-            buffer = obj.toString().getBytes();
-            zos.putNextEntry(new ZipEntry(mLayer.getName() + ".geojson"));
-            zos.write(buffer);
-            zos.closeEntry();
+            writeAttaches(zos, "", attaches);
             zos.close();
-            fos.close();
+            zos = null;
 
             return temp;
         } catch (JSONException e) {
@@ -218,6 +151,111 @@ public class ExportGeoJSONTask extends AsyncTask<Void, Integer, Object> {
         } catch (IOException e) {
             e.printStackTrace();
             return R.string.error_file_create;
+        } finally {
+            close(zos);
+        }
+    }
+
+    static void close(Closeable closeable) {
+        if (closeable == null)
+            return;
+
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Write layer features to the output as GeoJSON FeatureCollection. Features are serialized one
+     * by one straight from the query cursor, so memory usage does not depend on the layer size.
+     * The output is flushed but not closed.
+     *
+     * @param layer    Layer to export
+     * @param out      Output stream, i.e. opened zip entry
+     * @param attaches List to collect attachment files and their entry names to, may be null
+     * @return Number of features written or -1 if the task was canceled
+     */
+    int writeGeoJSON(VectorLayer layer, OutputStream out, List<Pair<File, String>> attaches)
+            throws IOException, JSONException {
+        FeatureCollectionWriter writer = new FeatureCollectionWriter(out);
+        Cursor featuresCursor = layer.query(null, null, null, null, null);
+        try {
+            if (featuresCursor != null && featuresCursor.moveToFirst()) {
+                do {
+                    if (mIsCanceled)
+                        return -1;
+
+                    Feature feature = layer.cursorToFeature(featuresCursor);
+                    writer.write(featureToJSON(layer, feature, attaches));
+                } while (featuresCursor.moveToNext());
+            }
+        } finally {
+            if (featuresCursor != null)
+                featuresCursor.close();
+        }
+
+        return writer.finish();
+    }
+
+    private JSONObject featureToJSON(VectorLayer layer, Feature feature, List<Pair<File, String>> attaches)
+            throws JSONException {
+        JSONObject featureJSON = new JSONObject();
+        featureJSON.put(GEOJSON_TYPE, GEOJSON_TYPE_Feature);
+
+        JSONObject properties = new JSONObject();
+        properties.put(Constants.FIELD_ID, feature.getId());
+        for (Field field : feature.getFields()) {
+            Object value = feature.getFieldValue(field.getName());
+            if (value != null) {
+                if (field.getType() == FTDateTime || field.getType() == FTDate || field.getType() == FTTime)
+                    value = GeoJSONUtil.formatDateTime((Long) value, field.getType());
+            }
+
+            boolean isNaN = value instanceof Double && ((Double) value).isNaN();
+            properties.put(field.getName(), value == null || isNaN ? JSONObject.NULL : value);
+        }
+
+        if (mProceedAttaches) {
+            File attachFile, featureDir = new File(layer.getPath(), feature.getId() + "");
+            JSONArray attachNames = new JSONArray();
+            for (Map.Entry<String, AttachItem> attach : feature.getAttachments().entrySet()) {
+                attachFile = new File(featureDir, attach.getKey());
+                String displayName = attach.getValue().getDisplayName();
+                if (TextUtils.isEmpty(displayName))
+                    displayName = attach.getKey();
+                attachNames.put(displayName);
+
+                if (attaches != null && attachFile.exists())
+                    attaches.add(new Pair<>(attachFile, feature.getId() + "/" + displayName));
+            }
+            properties.put(GEOJSON_ATTACHES, attachNames);
+        }
+
+        featureJSON.put(GEOJSON_PROPERTIES, properties);
+        featureJSON.put(GEOJSON_GEOMETRY, feature.getGeometry().toJSON());
+        return featureJSON;
+    }
+
+    void writeAttaches(ZipOutputStream zos, String prefix, List<Pair<File, String>> attaches)
+            throws IOException {
+        byte[] buffer = new byte[8192];
+        int length;
+
+        for (Pair<File, String> attach : attaches) {
+            if (mIsCanceled)
+                return;
+
+            FileInputStream fis = new FileInputStream(attach.first);
+            try {
+                zos.putNextEntry(new ZipEntry(prefix + attach.second));
+                while ((length = fis.read(buffer)) > 0)
+                    zos.write(buffer, 0, length);
+                zos.closeEntry();
+            } finally {
+                fis.close();
+            }
         }
     }
 
@@ -0,0 +1,76 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_CRS;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_CRS_EPSG_3857;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_NAME;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_PROPERTIES;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE_FEATURES;
+import static com.nextgis.maplib.util.GeoConstants.GEOJSON_TYPE_FeatureCollection;
+
+/**
+ * Writes GeoJSON FeatureCollection in EPSG:3857 feature by feature. The header is written on
+ * creation, the footer on {@link #finish()}, the output is flushed but not closed.
+ */
+class FeatureCollectionWriter {
+    private final Writer mWriter;
+    private int mCount;
+
+    FeatureCollectionWriter(OutputStream out) throws IOException, JSONException {
+        mWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        JSONObject crs = new JSONObject();
+        crs.put(GEOJSON_TYPE, GEOJSON_NAME);
+        JSONObject crsName = new JSONObject();
+        crsName.put(GEOJSON_NAME, GEOJSON_CRS_EPSG_3857);
+        crs.put(GEOJSON_PROPERTIES, crsName);
+
+        mWriter.write("{\"" + GEOJSON_TYPE + "\":" + JSONObject.quote(GEOJSON_TYPE_FeatureCollection));
+        mWriter.write(",\"" + GEOJSON_CRS + "\":" + crs.toString());
+        mWriter.write(",\"" + GEOJSON_TYPE_FEATURES + "\":[");
+    }
+
+    void write(JSONObject feature) throws IOException {
+        if (mCount > 0)
+            mWriter.write(',');
+        mWriter.write(feature.toString());
+        mCount++;
+    }
+
+    /**
+     * @return Number of features written
+     */
+    int finish() throws IOException {
+        mWriter.write("]}");
+        mWriter.flush();
+        return mCount;
+    }
+}
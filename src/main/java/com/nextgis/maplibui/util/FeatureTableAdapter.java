@@ -0,0 +1,298 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import com.inqbarna.tablefixheaders.adapters.BaseTableAdapter;
+import com.nextgis.maplib.datasource.Feature;
+import com.nextgis.maplib.datasource.Field;
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplibui.R;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.v4.util.LongSparseArray;
+import android.support.v4.util.LruCache;
+import android.util.SparseArray;
+import android.util.TypedValue;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import java.util.List;
+
+import static com.nextgis.maplib.util.Constants.FIELD_ID;
+
+/**
+ * Attribute table adapter which reads features on demand. Feature ids are loaded by pages of
+ * {@link #PAGE_SIZE} rows sorted in SQL, feature values are loaded for visible rows only and
+ * cached by feature id together with measured row heights.
+ */
+public class FeatureTableAdapter extends BaseTableAdapter {
+	public final static int PAGE_SIZE = 100;
+
+	private final static int WIDTH_DIP = 110;
+	private final static int HEIGHT_DIP = 32;
+	private final static int MAX_PAGES = 8;
+	private final static int MAX_ROWS = 512;
+
+	private final Context context;
+	private final VectorLayer layer;
+	private final List<Field> fields;
+	private final String[] header;
+	private final int width;
+	private final int height;
+	private final int headerHeight;
+	private final TextView measureView;
+	private final Handler handler;
+
+	private View.OnClickListener mListener;
+	private View.OnClickListener mHeaderListener;
+	private int rowCount;
+	private String sortOrder;
+	private boolean isRelayoutPosted;
+	private boolean isCacheErrorShown;
+
+	// page number to feature ids, rows to values and measured heights by feature id
+	private final SparseArray<long[]> pages;
+	private final LruCache<Long, String[]> rows;
+	private final LongSparseArray<Integer> heights;
+
+	public FeatureTableAdapter(Context context, @NonNull VectorLayer layer) {
+		this.context = context;
+		this.layer = layer;
+		Resources r = context.getResources();
+
+		width = Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, WIDTH_DIP, r.getDisplayMetrics()));
+		height = Math.round(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, HEIGHT_DIP, r.getDisplayMetrics()));
+
+		measureView = new TextView(context);
+		MatrixTableAdapter.setPadding(context, measureView);
+		measureView.setTextSize(TypedValue.COMPLEX_UNIT_SP, 14);
+		handler = new Handler(Looper.getMainLooper());
+
+		fields = layer.getFields();
+		header = new String[fields.size() + 1];
+		header[0] = FIELD_ID;
+		for (int i = 0; i < fields.size(); i++)
+			header[i + 1] = fields.get(i).getAlias();
+		headerHeight = measureRow(header);
+
+		pages = new SparseArray<>();
+		rows = new LruCache<>(MAX_ROWS);
+		heights = new LongSparseArray<>();
+		rowCount = layer.getCount();
+	}
+
+	public void setOnClickListener(@NonNull View.OnClickListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Header click listener, header view tag {@link R.id#text1} is the column name
+	 */
+	public void setOnHeaderClickListener(@NonNull View.OnClickListener listener) {
+		mHeaderListener = listener;
+	}
+
+	/**
+	 * Sort rows by column in SQL, loaded values and row heights are kept
+	 *
+	 * @param column    field name or null for the default order
+	 * @param ascending sort direction
+	 */
+	public void setSortOrder(String column, boolean ascending) {
+		sortOrder = column == null ? null : column + (ascending ? " ASC" : " DESC");
+		pages.clear();
+		notifyDataSetChanged();
+	}
+
+	/**
+	 * Reload row count and id pages after a feature was deleted, values of other rows stay cached.
+	 * Delete notifications come from all layers, so nothing is derived from the deleted id.
+	 */
+	public void onFeatureDeleted() {
+		rowCount = layer.getCount();
+		pages.clear();
+		notifyDataSetChanged();
+	}
+
+	@Override
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public int getColumnCount() {
+		return header.length - 1;
+	}
+
+	@Override
+	public View getView(int row, int column, View convertView, ViewGroup parent) {
+		if (convertView == null) {
+			convertView = new TextView(context);
+			MatrixTableAdapter.setPadding(context, (TextView) convertView);
+		}
+
+		String text = "";
+		if (row < 0) {
+			convertView.setOnClickListener(mHeaderListener);
+			convertView.setTag(R.id.text1, column < 0 ? FIELD_ID : fields.get(column).getName());
+			text = header[column + 1];
+		} else {
+			convertView.setOnClickListener(mListener);
+			long id = getId(row);
+			String[] values = id == -1 ? null : getValues(id);
+			convertView.setTag(R.id.text1, id == -1 ? null : Long.toString(id));
+			if (values != null)
+				text = values[column + 1];
+		}
+
+		((TextView) convertView).setText(text);
+		return convertView;
+	}
+
+	@Override
+	public int getHeight(int row) {
+		if (row < 0)
+			return headerHeight;
+
+		// table asks heights of all rows on layout, unknown rows get the default one
+		long[] page = pages.get(row / PAGE_SIZE);
+		if (page == null || row % PAGE_SIZE >= page.length)
+			return height;
+
+		Integer measured = heights.get(page[row % PAGE_SIZE]);
+		return measured == null ? height : measured;
+	}
+
+	@Override
+	public int getWidth(int column) {
+		return width;
+	}
+
+	@Override
+	public int getItemViewType(int row, int column) {
+		return 0;
+	}
+
+	@Override
+	public int getViewTypeCount() {
+		return 1;
+	}
+
+	private long getId(int row) {
+		int number = row / PAGE_SIZE;
+		long[] page = pages.get(number);
+		if (page == null) {
+			page = loadPage(number);
+			if (pages.size() >= MAX_PAGES)
+				pages.clear();
+			pages.put(number, page);
+		}
+
+		int index = row % PAGE_SIZE;
+		return index < page.length ? page[index] : -1;
+	}
+
+	private long[] loadPage(int number) {
+		String[] projection = new String[]{FIELD_ID};
+		String limit = number * PAGE_SIZE + "," + PAGE_SIZE;
+		String order = sortOrder == null ? FIELD_ID + " ASC" : sortOrder + ", " + FIELD_ID + " ASC";
+		long[] page = new long[0];
+
+		try {
+			Cursor cursor = layer.query(projection, null, null, order, limit);
+			if (cursor != null) {
+				page = new long[cursor.getCount()];
+				int i = 0;
+				while (cursor.moveToNext())
+					page[i++] = cursor.getLong(0);
+				cursor.close();
+			}
+		} catch (SQLiteException e) {
+			e.printStackTrace();
+		}
+
+		return page;
+	}
+
+	private String[] getValues(long id) {
+		String[] values = rows.get(id);
+		if (values != null)
+			return values;
+
+		Feature feature = layer.getFeature(id);
+		values = new String[header.length];
+		values[0] = Long.toString(id);
+		if (feature != null)
+			for (int i = 0; i < fields.size(); i++)
+				values[i + 1] = feature.getFieldValueAsString(fields.get(i).getName());
+		else if (!isCacheErrorShown) {
+			isCacheErrorShown = true;
+			Toast.makeText(context, R.string.error_cache, Toast.LENGTH_LONG).show();
+		}
+
+		rows.put(id, values);
+
+		int measured = measureRow(values);
+		if (measured != height) {
+			heights.put(id, measured);
+			postRelayout();
+		}
+
+		return values;
+	}
+
+	private int measureRow(String[] values) {
+		int widthMeasureSpec = View.MeasureSpec.makeMeasureSpec(width, View.MeasureSpec.AT_MOST);
+		int heightMeasureSpec = View.MeasureSpec.makeMeasureSpec(0, View.MeasureSpec.UNSPECIFIED);
+
+		int max = height;
+		for (String value : values) {
+			measureView.setText(value);
+			measureView.measure(widthMeasureSpec, heightMeasureSpec);
+			max = Math.max(measureView.getMeasuredHeight(), max);
+		}
+
+		return max;
+	}
+
+	// apply new row heights once for all rows measured during a layout pass
+	private void postRelayout() {
+		if (isRelayoutPosted)
+			return;
+
+		isRelayoutPosted = true;
+		handler.post(new Runnable() {
+			@Override
+			public void run() {
+				isRelayoutPosted = false;
+				notifyDataSetChanged();
+			}
+		});
+	}
+}
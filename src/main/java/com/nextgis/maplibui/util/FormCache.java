@@ -0,0 +1,86 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.support.v4.util.LruCache;
+
+import com.nextgis.maplib.util.FileUtil;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Process-wide cache of parsed form and form meta files. Entries are keyed by file path and are
+ * parsed again when the file modification time or size changes. Returned JSON objects are shared,
+ * copy an element before changing it.
+ */
+public final class FormCache {
+    private static final int MAX_FILES = 16;
+
+    private static final LruCache<String, Entry> mCache = new LruCache<>(MAX_FILES);
+
+    private FormCache() {
+    }
+
+    private static final class Entry {
+        final long mModified, mLength;
+        final Object mJson;
+
+        Entry(long modified, long length, Object json) {
+            mModified = modified;
+            mLength = length;
+            mJson = json;
+        }
+
+        boolean isValid(File file) {
+            return mModified == file.lastModified() && mLength == file.length();
+        }
+    }
+
+    /**
+     * Get parsed JSON file content
+     *
+     * @param file form or meta file
+     * @return JSONObject or JSONArray
+     */
+    public static Object get(File file) throws IOException, JSONException {
+        String key = file.getAbsolutePath();
+        Entry entry = mCache.get(key);
+        if (entry != null && entry.isValid(file))
+            return entry.mJson;
+
+        // take file stats before reading, so a concurrent write makes the entry stale
+        long modified = file.lastModified(), length = file.length();
+        Object json = new JSONTokener(FileUtil.readFromFile(file)).nextValue();
+        mCache.put(key, new Entry(modified, length, json));
+        return json;
+    }
+
+    /**
+     * Drop cached content, should be called after the file was written by the app itself
+     */
+    public static void invalidate(File file) {
+        mCache.remove(file.getAbsolutePath());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.support.v4.util.LruCache;
+
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryFactory;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * Hands geometries over between activities and services by token. Geometries are kept in memory
+ * and spilled to a file in the cache directory as {@link GeoGeometry#toBlob()} data, so they
+ * survive process restarts. Intents
+ * carry the token only, which keeps large polygons away from the Binder transaction limit.
+ */
+public final class GeometryStore {
+    private static final String DIR = "geometry";
+    private static final String EXT = ".blob";
+    private static final int MAX_GEOMETRIES = 8;
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000;
+
+    private static final LruCache<String, GeoGeometry> mGeometries = new LruCache<>(MAX_GEOMETRIES);
+
+    private GeometryStore() {
+    }
+
+    /**
+     * Store geometry with a new token
+     *
+     * @return token of the geometry
+     */
+    public static String put(Context context, GeoGeometry geometry) {
+        String token = UUID.randomUUID().toString();
+        pruneOld(context);
+        put(context, token, geometry);
+        return token;
+    }
+
+    /**
+     * Store or replace geometry with the token. The geometry is kept by reference, do not change
+     * it after storing without storing it again. If the file can not be written, the geometry is
+     * still available by the token until the process dies.
+     */
+    public static void put(Context context, String token, GeoGeometry geometry) {
+        mGeometries.put(token, geometry);
+
+        File file = getFile(context, token);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            byte[] data = geometry.toBlob();
+            FileOutputStream output = new FileOutputStream(temp);
+            try {
+                output.write(data);
+            } finally {
+                output.close();
+            }
+
+            if (!temp.renameTo(file))
+                throw new IOException("Can not rename " + temp);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+
+    /**
+     * @return copy of the stored geometry or null if there is no geometry with the token
+     */
+    public static GeoGeometry get(Context context, String token) {
+        if (token == null)
+            return null;
+
+        GeoGeometry geometry = mGeometries.get(token);
+        if (geometry == null) {
+            geometry = read(getFile(context, token));
+            if (geometry != null)
+                mGeometries.put(token, geometry);
+        }
+
+        return geometry == null ? null : geometry.copy();
+    }
+
+    public static void remove(Context context, String token) {
+        if (token == null)
+            return;
+
+        mGeometries.remove(token);
+        getFile(context, token).delete();
+    }
+
+    /**
+     * Store geometry and put its token to the intent
+     */
+    public static void putExtra(Context context, Intent intent, String key, GeoGeometry geometry) {
+        intent.putExtra(key, put(context, geometry));
+    }
+
+    /**
+     * Get geometry from extras by token. Geometries put as Serializable are also accepted.
+     */
+    public static GeoGeometry getExtra(Context context, Bundle extras, String key) {
+        if (extras == null)
+            return null;
+
+        Serializable value = extras.getSerializable(key);
+        if (value instanceof GeoGeometry)
+            return (GeoGeometry) value;
+
+        return value instanceof String ? get(context, (String) value) : null;
+    }
+
+    private static GeoGeometry read(File file) {
+        if (!file.exists())
+            return null;
+
+        try {
+            DataInputStream input = new DataInputStream(new FileInputStream(file));
+            try {
+                byte[] data = new byte[(int) file.length()];
+                input.readFully(data);
+                return GeoGeometryFactory.fromBlob(data);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static File getFile(Context context, String token) {
+        File dir = new File(context.getCacheDir(), DIR);
+        if (!dir.isDirectory())
+            dir.mkdirs();
+
+        return new File(dir, token + EXT);
+    }
+
+    // tokens of finished hand-offs may be left behind by killed processes
+    private static void pruneOld(Context context) {
+        File[] files = new File(context.getCacheDir(), DIR).listFiles();
+        if (files == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        for (File file : files)
+            if (now - file.lastModified() > MAX_AGE)
+                file.delete();
+    }
+}
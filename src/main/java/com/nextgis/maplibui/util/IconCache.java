@@ -0,0 +1,192 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+
+import com.nextgis.maplib.util.NetworkUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Two-level cache for small remote icons: a size-bounded in-memory LRU of decoded bitmaps in
+ * front of a disk directory. Icons are read from disk or downloaded and decoded on a small thread
+ * pool, downloaded bytes are stored as is. Concurrent requests for the same icon are merged.
+ */
+public final class IconCache {
+    private static final int MAX_MEMORY_SIZE = 2 * 1024 * 1024;
+    private static final int THREADS_COUNT = 3;
+    private static final int BUFFER_SIZE = 8192;
+
+    private static IconCache mInstance;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final Map<String, List<OnIconLoaded>> mPending;
+    private final Set<String> mMissing;
+    private final ExecutorService mExecutor;
+    private final Handler mHandler;
+
+    public interface OnIconLoaded {
+        void onIconLoaded(String key, Bitmap icon);
+    }
+
+    public static synchronized IconCache getInstance() {
+        if (mInstance == null)
+            mInstance = new IconCache();
+
+        return mInstance;
+    }
+
+    private IconCache() {
+        int size = (int) Math.min(MAX_MEMORY_SIZE, Runtime.getRuntime().maxMemory() / 32);
+        mMemoryCache = new LruCache<String, Bitmap>(size) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return value.getRowBytes() * value.getHeight();
+            }
+        };
+        mPending = new HashMap<>();
+        mMissing = new HashSet<>();
+        mExecutor = Executors.newFixedThreadPool(THREADS_COUNT);
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    /**
+     * @return decoded icon if it is in memory, null otherwise
+     */
+    public Bitmap get(String key) {
+        return mMemoryCache.get(key);
+    }
+
+    /**
+     * Load icon from disk cache or from url if it is not cached yet. Listener is called on the
+     * main thread, icon is null if it could not be loaded.
+     *
+     * @param file disk cache file of the icon, it's path is used as memory cache key
+     * @param url  icon url
+     */
+    public void load(final File file, final String url, OnIconLoaded listener) {
+        final String key = file.getPath();
+        Bitmap icon = get(key);
+        if (icon != null) {
+            listener.onIconLoaded(key, icon);
+            return;
+        }
+
+        synchronized (mPending) {
+            // do not request failed icons again during this session
+            if (mMissing.contains(key)) {
+                listener.onIconLoaded(key, null);
+                return;
+            }
+
+            List<OnIconLoaded> listeners = mPending.get(key);
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+
+            listeners = new ArrayList<>();
+            listeners.add(listener);
+            mPending.put(key, listeners);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!file.exists())
+                    download(url, file);
+
+                Bitmap icon = BitmapFactory.decodeFile(key);
+                if (icon != null)
+                    mMemoryCache.put(key, icon);
+
+                deliver(key, icon);
+            }
+        });
+    }
+
+    private void deliver(final String key, final Bitmap icon) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                List<OnIconLoaded> listeners;
+                synchronized (mPending) {
+                    listeners = mPending.remove(key);
+                    if (icon == null)
+                        mMissing.add(key);
+                }
+
+                if (listeners != null)
+                    for (OnIconLoaded listener : listeners)
+                        listener.onIconLoaded(key, icon);
+            }
+        });
+    }
+
+    private static void download(String url, File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        HttpURLConnection connection = null;
+        try {
+            connection = NetworkUtil.getHttpConnection("GET", url, null, null);
+            if (connection == null || connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+                return;
+
+            InputStream input = connection.getInputStream();
+            OutputStream output = new FileOutputStream(temp);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            try {
+                while ((read = input.read(buffer)) != -1)
+                    output.write(buffer, 0, read);
+            } finally {
+                output.close();
+                input.close();
+            }
+
+            if (!temp.renameTo(file))
+                temp.delete();
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        } finally {
+            if (connection != null)
+                connection.disconnect();
+        }
+    }
+}
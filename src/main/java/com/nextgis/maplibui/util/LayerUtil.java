@@ -108,7 +108,7 @@ public final class LayerUtil {
         intent.putExtra(KEY_FEATURE_ID, featureId);
         intent.putExtra(KEY_GEOMETRY_CHANGED, isGeometryChanged);
         if (null != geometry)
-            intent.putExtra(KEY_GEOMETRY, geometry);
+            GeometryStore.putExtra(context, intent, KEY_GEOMETRY, geometry);
 
         ((Activity) context).startActivityForResult(intent, IVectorLayerUI.MODIFY_REQUEST);
     }
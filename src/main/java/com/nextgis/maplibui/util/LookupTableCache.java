@@ -0,0 +1,194 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.map.MapBase;
+import com.nextgis.maplib.map.NGWLookupTable;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static com.nextgis.maplib.util.Constants.CONFIG;
+
+/**
+ * Process-wide cache of NGW lookup tables used by form controls. Dictionaries are keyed by
+ * account and remote id, remember the id of the map layer they were read from and are reloaded
+ * when that layer's config file changes, i.e. when the table was synced.
+ */
+public final class LookupTableCache {
+    private static final Map<String, Dictionary> mDictionaries = new HashMap<>();
+
+    private LookupTableCache() {
+    }
+
+    /**
+     * Read-only lookup dictionary
+     */
+    public static final class Dictionary {
+        private final int mLayerId;
+        private final long mVersion;
+        private final List<String> mKeys, mAliases;
+        private final Map<String, String> mAliasToKey;
+        private final Map<String, Integer> mKeyIndex;
+        private final String[] mSortedAliases;
+        private final String[] mSortedLowerAliases;
+
+        private Dictionary(NGWLookupTable table, long version) {
+            mLayerId = table.getId();
+            mVersion = version;
+
+            Map<String, String> data = table.getData();
+            List<String> keys = new ArrayList<>(data.size());
+            List<String> aliases = new ArrayList<>(data.size());
+            Map<String, String> aliasToKey = new HashMap<>(data.size());
+            Map<String, Integer> keyIndex = new HashMap<>(data.size());
+            for (Map.Entry<String, String> entry : data.entrySet()) {
+                keyIndex.put(entry.getKey(), keys.size());
+                keys.add(entry.getKey());
+                aliases.add(entry.getValue());
+                aliasToKey.put(entry.getValue(), entry.getKey());
+            }
+
+            mKeys = Collections.unmodifiableList(keys);
+            mAliases = Collections.unmodifiableList(aliases);
+            mAliasToKey = Collections.unmodifiableMap(aliasToKey);
+            mKeyIndex = keyIndex;
+
+            final String[] lower = new String[aliases.size()];
+            Integer[] order = new Integer[lower.length];
+            for (int i = 0; i < lower.length; i++) {
+                lower[i] = aliases.get(i).toLowerCase(Locale.getDefault());
+                order[i] = i;
+            }
+
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return lower[lhs].compareTo(lower[rhs]);
+                }
+            });
+
+            mSortedAliases = new String[lower.length];
+            mSortedLowerAliases = new String[lower.length];
+            for (int i = 0; i < lower.length; i++) {
+                mSortedLowerAliases[i] = lower[order[i]];
+                mSortedAliases[i] = aliases.get(order[i]);
+            }
+        }
+
+        /**
+         * @return keys in the table order
+         */
+        public List<String> getKeys() {
+            return mKeys;
+        }
+
+        /**
+         * @return aliases in the table order
+         */
+        public List<String> getAliases() {
+            return mAliases;
+        }
+
+        public Map<String, String> getAliasToKeyMap() {
+            return mAliasToKey;
+        }
+
+        /**
+         * @return position of the key in the table order or -1
+         */
+        public int indexOfKey(String key) {
+            Integer index = key == null ? null : mKeyIndex.get(key);
+            return index == null ? -1 : index;
+        }
+
+        /**
+         * Case insensitive prefix search
+         *
+         * @return aliases starting with prefix sorted alphabetically
+         */
+        public List<String> findByPrefix(String prefix) {
+            String lower = prefix.toLowerCase(Locale.getDefault());
+            int start = Arrays.binarySearch(mSortedLowerAliases, lower);
+            if (start < 0)
+                start = -start - 1;
+            else
+                while (start > 0 && mSortedLowerAliases[start - 1].equals(lower))
+                    start--;
+
+            List<String> result = new ArrayList<>();
+            for (int i = start; i < mSortedLowerAliases.length && mSortedLowerAliases[i].startsWith(lower); i++)
+                result.add(mSortedAliases[i]);
+
+            return result;
+        }
+    }
+
+    /**
+     * Get lookup table dictionary from the map
+     *
+     * @param account  NGW account name
+     * @param remoteId NGW resource id of the lookup table
+     * @return dictionary or null if there is no such table in the map
+     */
+    public static Dictionary get(MapBase map, String account, long remoteId) {
+        String key = account + "/" + remoteId;
+        synchronized (mDictionaries) {
+            Dictionary dictionary = mDictionaries.get(key);
+            if (dictionary != null) {
+                ILayer layer = map.getLayerById(dictionary.mLayerId);
+                if (layer instanceof NGWLookupTable && ((NGWLookupTable) layer).getRemoteId() == remoteId
+                        && getVersion(layer) == dictionary.mVersion)
+                    return dictionary;
+
+                mDictionaries.remove(key);
+            }
+
+            for (int i = 0; i < map.getLayerCount(); i++) {
+                if (map.getLayer(i) instanceof NGWLookupTable) {
+                    NGWLookupTable table = (NGWLookupTable) map.getLayer(i);
+                    if (table.getRemoteId() != remoteId || !table.getAccountName().equals(account))
+                        continue;
+
+                    dictionary = new Dictionary(table, getVersion(table));
+                    mDictionaries.put(key, dictionary);
+                    return dictionary;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    // table data is saved to the layer config on sync
+    private static long getVersion(ILayer layer) {
+        File config = new File(layer.getPath(), CONFIG);
+        return config.lastModified() ^ config.length() << 32;
+    }
+}
@@ -82,7 +82,7 @@ public class MatrixTableAdapter<T> extends BaseTableAdapter {
 		return table[0].length - 1;
 	}
 
-	private static void setPadding(Context context, TextView view) {
+	static void setPadding(Context context, TextView view) {
 		int padding = ControlHelper.dpToPx(2, context.getResources());
 		view.setPadding(padding, padding, padding, padding);
 		view.setGravity(Gravity.CENTER_VERTICAL);
@@ -0,0 +1,171 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Append-only binary journal of a line or ring being collected point by point. The file starts
+ * with the geometry type followed by projected x, y pairs, so each new point costs 16 bytes
+ * regardless of the geometry size. A record cut by a process kill is dropped on reading.
+ */
+public class PointJournal {
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_SIZE = 16;
+
+    private final File mFile;
+    private DataOutputStream mOutput;
+
+    public PointJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Rewrite the journal with the initial geometry and keep it open for appending
+     */
+    public void start(GeoGeometry geometry) throws IOException {
+        close();
+        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, false)));
+        mOutput.writeInt(geometry.getType());
+        for (GeoPoint point : getPoints(geometry))
+            write(point);
+        mOutput.flush();
+    }
+
+    /**
+     * Open existing journal for appending, a cut last record is dropped
+     */
+    public void open() throws IOException {
+        close();
+
+        long length = mFile.length();
+        long aligned = HEADER_SIZE + (length - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+        if (length > HEADER_SIZE && aligned != length) {
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(aligned);
+            } finally {
+                file.close();
+            }
+        }
+
+        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+    }
+
+    public void append(GeoPoint point) throws IOException {
+        if (mOutput == null)
+            open();
+
+        write(point);
+        mOutput.flush();
+    }
+
+    private void write(GeoPoint point) throws IOException {
+        mOutput.writeDouble(point.getX());
+        mOutput.writeDouble(point.getY());
+    }
+
+    /**
+     * @return geometry restored from the journal or null if there is no journal
+     */
+    public GeoGeometry read() throws IOException {
+        if (!mFile.exists() || mFile.length() < HEADER_SIZE)
+            return null;
+
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            GeoLineString line = null;
+            GeoLinearRing ring = null;
+            switch (input.readInt()) {
+                case GeoConstants.GTLineString:
+                    line = new GeoLineString();
+                    break;
+                case GeoConstants.GTLinearRing:
+                    ring = new GeoLinearRing();
+                    break;
+                default:
+                    return null;
+            }
+
+            long count = (mFile.length() - HEADER_SIZE) / RECORD_SIZE;
+            for (long i = 0; i < count; i++) {
+                GeoPoint point = new GeoPoint(input.readDouble(), input.readDouble());
+                point.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+                if (line != null)
+                    line.add(point);
+                else
+                    ring.add(point);
+            }
+
+            GeoGeometry geometry = line != null ? line : ring;
+            geometry.setCRS(GeoConstants.CRS_WEB_MERCATOR);
+            return geometry;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static List<GeoPoint> getPoints(GeoGeometry geometry) {
+        switch (geometry.getType()) {
+            case GeoConstants.GTLineString:
+                return ((GeoLineString) geometry).getPoints();
+            case GeoConstants.GTLinearRing:
+                return ((GeoLinearRing) geometry).getPoints();
+            default:
+                throw new UnsupportedOperationException("Unsupported geometry type");
+        }
+    }
+
+    public void close() {
+        if (mOutput == null)
+            return;
+
+        try {
+            mOutput.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mOutput = null;
+    }
+
+    public void delete() {
+        close();
+        mFile.delete();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import com.nextgis.maplib.datasource.GeoPoint;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Length and area of a ruler line kept up to date incrementally. Vertices, segment lengths and
+ * shoelace terms are stored in primitive arrays with running totals, so adding or moving a vertex
+ * recomputes only the segments next to it. Values are in map units, the same as
+ * {@link com.nextgis.maplib.datasource.GeoLineString#getLength()} and
+ * {@link com.nextgis.maplib.datasource.GeoPolygon#getArea()} return.
+ */
+public class RulerMeasurement {
+    private static final int INITIAL_CAPACITY = 16;
+
+    // segment i goes from vertex i to vertex i + 1
+    private double[] mX, mY, mSegments, mCross;
+    private double mLength, mCrossSum;
+    private int mSize;
+
+    public RulerMeasurement() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        mX = new double[capacity];
+        mY = new double[capacity];
+        mSegments = new double[capacity];
+        mCross = new double[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mX.length)
+            return;
+
+        int size = Math.max(capacity, mX.length * 2);
+        mX = Arrays.copyOf(mX, size);
+        mY = Arrays.copyOf(mY, size);
+        mSegments = Arrays.copyOf(mSegments, size);
+        mCross = Arrays.copyOf(mCross, size);
+    }
+
+    public void clear() {
+        mSize = 0;
+        mLength = 0;
+        mCrossSum = 0;
+    }
+
+    public void setPoints(List<GeoPoint> points) {
+        clear();
+        ensureCapacity(points.size());
+        for (GeoPoint point : points)
+            add(point.getX(), point.getY());
+    }
+
+    public void add(double x, double y) {
+        ensureCapacity(mSize + 1);
+        mX[mSize] = x;
+        mY[mSize] = y;
+        mSize++;
+
+        if (mSize > 1) {
+            mSegments[mSize - 2] = mCross[mSize - 2] = 0;
+            updateSegment(mSize - 2);
+        }
+    }
+
+    /**
+     * Move vertex, only two segments next to it are recomputed
+     */
+    public void move(int index, double x, double y) {
+        if (index < 0 || index >= mSize)
+            return;
+
+        mX[index] = x;
+        mY[index] = y;
+
+        if (index > 0)
+            updateSegment(index - 1);
+        if (index < mSize - 1)
+            updateSegment(index);
+    }
+
+    private void updateSegment(int i) {
+        double dx = mX[i + 1] - mX[i];
+        double dy = mY[i + 1] - mY[i];
+        double length = Math.sqrt(dx * dx + dy * dy);
+        double cross = mX[i] * mY[i + 1] - mX[i + 1] * mY[i];
+
+        mLength += length - mSegments[i];
+        mCrossSum += cross - mCross[i];
+        mSegments[i] = length;
+        mCross[i] = cross;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public double getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return area of the polygon closed from the last vertex to the first one, 0 for less than
+     * three vertices
+     */
+    public double getArea() {
+        if (mSize < 3)
+            return 0;
+
+        int last = mSize - 1;
+        double closing = mX[last] * mY[0] - mX[0] * mY[last];
+        return Math.abs(mCrossSum + closing) / 2;
+    }
+}
@@ -0,0 +1,494 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.app.Activity;
+import android.app.ProgressDialog;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.nextgis.maplib.map.VectorLayer;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.MapUtil;
+import com.nextgis.maplibui.R;
+import com.nextgis.maplibui.formcontrol.Sign;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.nextgis.maplib.util.Constants.NOT_FOUND;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+/**
+ * Saves feature row, attachments and signature off the UI thread or synchronously with save().
+ * Attachment rows are inserted with one batch, photos are streamed into them, then the row update
+ * and the signature id are applied with the second batch. Any failure removes inserted rows and
+ * restores the row values saved before the update, so the feature is either saved completely or
+ * left as it was (a new feature is removed). Deleted attachments are removed last, as their files
+ * can not be restored.
+ */
+public class SaveFeatureTask extends AsyncTask<Void, Integer, Boolean> {
+    private static final int JPEG_QUALITY = 85;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public interface OnFeatureSavedListener {
+        void onFeatureSaved(long featureId, boolean success);
+    }
+
+    private Activity mActivity;
+    private ProgressDialog mProgressDialog;
+    private OnFeatureSavedListener mListener;
+    private ContentResolver mResolver;
+
+    private Uri mLayerUri;
+    private File mLayerPath;
+    private long mFeatureId;
+    private ContentValues mValues;
+    private List<String> mDeletedAttaches;
+    private List<String> mPhotos;
+    private List<ContentValues> mPhotoValues;
+    private List<Sign> mSigns;
+    private List<Bitmap> mSignBitmaps;
+    private int mMaxPhotoSize;
+
+    private List<Uri> mInserted;
+    private List<File> mSignFiles;
+    private ContentValues mSavedRow;
+    private int mError;
+
+    public SaveFeatureTask(Activity activity, Uri layerUri, File layerPath, long featureId,
+                           ContentValues values, OnFeatureSavedListener listener) {
+        mActivity = activity;
+        mResolver = activity.getContentResolver();
+        mLayerUri = layerUri;
+        mLayerPath = layerPath;
+        mFeatureId = featureId;
+        mValues = values;
+        mListener = listener;
+
+        mDeletedAttaches = new ArrayList<>();
+        mPhotos = new ArrayList<>();
+        mPhotoValues = new ArrayList<>();
+        mSigns = new ArrayList<>();
+        mSignBitmaps = new ArrayList<>();
+        mInserted = new ArrayList<>();
+        mSignFiles = new ArrayList<>();
+    }
+
+    public void addDeletedAttach(int attachId) {
+        mDeletedAttaches.add(Integer.toString(attachId));
+    }
+
+    public void addPhoto(String path, String comment) {
+        String[] segments = path.split("/");
+        String name = segments.length > 0 ? segments[segments.length - 1] : "image.jpg";
+        ContentValues values = new ContentValues();
+        values.put(VectorLayer.ATTACH_DISPLAY_NAME, name);
+        if (comment != null && !comment.isEmpty())
+            values.put(VectorLayer.ATTACH_DESCRIPTION, comment);
+        values.put(VectorLayer.ATTACH_MIME_TYPE, "image/jpeg");
+
+        mPhotos.add(path);
+        mPhotoValues.add(values);
+    }
+
+    public void addSign(Sign sign) {
+        mSigns.add(sign);
+    }
+
+    /**
+     * Downscale larger photos to fit the size and recompress them to JPEG
+     *
+     * @param size max photo side in pixels, 0 to store photos as is
+     */
+    public void setMaxPhotoSize(int size) {
+        mMaxPhotoSize = size;
+    }
+
+    public long getFeatureId() {
+        return mFeatureId;
+    }
+
+    /**
+     * Save the feature on the calling thread without progress, the listener is not called
+     *
+     * @return true if the feature is saved
+     */
+    public boolean save() {
+        renderSigns();
+        boolean result = doInBackground();
+        if (!result)
+            Toast.makeText(mActivity, mError, Toast.LENGTH_SHORT).show();
+
+        return result;
+    }
+
+    // views are drawn on the UI thread, only the files are written in background
+    private void renderSigns() {
+        for (Sign sign : mSigns) {
+            Bitmap bitmap = sign.render(sign.getWidth(), sign.getHeight(), true);
+            if (bitmap != null)
+                mSignBitmaps.add(bitmap);
+        }
+    }
+
+    @Override
+    protected void onPreExecute() {
+        super.onPreExecute();
+        ControlHelper.lockScreenOrientation(mActivity);
+        renderSigns();
+
+        if (!mActivity.isFinishing()) {
+            mProgressDialog = new ProgressDialog(mActivity);
+            mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mProgressDialog.setMessage(mActivity.getString(R.string.waiting));
+            mProgressDialog.setCancelable(false);
+            mProgressDialog.show();
+        }
+    }
+
+    @Override
+    protected Boolean doInBackground(Void... params) {
+        boolean isNew = mFeatureId == NOT_FOUND;
+        int total = mPhotos.size() + 2, step = 0;
+        mError = isNew ? R.string.error_db_insert : R.string.error_db_update;
+
+        try {
+            // we need to get proper feature id for new features first
+            if (isNew) {
+                Uri result = mResolver.insert(mLayerUri, mValues);
+                if (result == null)
+                    return false;
+
+                mFeatureId = Long.parseLong(result.getLastPathSegment());
+            }
+
+            Uri attachUri = Uri.parse(mLayerUri + "/" + mFeatureId + "/" + Constants.URI_ATTACH);
+            String authority = mLayerUri.getAuthority();
+            publishProgress(++step, total);
+
+            ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+            for (ContentValues values : mPhotoValues)
+                operations.add(ContentProviderOperation.newInsert(attachUri).withValues(values).build());
+
+            boolean insertSign = !mSigns.isEmpty() && !hasSign(attachUri);
+            if (insertSign) {
+                ContentValues values = new ContentValues();
+                values.put(VectorLayer.ATTACH_DISPLAY_NAME, "_signature");
+                values.put(VectorLayer.ATTACH_DESCRIPTION, "_signature");
+                values.put(VectorLayer.ATTACH_MIME_TYPE, "image/jpeg");
+                operations.add(ContentProviderOperation.newInsert(attachUri).withValues(values).build());
+            }
+
+            mError = R.string.photo_fail_attach;
+            if (!operations.isEmpty())
+                for (ContentProviderResult result : mResolver.applyBatch(authority, operations)) {
+                    if (result.uri == null)
+                        throw new OperationApplicationException("attach insert failed");
+
+                    mInserted.add(result.uri);
+                }
+
+            for (int i = 0; i < mPhotos.size(); i++) {
+                copy(mPhotos.get(i), mInserted.get(i));
+                publishProgress(++step, total);
+            }
+
+            File signDir = new File(mLayerPath, mFeatureId + "");
+            for (Bitmap bitmap : mSignBitmaps) {
+                if (!signDir.isDirectory())
+                    FileUtil.createDir(signDir);
+
+                File temp = new File(signDir, Sign.SIGN_FILE + ".tmp");
+                mSignFiles.add(temp);
+                writeSign(bitmap, temp);
+            }
+
+            operations.clear();
+            Uri rowUri = ContentUris.withAppendedId(mLayerUri, mFeatureId);
+            if (!isNew) {
+                mSavedRow = readRow(rowUri);
+                operations.add(ContentProviderOperation.newUpdate(rowUri)
+                                                       .withValues(mValues).withExpectedCount(1).build());
+            }
+
+            if (insertSign) {
+                ContentValues values = new ContentValues();
+                values.put(VectorLayer.ATTACH_ID, Integer.MAX_VALUE);
+                operations.add(ContentProviderOperation.newUpdate(mInserted.get(mInserted.size() - 1))
+                                                       .withValues(values).build());
+            }
+
+            mError = R.string.error_db_update;
+            if (!operations.isEmpty())
+                mResolver.applyBatch(authority, operations);
+
+            for (File temp : mSignFiles)
+                if (!temp.renameTo(new File(temp.getParentFile(), Sign.SIGN_FILE)) && Constants.DEBUG_MODE)
+                    Log.d(TAG, "sign rename failed");
+
+            // the feature is saved, attachments are deleted with their files
+            int size = mDeletedAttaches.size();
+            if (size > 0) {
+                int count = mResolver.delete(attachUri, MapUtil.makePlaceholders(size),
+                                             mDeletedAttaches.toArray(new String[size]));
+                if (Constants.DEBUG_MODE && count == 0)
+                    Log.d(TAG, "attach delete failed");
+            }
+
+            publishProgress(++step, total);
+            return true;
+        } catch (RemoteException | OperationApplicationException | IOException | RuntimeException e) {
+            e.printStackTrace();
+            rollback(isNew);
+        } finally {
+            for (Bitmap bitmap : mSignBitmaps)
+                bitmap.recycle();
+            mSignBitmaps.clear();
+        }
+
+        return false;
+    }
+
+    private static void writeSign(Bitmap bitmap, File file) throws IOException {
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE);
+        try {
+            if (!bitmap.compress(Bitmap.CompressFormat.PNG, 90, output))
+                throw new IOException("Can not compress " + file);
+        } finally {
+            output.close();
+        }
+    }
+
+    private boolean hasSign(Uri attachUri) {
+        String selection = VectorLayer.ATTACH_ID + " =  ?";
+        String[] args = new String[]{Sign.SIGN_FILE};
+        Cursor saved = mResolver.query(attachUri, null, selection, args, null);
+        boolean hasSign = false;
+        if (saved != null) {
+            hasSign = saved.moveToFirst();
+            saved.close();
+        }
+
+        return hasSign;
+    }
+
+    private void copy(String path, Uri uri) throws IOException {
+        ParcelFileDescriptor descriptor = mResolver.openFileDescriptor(uri, "w");
+        if (descriptor == null)
+            throw new IOException("Can not open " + uri);
+
+        FileOutputStream output = new FileOutputStream(descriptor.getFileDescriptor());
+        try {
+            if (recompress(path, output))
+                return;
+
+            FileChannel in = new FileInputStream(path).getChannel();
+            FileChannel out = output.getChannel();
+            try {
+                long position = 0, size = in.size();
+                while (position < size)
+                    position += in.transferTo(position, size - position, out);
+            } finally {
+                in.close();
+            }
+        } finally {
+            output.close();
+            descriptor.close();
+        }
+    }
+
+    private boolean recompress(String path, OutputStream output) throws IOException {
+        if (mMaxPhotoSize <= 0)
+            return false;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (Math.max(options.outWidth, options.outHeight) <= mMaxPhotoSize)
+            return false;
+
+        options.inSampleSize = ControlHelper.calculateInSampleSize(options, mMaxPhotoSize, mMaxPhotoSize);
+        options.inJustDecodeBounds = false;
+
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+            if (bitmap == null)
+                return false;
+
+            Matrix matrix = new Matrix();
+            float scale = (float) mMaxPhotoSize / Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (scale < 1)
+                matrix.postScale(scale, scale);
+
+            // pixels are rotated as recompressed photo has no exif
+            int rotation = getRotation(path);
+            if (rotation != 0)
+                matrix.postRotate(rotation);
+
+            if (!matrix.isIdentity()) {
+                Bitmap scaled = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+                if (scaled != bitmap)
+                    bitmap.recycle();
+                bitmap = scaled;
+            }
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        BufferedOutputStream buffer = new BufferedOutputStream(output, BUFFER_SIZE);
+        boolean compressed = bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, buffer);
+        buffer.flush();
+        bitmap.recycle();
+
+        if (!compressed)
+            throw new IOException("Can not compress " + path);
+
+        return true;
+    }
+
+    private static int getRotation(String path) {
+        try {
+            ExifInterface exif = new ExifInterface(path);
+            switch (exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        return 0;
+    }
+
+    // values of the updated columns to restore them on failure
+    private ContentValues readRow(Uri rowUri) {
+        Cursor cursor = mResolver.query(rowUri, null, null, null, null);
+        if (cursor == null)
+            return null;
+
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+
+            ContentValues row = new ContentValues();
+            for (String key : mValues.keySet()) {
+                int column = cursor.getColumnIndex(key.replace("'", ""));
+                if (column < 0)
+                    continue;
+
+                switch (cursor.getType(column)) {
+                    case Cursor.FIELD_TYPE_NULL:
+                        row.putNull(key);
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row.put(key, cursor.getLong(column));
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row.put(key, cursor.getDouble(column));
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row.put(key, cursor.getBlob(column));
+                        break;
+                    default:
+                        row.put(key, cursor.getString(column));
+                        break;
+                }
+            }
+
+            return row;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void rollback(boolean isNew) {
+        for (File temp : mSignFiles)
+            temp.delete();
+
+        try {
+            if (mSavedRow != null && mSavedRow.size() > 0)
+                mResolver.update(ContentUris.withAppendedId(mLayerUri, mFeatureId), mSavedRow, null, null);
+
+            for (Uri uri : mInserted)
+                mResolver.delete(uri, null, null);
+
+            if (isNew && mFeatureId != NOT_FOUND) {
+                mResolver.delete(ContentUris.withAppendedId(mLayerUri, mFeatureId), null, null);
+                mFeatureId = NOT_FOUND;
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... values) {
+        super.onProgressUpdate(values);
+        if (mProgressDialog != null) {
+            mProgressDialog.setMax(values[1]);
+            mProgressDialog.setProgress(values[0]);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(Boolean result) {
+        super.onPostExecute(result);
+        if (mProgressDialog != null && mProgressDialog.isShowing())
+            mProgressDialog.dismiss();
+
+        ControlHelper.unlockScreenOrientation(mActivity);
+        if (!result)
+            Toast.makeText(mActivity, mError, Toast.LENGTH_SHORT).show();
+
+        if (mListener != null)
+            mListener.onFeatureSaved(mFeatureId, result);
+    }
+}
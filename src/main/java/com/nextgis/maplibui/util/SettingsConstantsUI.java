@@ -48,6 +48,9 @@ public interface SettingsConstantsUI
     String KEY_PREF_MAP_BG               = "map_bg";
     String KEY_PREF_LAYER_LABEL          = "layer_label";
     String KEY_PREF_SHOW_GEO_DIALOG      = "show_geo_dialog";
+    String KEY_PREF_PHOTO_MAX_SIZE       = "photo_max_size";
+    String KEY_PREF_TILE_CACHE_MAX_SIZE  = "tile_cache_max_size";
+    String KEY_PREF_LAYER_FILL_TASKS     = "layer_fill_tasks";
     String KEY_PREF_LIGHT                = "light";
     String KEY_PREF_DARK                 = "dark";
     String KEY_PREF_NEUTRAL              = "neutral";
@@ -0,0 +1,408 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.map.LayerGroup;
+import com.nextgis.maplib.map.MapBase;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.MapUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps tile caches of remote raster layers within one byte budget. Layers report drawn tiles,
+ * access time, size and modification time are kept for tile columns ({z}/{x} directories) and
+ * saved to a small index file. A background thread periodically deletes least recently used
+ * columns of all layers until the caches fit the budget. Only columns which were touched, pinned
+ * or modified since the last pass are measured again, others cost a single stat of the directory.
+ * Columns which were never drawn are aged by their modification time. Columns with tiles
+ * downloaded for offline use are pinned by a marker file, they are never deleted and do not count
+ * against the budget. The budget is off by default.
+ */
+public final class TileCacheManager {
+    public static final long DEFAULT_MAX_SIZE_MB = 0;
+
+    private static final String INDEX = "tile_cache.idx";
+    private static final int INDEX_VERSION = -2;
+    private static final String PIN = ".pin";
+    private static final String TRASH = "trash";
+    private static final long TOUCH_STEP = 60 * 1000;
+    private static final long START_DELAY = 1;
+    private static final long PERIOD = 60;
+    private static final int LAYER_TYPES = Constants.LAYERTYPE_REMOTE_TMS | Constants.LAYERTYPE_NGW_RASTER
+            | Constants.LAYERTYPE_NGW_WEBMAP;
+
+    private static final ConcurrentHashMap<String, Column> mColumns = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService mExecutor;
+    private static boolean mIsStarted, mIsIndexLoaded;
+
+    private TileCacheManager() {
+    }
+
+    private static final class Column {
+        final File mDir;
+        volatile long mAccess, mSize, mModified, mSeen;
+        volatile boolean mIsDirty = true, mIsPinned;
+        long mTime; // fixed by the pass, touches do not change the sort order
+
+        Column(File dir) {
+            mDir = dir;
+        }
+    }
+
+    private static Column getColumn(File dir) {
+        String key = dir.getPath();
+        Column column = mColumns.get(key);
+        if (column == null) {
+            column = new Column(dir);
+            Column existing = mColumns.putIfAbsent(key, column);
+            if (existing != null)
+                column = existing;
+        }
+
+        return column;
+    }
+
+    /**
+     * Remember tile access, should be called when a layer reads a tile
+     *
+     * @param path layer directory
+     */
+    public static void touch(File path, TileItem tile) {
+        Column column = getColumn(new File(path, tile.toString("{z}/{x}")));
+        long now = System.currentTimeMillis();
+        if (now - column.mAccess > TOUCH_STEP) {
+            column.mAccess = now;
+            // the tile may have been downloaded right now
+            column.mIsDirty = true;
+        }
+    }
+
+    /**
+     * Keep the tile column out of eviction, should be called for tiles downloaded for offline use.
+     * The marker is a file, so it is seen by other processes and moves with parked namespaces.
+     *
+     * @param path layer directory
+     */
+    public static void pin(File path, TileItem tile) {
+        Column column = getColumn(new File(path, tile.toString("{z}/{x}")));
+        if (column.mIsPinned)
+            return;
+
+        column.mIsPinned = true;
+        column.mIsDirty = true;
+        try {
+            File marker = new File(column.mDir, PIN);
+            if (!marker.exists() && !marker.createNewFile() && Constants.DEBUG_MODE)
+                Log.d(Constants.TAG, "Tile column pin failed: " + column.mDir);
+        } catch (IOException e) {
+            column.mIsPinned = false;
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Start periodic eviction, does nothing if already started
+     */
+    public static synchronized void start(final Context context) {
+        if (mIsStarted)
+            return;
+
+        mIsStarted = true;
+        final Context appContext = context.getApplicationContext();
+        getExecutor().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    trim(appContext);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }, START_DELAY, PERIOD, TimeUnit.MINUTES);
+    }
+
+    static boolean isPinned(File column) {
+        return new File(column, PIN).exists();
+    }
+
+    /**
+     * Clear layer cache instantly. Cache directories are moved aside and deleted in background.
+     *
+     * @param path layer directory
+     */
+    public static void clear(File path) {
+        File[] files = path.listFiles();
+        if (files == null)
+            return;
+
+        final File trash = new File(new File(path, TRASH), UUID.randomUUID().toString());
+        trash.mkdirs();
+        for (File file : files)
+            if (isCacheDir(file))
+                file.renameTo(new File(trash, file.getName()));
+
+        String prefix = path.getPath() + File.separator;
+        Iterator<String> keys = mColumns.keySet().iterator();
+        while (keys.hasNext())
+            if (keys.next().startsWith(prefix))
+                keys.remove();
+
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                FileUtil.deleteRecursive(trash);
+            }
+        });
+    }
+
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (mExecutor == null)
+            mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TileCacheManager");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+        return mExecutor;
+    }
+
+    private static boolean isCacheDir(File file) {
+        String name = file.getName();
+        return file.isDirectory() && (MapUtil.isParsable(name) || TileCacheNamespaces.DIR.equals(name));
+    }
+
+    public static long getMaxSize(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        String value = preferences.getString(SettingsConstantsUI.KEY_PREF_TILE_CACHE_MAX_SIZE, DEFAULT_MAX_SIZE_MB + "");
+        try {
+            return Long.parseLong(value) * 1024 * 1024;
+        } catch (NumberFormatException e) {
+            return DEFAULT_MAX_SIZE_MB * 1024 * 1024;
+        }
+    }
+
+    private static void trim(Context context) {
+        MapBase map = MapBase.getInstance();
+        if (map == null)
+            return;
+
+        if (!mIsIndexLoaded) {
+            loadIndex(context);
+            mIsIndexLoaded = true;
+        }
+
+        List<ILayer> layers = new ArrayList<>();
+        LayerGroup.getLayersByType(map, LAYER_TYPES, layers);
+
+        List<Column> columns = new ArrayList<>();
+        long total = 0;
+        long pass = System.currentTimeMillis();
+        for (ILayer layer : layers) {
+            File path = layer.getPath();
+            FileUtil.deleteRecursive(new File(path, TRASH)); // left by killed process
+            total += collectColumns(path, columns, pass);
+        }
+
+        long maxSize = getMaxSize(context);
+        if (maxSize > 0 && total > maxSize) {
+            Collections.sort(columns, new Comparator<Column>() {
+                @Override
+                public int compare(Column lhs, Column rhs) {
+                    return lhs.mTime < rhs.mTime ? -1 : lhs.mTime > rhs.mTime ? 1 : 0;
+                }
+            });
+
+            long before = total;
+            for (Column column : columns) {
+                if (total <= maxSize)
+                    break;
+
+                FileUtil.deleteRecursive(column.mDir);
+                mColumns.remove(column.mDir.getPath());
+                total -= column.mSize;
+            }
+
+            if (Constants.DEBUG_MODE)
+                Log.d(Constants.TAG, "Tile caches trimmed from " + before + " to " + total + " bytes");
+        }
+
+        // drop columns which were not found by this pass and not touched during it
+        Iterator<Column> values = mColumns.values().iterator();
+        while (values.hasNext()) {
+            Column column = values.next();
+            if (column.mSeen < pass && column.mAccess < pass)
+                values.remove();
+        }
+
+        saveIndex(context);
+    }
+
+    // layer directory holds {z}/{x}/{y} tiles, parked namespaces hold the same structure
+    private static long collectColumns(File path, List<Column> columns, long pass) {
+        long total = 0;
+        File[] files = path.listFiles();
+        if (files == null)
+            return total;
+
+        for (File file : files) {
+            if (!file.isDirectory())
+                continue;
+
+            if (TileCacheNamespaces.DIR.equals(file.getName())) {
+                File[] namespaces = file.listFiles();
+                if (namespaces != null)
+                    for (File namespace : namespaces)
+                        total += collectColumns(namespace, columns, pass);
+            } else if (MapUtil.isParsable(file.getName())) {
+                File[] dirs = file.listFiles();
+                if (dirs == null)
+                    continue;
+
+                for (File dir : dirs) {
+                    Column column = getColumn(dir);
+                    column.mSeen = pass;
+                    long modified = dir.lastModified();
+                    if (column.mIsDirty || column.mModified != modified) {
+                        // reset first, so a touch during the measure keeps the column dirty
+                        column.mIsDirty = false;
+                        column.mModified = modified;
+                        column.mIsPinned = isPinned(dir);
+                        column.mSize = column.mIsPinned ? 0 : getSize(dir);
+                    }
+
+                    if (column.mIsPinned)
+                        continue;
+
+                    column.mTime = Math.max(column.mAccess, column.mModified);
+                    columns.add(column);
+                    total += column.mSize;
+                }
+            }
+        }
+
+        return total;
+    }
+
+    private static long getSize(File dir) {
+        long size = 0;
+        File[] tiles = dir.listFiles();
+        if (tiles != null)
+            for (File tile : tiles)
+                size += tile.length();
+
+        return size;
+    }
+
+    private static void loadIndex(Context context) {
+        File file = new File(context.getFilesDir(), INDEX);
+        if (!file.exists())
+            return;
+
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (input.readInt() != INDEX_VERSION)
+                    return;
+
+                int count = input.readInt();
+                for (int i = 0; i < count; i++) {
+                    Column column = getColumn(new File(input.readUTF()));
+                    long access = input.readLong();
+                    long size = input.readLong();
+                    long modified = input.readLong();
+                    boolean isPinned = input.readBoolean();
+                    if (column.mAccess < access)
+                        column.mAccess = access;
+
+                    // a column touched or pinned before the index was loaded stays dirty
+                    if (!column.mIsPinned) {
+                        column.mSize = size;
+                        column.mModified = modified;
+                        column.mIsPinned = isPinned;
+                        column.mIsDirty = column.mAccess != access;
+                    }
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void saveIndex(Context context) {
+        File file = new File(context.getFilesDir(), INDEX);
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            List<Column> columns = new ArrayList<>(mColumns.values());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                output.writeInt(INDEX_VERSION);
+                output.writeInt(columns.size());
+                for (Column column : columns) {
+                    output.writeUTF(column.mDir.getPath());
+                    output.writeLong(column.mAccess);
+                    output.writeLong(column.mSize);
+                    output.writeLong(column.mModified);
+                    output.writeBoolean(column.mIsPinned);
+                }
+            } finally {
+                output.close();
+            }
+
+            temp.renameTo(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.MapUtil;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Keeps tile caches of a layer apart for each tile URL. The layer reads tiles from the zoom level
+ * directories in its folder only, so on URL change these directories are moved to a namespace of
+ * the old URL and directories of the new URL namespace are moved back. Moves are renames, so
+ * switching is instant and tiles of earlier URLs stay available offline. Parked namespaces share
+ * a size budget, least recently parked ones are deleted first. Namespaces with tiles downloaded
+ * for offline use are kept, see {@link TileCacheManager#pin}.
+ */
+public final class TileCacheNamespaces {
+    public static final String DIR = "namespaces";
+    public static final long MAX_SIZE = 512L * 1024 * 1024;
+
+    private TileCacheNamespaces() {
+    }
+
+    public static String getKey(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest)
+                key.append(String.format("%02x", b));
+
+            return key.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    /**
+     * Park tiles of the old URL and bring back tiles of the new one if they were cached before
+     *
+     * @param path layer directory
+     */
+    public static void switchTo(File path, String oldUrl, String newUrl) {
+        File root = new File(path, DIR);
+        File oldDir = new File(root, getKey(oldUrl));
+        if (oldDir.exists())
+            FileUtil.deleteRecursive(oldDir);
+        oldDir.mkdirs();
+
+        File[] levels = path.listFiles();
+        if (levels != null)
+            for (File level : levels)
+                if (isLevel(level))
+                    level.renameTo(new File(oldDir, level.getName()));
+
+        // remember when the namespace was parked
+        oldDir.setLastModified(System.currentTimeMillis());
+
+        File newDir = new File(root, getKey(newUrl));
+        levels = newDir.listFiles();
+        if (levels != null)
+            for (File level : levels)
+                level.renameTo(new File(path, level.getName()));
+        FileUtil.deleteRecursive(newDir);
+    }
+
+    /**
+     * Delete least recently parked namespaces until they fit the size budget
+     *
+     * @param path layer directory
+     */
+    public static void trim(File path, long maxSize) {
+        File[] namespaces = new File(path, DIR).listFiles();
+        if (namespaces == null)
+            return;
+
+        Arrays.sort(namespaces, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long diff = rhs.lastModified() - lhs.lastModified();
+                return diff > 0 ? 1 : diff < 0 ? -1 : 0;
+            }
+        });
+
+        long total = 0;
+        for (File namespace : namespaces) {
+            if (hasPins(namespace))
+                continue;
+
+            total += getSize(namespace);
+            if (total > maxSize)
+                FileUtil.deleteRecursive(namespace);
+        }
+    }
+
+    private static boolean hasPins(File namespace) {
+        File[] levels = namespace.listFiles();
+        if (levels != null)
+            for (File level : levels) {
+                File[] columns = level.listFiles();
+                if (columns != null)
+                    for (File column : columns)
+                        if (TileCacheManager.isPinned(column))
+                            return true;
+            }
+
+        return false;
+    }
+
+    private static boolean isLevel(File file) {
+        return file.isDirectory() && MapUtil.isParsable(file.getName());
+    }
+
+    private static long getSize(File file) {
+        if (!file.isDirectory())
+            return file.length();
+
+        long size = 0;
+        File[] files = file.listFiles();
+        if (files != null)
+            for (File child : files)
+                size += getSize(child);
+
+        return size;
+    }
+}
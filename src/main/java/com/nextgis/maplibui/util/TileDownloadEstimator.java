@@ -0,0 +1,182 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.os.AsyncTask;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.map.TMSLayer;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.MapUtil;
+import com.nextgis.maplibui.service.TileDownloadService;
+
+import java.io.File;
+
+/**
+ * Estimates tiles download for an envelope. Tile counts are computed from tile ranges for all
+ * zoom levels at once. The part which is already cached is estimated by checking a few tiles
+ * spread over the range of each zoom level, their sizes give the expected size of a tile.
+ */
+public class TileDownloadEstimator {
+    private static final int SAMPLE_SIZE = 32;
+    private static final long DEFAULT_TILE_SIZE = 16 * 1024;
+
+    private final File mPath;
+    private final int mTMSType;
+    private final GeoEnvelope mEnvelope;
+    private final long[] mCounts;
+    private final int[] mSampled, mFound;
+    private final long[] mFoundBytes;
+
+    public TileDownloadEstimator(TMSLayer layer, GeoEnvelope envelope, int maxZoom) {
+        mPath = layer.getPath();
+        mTMSType = layer.getTMSType();
+        mEnvelope = envelope;
+        mCounts = new long[maxZoom + 1];
+        mSampled = new int[maxZoom + 1];
+        mFound = new int[maxZoom + 1];
+        mFoundBytes = new long[maxZoom + 1];
+
+        for (int zoom = 0; zoom <= maxZoom; zoom++) {
+            int[] range = TileDownloadService.getTileRange(envelope, zoom);
+            mCounts[zoom] = (long) (range[1] - range[0]) * (range[3] - range[2]);
+        }
+    }
+
+    public long getCount(int from, int to) {
+        long total = 0;
+        for (int zoom = from; zoom <= to; zoom++)
+            total += mCounts[zoom];
+
+        return total;
+    }
+
+    public synchronized boolean isSampled(int from, int to) {
+        for (int zoom = from; zoom <= to; zoom++)
+            if (mSampled[zoom] == 0 && mCounts[zoom] > 0)
+                return false;
+
+        return true;
+    }
+
+    /**
+     * Check cached tiles for zoom levels which were not checked yet, should not run on UI thread
+     */
+    public void sample(AsyncTask task, int from, int to) {
+        for (int zoom = from; zoom <= to; zoom++) {
+            if (task != null && task.isCancelled())
+                return;
+
+            synchronized (this) {
+                if (mSampled[zoom] > 0)
+                    continue;
+            }
+
+            sample(zoom);
+        }
+    }
+
+    private void sample(int zoom) {
+        int[] range = TileDownloadService.getTileRange(mEnvelope, zoom);
+        long width = range[1] - range[0];
+        long count = mCounts[zoom];
+        int samples = (int) Math.min(SAMPLE_SIZE, count);
+        int found = 0;
+        long bytes = 0;
+
+        for (int i = 0; i < samples; i++) {
+            // evenly spread tiles, each one is in the middle of its part of the range
+            long index = (long) ((i + 0.5) * count / samples);
+            int x = (int) (range[0] + index % width);
+            int y = (int) (range[2] + index / width);
+
+            for (TileItem tile : MapUtil.getTileItems(getTileEnvelope(zoom, x, y), zoom, mTMSType)) {
+                File file = new File(mPath, tile.toString("{z}/{x}/{y}" + Constants.TILE_EXT));
+                long length = file.length();
+                if (length > 0) {
+                    found++;
+                    bytes += length;
+                }
+                break;
+            }
+        }
+
+        synchronized (this) {
+            mSampled[zoom] = samples;
+            mFound[zoom] = found;
+            mFoundBytes[zoom] = bytes;
+        }
+    }
+
+    // envelope inside one tile, y counts from the bottom
+    private static GeoEnvelope getTileEnvelope(int zoom, int x, int y) {
+        int tilesInMapOneDimension = 1 << zoom;
+        double tilesSizeOneDimension = GeoConstants.MERCATOR_MAX * 2 / tilesInMapOneDimension;
+        double left = (x - tilesInMapOneDimension * 0.5) * tilesSizeOneDimension;
+        double bottom = (y - tilesInMapOneDimension * 0.5) * tilesSizeOneDimension;
+        double epsilon = tilesSizeOneDimension * 1e-3;
+
+        return new GeoEnvelope(left + epsilon, left + tilesSizeOneDimension - epsilon,
+                bottom + epsilon, bottom + tilesSizeOneDimension - epsilon);
+    }
+
+    /**
+     * @return expected count of tiles which are not cached yet
+     */
+    public synchronized long getMissingCount(int from, int to) {
+        double missing = 0;
+        for (int zoom = from; zoom <= to; zoom++) {
+            if (mSampled[zoom] > 0)
+                missing += mCounts[zoom] * (1 - (double) mFound[zoom] / mSampled[zoom]);
+            else
+                missing += mCounts[zoom];
+        }
+
+        return Math.round(missing);
+    }
+
+    /**
+     * @return expected size of tiles which are not cached yet in bytes
+     */
+    public synchronized long getMissingBytes(int from, int to) {
+        int found = 0;
+        long bytes = 0;
+        for (int zoom = 0; zoom < mSampled.length; zoom++) {
+            found += mFound[zoom];
+            bytes += mFoundBytes[zoom];
+        }
+
+        long tileSize = found > 0 ? bytes / found : DEFAULT_TILE_SIZE;
+        return getMissingCount(from, to) * tileSize;
+    }
+
+    /**
+     * @return expected download time in seconds or -1 if download speed is unknown
+     */
+    public long getMissingSeconds(int from, int to, float tilesPerSecond) {
+        if (tilesPerSecond <= 0)
+            return -1;
+
+        return (long) Math.ceil(getMissingCount(from, to) / tilesPerSecond);
+    }
+}
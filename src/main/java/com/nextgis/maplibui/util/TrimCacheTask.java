@@ -0,0 +1,40 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * *****************************************************************************
+ * Copyright (c) 2020 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.os.AsyncTask;
+
+import java.io.File;
+
+/**
+ * Delete least recently parked tile cache namespaces of a layer over the size budget, see
+ * {@link TileCacheNamespaces}. Switching namespaces is done before the layer URL changes, only
+ * trimming is left for the background.
+ */
+public class TrimCacheTask extends AsyncTask<File, Void, Void> {
+    @Override
+    protected Void doInBackground(File... path) {
+        if (path.length > 0 && path[0].isDirectory())
+            TileCacheNamespaces.trim(path[0], TileCacheNamespaces.MAX_SIZE);
+
+        return null;
+    }
+}